@@ -6,6 +6,8 @@ plugins {
 
     id(TmsJarBundling.plugin)
 
+    id(Jmh.pluginId).version(Jmh.pluginVersion)
+
     // Apply the application plugin to add support for building a CLI application.
     application
 }
@@ -46,6 +48,7 @@ dependencies {
     implementation(TmsKtorTokenSupport.entraIdTokenVerification)
     implementation(KotliQuery.kotliquery)
     implementation(JacksonDatatype.moduleKotlin)
+    implementation(JacksonEx.moduleBlackbird)
     implementation(TmsCommonLib.kubernetes)
     implementation(TmsCommonLib.metrics)
     implementation(TmsCommonLib.observability)
@@ -69,6 +72,14 @@ dependencies {
     testImplementation(TmsKtorTokenSupport.entraIdTokenVerificationMock)
 }
 
+jmh {
+    jmhVersion.set(Jmh.version)
+    warmupIterations.set(2)
+    iterations.set(5)
+    fork.set(1)
+    resultFormat.set("JSON")
+}
+
 application {
     mainClass.set("no.nav.tms.varsel.authority.ApplicationKt")
 }
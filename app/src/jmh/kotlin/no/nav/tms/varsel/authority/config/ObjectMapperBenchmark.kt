@@ -0,0 +1,55 @@
+package no.nav.tms.varsel.authority.config
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.fasterxml.jackson.module.kotlin.jacksonMapperBuilder
+import com.fasterxml.jackson.module.kotlin.jacksonTypeRef
+import no.nav.tms.varsel.authority.EksternVarslingStatus
+import no.nav.tms.varsel.authority.Innhold
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+// Sammenligner den delte mapperen med Blackbird mot mapperen hver klasse laget for seg før, med samme oppsett
+// ellers. Begge leser innhold og ekstern varsling-status og skriver dem ut igjen.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class ObjectMapperBenchmark {
+
+    private val utenBlackbird: ObjectMapper = jacksonMapperBuilder()
+        .addModule(JavaTimeModule())
+        .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+        .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+        .build()
+        .setDefaultPropertyInclusion(JsonInclude.Include.NON_NULL)
+
+    private val delt: ObjectMapper = defaultObjectMapper()
+
+    private val innhold = """{"tekst":"Du har fått et nytt vedtak","link":"https://www.nav.no/vedtak","tekster":[{"spraakkode":"nb","tekst":"Du har fått et nytt vedtak","default":true}]}"""
+        .toByteArray()
+
+    private val eksternVarslingStatus = """{"sendt":true,"sendtTidspunkt":"2026-01-10T12:00:00Z","sendtSomBatch":false,"renotifikasjonSendt":false,"kanaler":["SMS","EPOST"],"feilhistorikk":[],"sisteStatus":"sendt","sistOppdatert":"2026-01-10T12:00:00Z"}"""
+        .toByteArray()
+
+    @Benchmark
+    fun mapperUtenBlackbird(blackhole: Blackhole) {
+        roundtrip(utenBlackbird, blackhole)
+    }
+
+    @Benchmark
+    fun deltMapper(blackhole: Blackhole) {
+        roundtrip(delt, blackhole)
+    }
+
+    private fun roundtrip(objectMapper: ObjectMapper, blackhole: Blackhole) {
+        val innhold = objectMapper.readValue(innhold, jacksonTypeRef<Innhold>())
+        val status = objectMapper.readValue(eksternVarslingStatus, jacksonTypeRef<EksternVarslingStatus>())
+
+        blackhole.consume(objectMapper.writeValueAsBytes(innhold))
+        blackhole.consume(objectMapper.writeValueAsBytes(status))
+    }
+}
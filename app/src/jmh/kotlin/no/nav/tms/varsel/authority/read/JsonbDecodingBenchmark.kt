@@ -0,0 +1,80 @@
+package no.nav.tms.varsel.authority.read
+
+import kotliquery.Row
+import no.nav.tms.common.postgres.JsonbHelper.json
+import no.nav.tms.common.postgres.JsonbHelper.jsonOrNull
+import no.nav.tms.varsel.authority.EksternVarslingStatus
+import no.nav.tms.varsel.authority.Innhold
+import no.nav.tms.varsel.authority.config.jsonReader
+import no.nav.tms.varsel.authority.config.jsonb
+import no.nav.tms.varsel.authority.config.jsonbOrNull
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.postgresql.util.PGobject
+import java.lang.reflect.Proxy
+import java.sql.ResultSet
+import java.util.concurrent.TimeUnit
+
+// Sammenligner dekoding av jsonb-kolonnene som toVarselsammendrag og toDetaljertVarsel leser,
+// via JsonbHelper (PGobject -> String -> ObjectMapper) mot forhåndsoppløste ObjectReaders på rå bytes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class JsonbDecodingBenchmark {
+
+    private val innholdReader = jsonReader<Innhold>()
+    private val kanalerReader = jsonReader<List<String>>()
+    private val eksternVarslingStatusReader = jsonReader<EksternVarslingStatus>()
+
+    private lateinit var row: Row
+
+    @Setup
+    fun setup() {
+        row = Row(
+            inMemoryResultSet(
+                "innhold" to """{"tekst":"Du har fått et nytt vedtak","link":"https://www.nav.no/vedtak","tekster":[{"spraakkode":"nb","tekst":"Du har fått et nytt vedtak","default":true}]}""",
+                "eksternVarslingKanaler" to """["SMS","EPOST"]""",
+                "eksternVarslingStatus" to """{"sendt":true,"sendtTidspunkt":"2026-01-10T12:00:00Z","sendtSomBatch":false,"renotifikasjonSendt":false,"kanaler":["SMS","EPOST"],"feilhistorikk":[],"sisteStatus":"sendt","sistOppdatert":"2026-01-10T12:00:00Z"}"""
+            )
+        )
+    }
+
+    @Benchmark
+    fun varselsammendragJsonbHelper(blackhole: Blackhole) {
+        blackhole.consume(row.jsonOrNull<List<String>>("eksternVarslingKanaler"))
+    }
+
+    @Benchmark
+    fun varselsammendragObjectReader(blackhole: Blackhole) {
+        blackhole.consume(row.jsonbOrNull<List<String>>("eksternVarslingKanaler", kanalerReader))
+    }
+
+    @Benchmark
+    fun detaljertVarselJsonbHelper(blackhole: Blackhole) {
+        blackhole.consume(row.json<Innhold>("innhold"))
+        blackhole.consume(row.jsonOrNull<EksternVarslingStatus>("eksternVarslingStatus"))
+    }
+
+    @Benchmark
+    fun detaljertVarselObjectReader(blackhole: Blackhole) {
+        blackhole.consume(row.jsonb<Innhold>("innhold", innholdReader))
+        blackhole.consume(row.jsonbOrNull<EksternVarslingStatus>("eksternVarslingStatus", eksternVarslingStatusReader))
+    }
+
+    // Gir samme svar som pgjdbc for jsonb-kolonner i tekstformat: getObject gir PGobject, getBytes gir rå utf-8
+    private fun inMemoryResultSet(vararg columns: Pair<String, String>): ResultSet {
+        val values = columns.toMap()
+
+        return Proxy.newProxyInstance(ResultSet::class.java.classLoader, arrayOf(ResultSet::class.java)) { _, method, args ->
+            val column = args?.firstOrNull() as? String
+
+            when (method.name) {
+                "getString" -> values[column]
+                "getBytes" -> values[column]?.toByteArray()
+                "getObject" -> values[column]?.let { value -> PGobject().apply { type = "jsonb"; this.value = value } }
+                "wasNull" -> false
+                else -> throw UnsupportedOperationException(method.name)
+            }
+        } as ResultSet
+    }
+}
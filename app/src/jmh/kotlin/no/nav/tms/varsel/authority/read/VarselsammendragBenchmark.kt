@@ -0,0 +1,92 @@
+package no.nav.tms.varsel.authority.read
+
+import no.nav.tms.varsel.action.Varseltype
+import no.nav.tms.varsel.authority.Innhold
+import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import no.nav.tms.varsel.authority.config.jsonReader
+import org.openjdk.jmh.annotations.*
+import java.time.ZonedDateTime
+import java.util.concurrent.TimeUnit
+
+// Sammenligner svaret fra sammendrag-endepunktene når innhold dekodes til Innhold, tekst velges i Kotlin og
+// innholdet serialiseres på nytt, mot når ferdig json fra databasen sendes videre med @JsonRawValue. Kostnaden for
+// json_build_object i databasen er ikke med.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class VarselsammendragBenchmark {
+
+    @Param("1", "50")
+    var antallVarsler: Int = 0
+
+    private val objectMapper = defaultObjectMapper()
+    private val innholdReader = jsonReader<Innhold>()
+
+    private val innhold = """{"tekst":"Du har fått et nytt vedtak","link":"https://www.nav.no/vedtak","tekster":[{"spraakkode":"nb","tekst":"Du har fått et nytt vedtak","default":true},{"spraakkode":"en","tekst":"You have a new decision","default":false}]}"""
+        .toByteArray()
+
+    private val innholdsammendrag = """{"spraakkode":"en","tekst":"You have a new decision","link":"https://www.nav.no/vedtak"}"""
+
+    private val opprettet = ZonedDateTime.parse("2026-01-10T12:00:00Z")
+
+    @Benchmark
+    fun dekodetInnhold(): ByteArray {
+        val varsler = (1..antallVarsler).map { index ->
+            val dekodet: Innhold = innholdReader.readValue(innhold)
+            val tekst = dekodet.tekster.find { it.spraakkode.lowercase() == "en" }
+                ?: dekodet.tekster.first { it.default }
+
+            DekodetVarselsammendrag(
+                type = Varseltype.Beskjed,
+                varselId = "varsel-$index",
+                aktiv = true,
+                innhold = DekodetInnholdsammendrag(spraakkode = tekst.spraakkode, tekst = tekst.tekst, link = dekodet.link),
+                eksternVarslingSendt = true,
+                eksternVarslingKanaler = listOf("SMS"),
+                opprettet = opprettet,
+                aktivFremTil = null,
+                inaktivert = null
+            )
+        }
+
+        return objectMapper.writeValueAsBytes(varsler)
+    }
+
+    @Benchmark
+    fun raaInnhold(): ByteArray {
+        val varsler = (1..antallVarsler).map { index ->
+            Varselsammendrag(
+                type = Varseltype.Beskjed,
+                varselId = "varsel-$index",
+                aktiv = true,
+                innhold = innholdsammendrag,
+                eksternVarslingSendt = true,
+                eksternVarslingKanaler = listOf("SMS"),
+                opprettet = opprettet,
+                aktivFremTil = null,
+                inaktivert = null
+            )
+        }
+
+        return objectMapper.writeValueAsBytes(varsler)
+    }
+
+    // Formen Varselsammendrag hadde før innhold ble sendt videre som rå json
+    data class DekodetVarselsammendrag(
+        val type: Varseltype,
+        val varselId: String,
+        val aktiv: Boolean,
+        val innhold: DekodetInnholdsammendrag?,
+        val eksternVarslingSendt: Boolean,
+        val eksternVarslingKanaler: List<String>,
+        val opprettet: ZonedDateTime,
+        val aktivFremTil: ZonedDateTime?,
+        val inaktivert: ZonedDateTime?
+    )
+
+    data class DekodetInnholdsammendrag(
+        val spraakkode: String,
+        val tekst: String,
+        val link: String?
+    )
+}
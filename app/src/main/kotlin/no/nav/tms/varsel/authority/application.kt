@@ -2,46 +2,99 @@ package no.nav.tms.varsel.authority
 
 import kotlinx.coroutines.runBlocking
 import no.nav.tms.common.kubernetes.PodLeaderElection
-import no.nav.tms.common.postgres.Postgres
 import no.nav.tms.kafka.application.Domain
 import no.nav.tms.kafka.application.KafkaApplication
-import no.nav.tms.kafka.producer.KafkaProducerBuilder
+import no.nav.tms.kafka.application.MessageBroadcaster
+import no.nav.tms.varsel.authority.common.BucketLeases
+import no.nav.tms.varsel.authority.common.DatabaseDispatcher
+import no.nav.tms.varsel.authority.common.Leadership
+import no.nav.tms.varsel.authority.common.ProdusentRegistry
+import no.nav.tms.varsel.authority.common.ReadRouting
+import no.nav.tms.varsel.authority.config.CdsTraining
+import no.nav.tms.varsel.authority.config.DatabasePools
 import no.nav.tms.varsel.authority.config.Environment
+import no.nav.tms.varsel.authority.config.StartupMetrics
+import no.nav.tms.varsel.authority.config.VirtualThreadPinningMonitor
+import no.nav.tms.varsel.authority.config.keyedVarselConsumer
+import no.nav.tms.varsel.authority.config.outboxRecordProducer
 import no.nav.tms.varsel.authority.read.ReadVarselRepository
 import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
 import no.nav.tms.varsel.authority.write.arkiv.PeriodicVarselArchiver
+import no.nav.tms.varsel.authority.write.arkiv.PeriodicVarselPartitionMaintainer
 import no.nav.tms.varsel.authority.write.arkiv.VarselArkivRepository
 import no.nav.tms.varsel.authority.write.arkiv.VarselArkivertProducer
+import no.nav.tms.varsel.authority.write.arkiv.VarselPartisjonRepository
 import no.nav.tms.varsel.authority.write.eksternvarsling.*
 import no.nav.tms.varsel.authority.write.expiry.ExpiredVarselRepository
 import no.nav.tms.varsel.authority.write.expiry.PeriodicExpiredVarselProcessor
 import no.nav.tms.varsel.authority.write.inaktiver.InaktiverVarselSubscriber
+import no.nav.tms.varsel.authority.write.incoming.IngestBackpressure
+import no.nav.tms.varsel.authority.write.incoming.KeyedKafkaConsumer
+import no.nav.tms.varsel.authority.write.incoming.PollBuffer
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktiverer
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertProducer
+import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.write.opprett.OpprettVarselSubscriber
+import no.nav.tms.varsel.authority.write.opprett.RecentVarselIdCache
 import no.nav.tms.varsel.authority.write.opprett.VarselOpprettetProducer
 import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
 import no.nav.tms.varsel.authority.write.outgoing.PeriodicKafkaQueueProcessor
 import org.flywaydb.core.Flyway
+import java.time.Duration
 
 fun main() {
+    if (CdsTraining.enabled) {
+        CdsTraining.run()
+        return
+    }
+
     val environment = Environment()
-    val database = Postgres.connectToJdbcUrl(environment.jdbcUrl)
-    val varselRepository = WriteVarselRepository(database)
+    val pools = StartupMetrics.phase("database") {
+        DatabasePools.connect(environment.jdbcUrl, environment.databasePools)
+    }
+
+    val replica = environment.readReplica.jdbcUrl?.let { replicaUrl ->
+        StartupMetrics.phase("replica") {
+            DatabasePools.connect("replica", replicaUrl, environment.databasePools.replica)
+        }
+    }
+
+    val readRouting = ReadRouting(
+        primary = pools.api,
+        replica = replica,
+        maxLag = Duration.ofSeconds(environment.readReplica.maxLagSeconds.toLong()),
+        readAfterWriteWindow = Duration.ofSeconds(environment.readReplica.readAfterWriteSeconds.toLong())
+    )
+
+    if (environment.databaseVirtualThreads) {
+        DatabaseDispatcher.useVirtualThreads()
+        VirtualThreadPinningMonitor.start()
+    }
 
-    val eksternVarslingStatusRepository = EksternVarslingStatusRepository(database)
-    val eksternVarslingStatusUpdater = EksternVarslingStatusUpdater(
-        eksternVarslingStatusRepository,
-        varselRepository
+    val produsenter = ProdusentRegistry(pools.ingest)
+    val varselRepository = WriteVarselRepository(pools.ingest, produsenter)
+
+    val eksternVarslingStatusRepository = EksternVarslingStatusRepository(pools.ingest)
+    val eksternVarslingStatusUpdater = EksternVarslingStatusUpdater(eksternVarslingStatusRepository)
+
+    val leadership = Leadership(PodLeaderElection(), database = pools.leases)
+    val recordQueueRepository = RecordQueueRepository(
+        database = pools.ingest,
+        valueEncoding = environment.outboxValueEncoding,
+        compressionThresholdBytes = environment.outboxCompressionThresholdBytes
     )
 
-    val leaderElection = PodLeaderElection()
-    val recordQueueRepository = RecordQueueRepository(database)
+    // Tømming av utgående kø har egen pool, og konkurrerer verken med inntak eller andre bakgrunnsjobber om connections
+    val drainQueueRepository = RecordQueueRepository(
+        database = pools.outbox,
+        valueEncoding = environment.outboxValueEncoding,
+        compressionThresholdBytes = environment.outboxCompressionThresholdBytes
+    )
 
     val kafkaQueueProcessor = PeriodicKafkaQueueProcessor(
-        repository = recordQueueRepository,
-        recordProducer = KafkaProducerBuilder.stringProducer(),
-        leaderElection = leaderElection,
+        repository = drainQueueRepository,
+        producerFactory = { outboxRecordProducer(environment) },
+        leadership = leadership,
     )
 
     val varselOpprettetProducer = VarselOpprettetProducer(
@@ -54,73 +107,161 @@ fun main() {
         topicName = environment.internalVarselTopic,
     )
 
-    val expiredVarselRepository = ExpiredVarselRepository(database)
+    val expiredVarselRepository = ExpiredVarselRepository(pools.maintenance, produsenter)
+    val expiryLeases = BucketLeases(pools.leases, jobb = "utloep")
     val periodicExpiredVarselProcessor =
-        PeriodicExpiredVarselProcessor(expiredVarselRepository, varselInaktivertProducer, leaderElection)
+        PeriodicExpiredVarselProcessor(expiredVarselRepository, varselInaktivertProducer, expiryLeases)
 
     val varselArkivertProducer = VarselArkivertProducer(
         queueRepository = recordQueueRepository,
         topicName = environment.internalVarselTopic
     )
 
-    val varselArchivingRepository = VarselArkivRepository(database)
+    val varselPartisjonRepository = VarselPartisjonRepository(pools.maintenance)
+    val varselArchivingRepository = VarselArkivRepository(pools.maintenance, produsenter, varselPartisjonRepository)
+
+    val varselPartitionMaintainer = PeriodicVarselPartitionMaintainer(varselPartisjonRepository, leadership)
+
+    // Ny leder sjekker partisjoner med en gang, i stedet for å vente til neste time
+    leadership.onChange { isLeader ->
+        if (isLeader) {
+            varselPartitionMaintainer.ensureFuturePartitions()
+        }
+    }
 
+    val archivingLeases = BucketLeases(pools.leases, jobb = "arkivering")
     val varselArchiver = PeriodicVarselArchiver(
         varselArchivingRepository,
         varselArkivertProducer,
         environment.archivingThresholdDays,
-        leaderElection
+        archivingLeases
     )
 
-    val readVarselRepository = ReadVarselRepository(database)
-    val writeVarselRepository = WriteVarselRepository(database)
-    val varselInaktiverer = VarselInaktiverer(writeVarselRepository, varselInaktivertProducer)
+    val recentVarselIds = RecentVarselIdCache(maxSize = environment.varselIdCacheSize)
 
-    KafkaApplication.build {
-        kafkaConfig {
-            groupId = environment.kafkaConsumerGroupId
-            readTopics(environment.publicVarselTopic, environment.internalVarselTopic)
-        }
-        ktorModule {
-            varselApi(
-                readVarselRepository, varselInaktiverer
-            )
-        }
-        subscribers(
+    // Eksport går mot vedlikeholdspoolen, og én eksport av gangen lar arkivering og utløp beholde minst én connection
+    val readVarselRepository = ReadVarselRepository(
+        database = pools.api,
+        produsenter = produsenter,
+        readRouting = readRouting,
+        eksportDatabase = pools.maintenance,
+        maxSamtidigeEksporter = 1
+    )
+    val writeVarselRepository = WriteVarselRepository(pools.api, produsenter)
+    val varselInaktiverer = VarselInaktiverer(writeVarselRepository, varselInaktivertProducer, readRouting)
+
+    val ingestBackpressure = IngestBackpressure(
+        queueRepository = recordQueueRepository,
+        dataSource = pools.ingest.dataSource,
+        thresholds = environment.ingestBackpressure
+    )
+
+    val varselTopics = listOf(environment.publicVarselTopic, environment.internalVarselTopic)
+
+    val subscribers = { backpressure: IngestBackpressure?, coalesce: Boolean ->
+        arrayOf(
             OpprettVarselSubscriber(
                 varselRepository = varselRepository,
-                varselAktivertProducer = varselOpprettetProducer
+                varselAktivertProducer = varselOpprettetProducer,
+                recentVarselIds = recentVarselIds,
+                backpressure = backpressure
             ),
             InaktiverVarselSubscriber(
                 varselRepository = varselRepository,
-                varselInaktivertProducer = varselInaktivertProducer
+                varselInaktivertProducer = varselInaktivertProducer,
+                backpressure = backpressure
             ),
             EksternVarslingStatusOppdatertSubscriber(
-                eksternVarslingStatusUpdater = eksternVarslingStatusUpdater
+                eksternVarslingStatusUpdater = eksternVarslingStatusUpdater,
+                backpressure = backpressure,
+                coalesce = coalesce
             )
         )
+    }
+
+    // Ved nøkkelbasert prosessering eier appen konsumenten selv, og KafkaApplication leser ingen topics
+    // Hver worker har egne subscribers, slik at statuser for ekstern varsling kan slås sammen per varsel i en poll
+    val keyedConsumer = if (environment.kafkaKeyedWorkers > 0) {
+        val workerSubscribers = List(environment.kafkaKeyedWorkers) { subscribers(null, true) }
+
+        KeyedKafkaConsumer(
+            consumer = keyedVarselConsumer(environment),
+            topics = varselTopics,
+            broadcasters = workerSubscribers.map { MessageBroadcaster(*it) },
+            pollBuffers = workerSubscribers.map { it.filterIsInstance<PollBuffer>() },
+            backpressure = ingestBackpressure
+        )
+    } else {
+        null
+    }
+
+    KafkaApplication.build {
+        kafkaConfig {
+            groupId = environment.kafkaConsumerGroupId
+            if (keyedConsumer == null) {
+                readTopics(*varselTopics.toTypedArray())
+            }
+        }
+        ktorModule {
+            varselApi(
+                readVarselRepository, varselInaktiverer
+            )
+        }
+        if (keyedConsumer == null) {
+            subscribers(*subscribers(ingestBackpressure, false))
+        }
 
         healthCheck("VarselExpiryProcessor", periodicExpiredVarselProcessor::isHealthy)
         healthCheck("KafkaRecordProcessor", kafkaQueueProcessor::isHealthy)
+        healthCheck("VarselPartitionMaintainer", varselPartitionMaintainer::isHealthy)
+        healthCheck("IngestBackpressure", ingestBackpressure::isHealthy)
+        healthCheck("Leadership", leadership::isHealthy)
+        keyedConsumer?.let { healthCheck("KeyedKafkaConsumer", it::isHealthy) }
 
         onStartup {
-            Flyway.configure()
-                .dataSource(database.dataSource)
-                .load()
-                .migrate()
+            StartupMetrics.phase("migrering") {
+                Flyway.configure()
+                    .dataSource(pools.maintenance.dataSource)
+                    .load()
+                    .migrate()
+            }
+
+            StartupMetrics.phase("produsenter") {
+                produsenter.loadAll()
+            }
+
+            StartupMetrics.phase("varselIdCache") {
+                varselRepository.getVarselIdsOpprettetEtter(
+                    tidspunkt = nowAtUtc().minusHours(24),
+                    limit = environment.varselIdCacheSize
+                ).let(recentVarselIds::addAll)
+            }
         }
 
         onReady {
+            StartupMetrics.ready()
+            leadership.start()
             periodicExpiredVarselProcessor.start()
             varselArchiver.start()
+            varselPartitionMaintainer.start()
             kafkaQueueProcessor.start()
+            ingestBackpressure.start()
+            readRouting.start()
+            keyedConsumer?.start()
         }
 
         onShutdown {
             runBlocking {
+                keyedConsumer?.stop()
                 periodicExpiredVarselProcessor.stop()
                 varselArchiver.stop()
+                varselPartitionMaintainer.stop()
                 kafkaQueueProcessor.stop()
+                ingestBackpressure.stop()
+                readRouting.stop()
+                leadership.stop()
+                expiryLeases.release()
+                archivingLeases.release()
                 kafkaQueueProcessor.flushAndClose()
             }
         }
@@ -0,0 +1,177 @@
+package no.nav.tms.varsel.authority.common
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Gauge
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.common.util.config.StringEnvVar.getEnvVar
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import java.time.Duration
+import java.util.UUID
+
+// Fordeler arbeid i en jobb mellom alle pods. Varsler deles i bucketCount bøtter etter hash av varselId, og hver pod
+// leier sin rettferdige andel av bøttene. Pods som er for lenge borte mister både plass og leie, og de som har for
+// mange gir fra seg det overskytende, slik at fordelingen retter seg selv når pods kommer og går.
+class BucketLeases(
+    private val database: PostgresDatabase,
+    private val jobb: String,
+    private val bucketCount: Int = DEFAULT_BUCKET_COUNT,
+    private val leaseDuration: Duration = Duration.ofMinutes(5),
+    private val pod: String = getEnvVar("HOSTNAME", UUID.randomUUID().toString())
+) {
+    private val log = KotlinLogging.logger { }
+
+    // Fornyer leie og justerer mot rettferdig andel. Må kalles oftere enn leaseDuration for å beholde bøttene.
+    fun claim(): BucketAssignment {
+        val params = mapOf(
+            "jobb" to jobb,
+            "pod" to pod,
+            "bucketCount" to bucketCount,
+            "leaseMillis" to leaseDuration.toMillis()
+        )
+
+        database.update(seedBucketsStatement, params)
+        database.update(heartbeatStatement, params)
+        database.update(removeAbsentStatement, params)
+
+        val deltakere = database.singleOrNull(countDeltakereStatement, params) { it.int("antall") } ?: 1
+        val fairShare = (bucketCount + deltakere - 1) / maxOf(deltakere, 1)
+
+        val owned = database.list(renewStatement, params) { it.int("bucket") }.sorted().toMutableList()
+
+        if (owned.size > fairShare) {
+            database.update(releaseAboveStatement, params + ("siste" to owned[fairShare - 1]))
+            owned.subList(fairShare, owned.size).clear()
+        } else if (owned.size < fairShare) {
+            owned += database.list(claimFreeStatement, params + ("antall" to fairShare - owned.size)) { it.int("bucket") }
+        }
+
+        OWNED_BUCKETS.labelValues(jobb).set(owned.size.toDouble())
+
+        return BucketAssignment(owned.toSortedSet(), bucketCount)
+    }
+
+    // Forlenger leien på én bøtte under lange kjøringer. Gir false dersom poden ikke lenger eier bøtten, og arbeidet
+    // i den må da stoppes.
+    fun renew(bucket: Int): Boolean {
+        return database.update(
+            renewBucketStatement,
+            mapOf("jobb" to jobb, "pod" to pod, "bucket" to bucket, "leaseMillis" to leaseDuration.toMillis())
+        ) > 0
+    }
+
+    // Gir fra seg alle bøtter ved avslutning, slik at andre pods kan ta dem uten å vente på at leien går ut
+    fun release() {
+        try {
+            database.update(releaseAllStatement, mapOf("jobb" to jobb, "pod" to pod))
+            OWNED_BUCKETS.labelValues(jobb).set(0.0)
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å gi fra seg bøtter for $jobb. De blir ledige når leien går ut." }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BUCKET_COUNT = 16
+
+        private val OWNED_BUCKETS: Gauge = Gauge.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_maintenance_buckets")
+            .help("Antall bøtter denne poden leier per vedlikeholdsjobb")
+            .labelNames("jobb")
+            .register()
+    }
+}
+
+data class BucketAssignment(val buckets: Set<Int>, val bucketCount: Int) {
+    fun isEmpty() = buckets.isEmpty()
+
+    // Bøtte 0 eier også arbeid som ikke kan deles opp på varselId
+    val isCoordinator = 0 in buckets
+
+    companion object {
+        fun all(bucketCount: Int = 1) = BucketAssignment((0 until bucketCount).toSet(), bucketCount)
+    }
+}
+
+// Samme fordeling må brukes i alle spørringer som filtrerer på bøtte
+const val varselBucketExpression = "(hashtext(varselId) & 2147483647) % :bucketCount"
+
+private val seedBucketsStatement = StatementTemplate(
+    "seedBuckets",
+    """
+    insert into vedlikehold_lease(jobb, bucket)
+    select :jobb, generate_series(0, cast(:bucketCount as integer) - 1)
+    on conflict do nothing
+    """
+)
+
+private val heartbeatStatement = StatementTemplate(
+    "leaseHeartbeat",
+    """
+    insert into vedlikehold_deltaker(jobb, pod, sistSett) values(:jobb, :pod, now())
+    on conflict (jobb, pod) do update set sistSett = excluded.sistSett
+    """
+)
+
+private val removeAbsentStatement = StatementTemplate(
+    "leaseRemoveAbsent",
+    """
+    delete from vedlikehold_deltaker
+    where jobb = :jobb and sistSett < now() - cast(:leaseMillis as bigint) * interval '1 millisecond'
+    """
+)
+
+private val countDeltakereStatement = StatementTemplate(
+    "leaseCountDeltakere",
+    "select count(*) as antall from vedlikehold_deltaker where jobb = :jobb"
+)
+
+private val renewStatement = StatementTemplate(
+    "leaseRenew",
+    """
+    update vedlikehold_lease set utloper = now() + cast(:leaseMillis as bigint) * interval '1 millisecond'
+    where jobb = :jobb and eier = :pod and utloper > now()
+    returning bucket
+    """
+)
+
+private val renewBucketStatement = StatementTemplate(
+    "leaseRenewBucket",
+    """
+    update vedlikehold_lease set utloper = now() + cast(:leaseMillis as bigint) * interval '1 millisecond'
+    where jobb = :jobb and bucket = :bucket and eier = :pod and utloper > now()
+    """
+)
+
+private val releaseAboveStatement = StatementTemplate(
+    "leaseReleaseAbove",
+    """
+    update vedlikehold_lease set eier = null, utloper = null
+    where jobb = :jobb and eier = :pod and bucket > :siste
+    """
+)
+
+private val claimFreeStatement = StatementTemplate(
+    "leaseClaimFree",
+    """
+    update vedlikehold_lease set
+        eier = :pod,
+        utloper = now() + cast(:leaseMillis as bigint) * interval '1 millisecond'
+    where (jobb, bucket) in (
+        select jobb, bucket from vedlikehold_lease
+        where jobb = :jobb and (eier is null or utloper < now())
+        order by bucket
+        limit :antall
+        for update skip locked
+    )
+    returning bucket
+    """
+)
+
+private val releaseAllStatement = StatementTemplate(
+    "leaseReleaseAll",
+    """
+    with frigitt as (
+        update vedlikehold_lease set eier = null, utloper = null where jobb = :jobb and eier = :pod
+    )
+    delete from vedlikehold_deltaker where jobb = :jobb and pod = :pod
+    """
+)
@@ -0,0 +1,25 @@
+package no.nav.tms.varsel.authority.common
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.util.concurrent.Executors
+
+object DatabaseDispatcher {
+
+    @Volatile
+    var current: CoroutineDispatcher = Dispatchers.IO
+        private set
+
+    // Med virtuelle tråder er det kun størrelsen på connection-poolen som begrenser hvor mange kall som kjører samtidig.
+    fun useVirtualThreads() {
+        current = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("database-", 0).factory()
+        ).asCoroutineDispatcher()
+    }
+}
+
+suspend fun <T> withDatabaseContext(block: suspend CoroutineScope.() -> T): T =
+    withContext(DatabaseDispatcher.current, block)
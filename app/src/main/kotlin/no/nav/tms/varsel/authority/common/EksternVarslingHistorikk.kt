@@ -0,0 +1,18 @@
+package no.nav.tms.varsel.authority.common
+
+// Gir eksternVarslingStatus for varselet med hele feilhistorikken. Nye feil ligger bare i varsel_ekstern_status, og
+// legges etter feil som ble lagret i jsonb på varselet før historikken fikk egen tabell.
+fun eksternVarslingStatusMedHistorikk(varsel: String) = """
+    case
+        when $varsel.eksternVarslingStatus is null then null
+        else jsonb_set(
+            $varsel.eksternVarslingStatus,
+            '{feilhistorikk}',
+            coalesce($varsel.eksternVarslingStatus -> 'feilhistorikk', '[]'::jsonb) || coalesce((
+                select jsonb_agg(jsonb_build_object('feilmelding', historikk.feilmelding, 'tidspunkt', historikk.tidspunkt) order by historikk.id)
+                from varsel_ekstern_status as historikk
+                where historikk.varselId = $varsel.varselId and historikk.feilmelding is not null
+            ), '[]'::jsonb)
+        )
+    end
+"""
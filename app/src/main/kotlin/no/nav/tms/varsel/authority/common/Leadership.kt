@@ -0,0 +1,158 @@
+package no.nav.tms.varsel.authority.common
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Counter
+import io.prometheus.metrics.core.metrics.Gauge
+import io.prometheus.metrics.core.metrics.Histogram
+import no.nav.tms.common.kubernetes.PodLeaderElection
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.common.util.config.StringEnvVar.getEnvVar
+import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.kafka.application.AppHealth
+import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import java.time.Duration
+import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
+
+// Spør leader election i bakgrunnen og holder svaret som en leie med utløp. Jobbene leser bare siste svar, og slipper
+// å vente på leader election hver gang de kjører. Får vi ikke svar, gir poden fra seg ledelse med en gang, siden vi ikke
+// vet om en annen pod har tatt over. Leien sørger for at et gammelt svar ikke brukes hvis sjekken stopper helt opp.
+//
+// Jobber som holder på ressurser mens poden er leder, registrerer seg med onChange og starter eller stopper ved bytte.
+//
+// Med database registrerer lederen seg i vedlikehold_deltaker, slik at en ny leder kan måle hvor lenge det var uten
+// leder etter bytte.
+class Leadership(
+    private val leaderElection: PodLeaderElection,
+    private val database: PostgresDatabase? = null,
+    private val leaseDuration: Duration = Duration.ofSeconds(15),
+    private val pod: String = getEnvVar("HOSTNAME", UUID.randomUUID().toString()),
+    interval: Duration = Duration.ofSeconds(5)
+) : PeriodicJob(interval) {
+
+    private val log = KotlinLogging.logger { }
+
+    private val listeners = CopyOnWriteArrayList<suspend (Boolean) -> Unit>()
+
+    @Volatile
+    private var leader = false
+
+    @Volatile
+    private var leaseUntil = 0L
+
+    override val job = initializeJob {
+        refresh()
+    }
+
+    val isLeader: Boolean
+        get() = leader && System.nanoTime() < leaseUntil
+
+    fun onChange(listener: suspend (Boolean) -> Unit) {
+        listeners.add(listener)
+    }
+
+    suspend fun refresh() {
+        val confirmed = try {
+            leaderElection.isLeader()
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å sjekke ledelse. Gir fra oss ledelse frem til neste sjekk." }
+            false
+        }
+
+        leaseUntil = if (confirmed) System.nanoTime() + leaseDuration.toNanos() else 0L
+
+        transition(confirmed)
+
+        if (leader) {
+            registerHeartbeat()
+        }
+    }
+
+    fun isHealthy() = if (job.isActive) {
+        AppHealth.Healthy
+    } else {
+        AppHealth.Unhealthy
+    }
+
+    private suspend fun transition(nowLeader: Boolean) {
+        if (nowLeader == leader) {
+            return
+        }
+
+        leader = nowLeader
+
+        log.info { if (nowLeader) "Poden er nå leder" else "Poden er ikke lenger leder" }
+
+        LEADER.set(if (nowLeader) 1.0 else 0.0)
+        TRANSITIONS.labelValues(if (nowLeader) "leder" else "ikke_leder").inc()
+
+        if (nowLeader) {
+            measureResume()
+        }
+
+        listeners.forEach { listener ->
+            try {
+                listener(nowLeader)
+            } catch (e: Exception) {
+                log.error(e) { "Feil i håndtering av endret ledelse" }
+            }
+        }
+    }
+
+    private fun registerHeartbeat() {
+        try {
+            database?.update(leaderHeartbeatStatement, mapOf("pod" to pod))
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å registrere leder" }
+        }
+    }
+
+    private fun measureResume() {
+        try {
+            database?.singleOrNull(previousLeaderStatement, mapOf("pod" to pod)) { it.zonedDateTimeOrNull("sistSett") }
+                ?.let { sistSett -> Duration.between(sistSett, nowAtUtc()) }
+                ?.let { RESUME.observe(it.toMillis() / 1000.0) }
+
+            database?.update(removePreviousLeadersStatement, mapOf("pod" to pod))
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å måle tid uten leder" }
+        }
+    }
+
+    companion object {
+        private val LEADER: Gauge = Gauge.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_leadership_leader")
+            .help("1 når poden er leder")
+            .register()
+
+        private val TRANSITIONS: Counter = Counter.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_leadership_transition")
+            .help("Endringer i ledelse for poden")
+            .labelNames("til")
+            .register()
+
+        private val RESUME: Histogram = Histogram.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_leadership_resume_seconds")
+            .help("Tid fra forrige leder sist var aktiv til denne poden tok over")
+            .register()
+    }
+}
+
+private val leaderHeartbeatStatement = StatementTemplate(
+    "leaderHeartbeat",
+    """
+    insert into vedlikehold_deltaker(jobb, pod, sistSett) values('leder', :pod, now())
+    on conflict (jobb, pod) do update set sistSett = excluded.sistSett
+    """
+)
+
+private val previousLeaderStatement = StatementTemplate(
+    "previousLeader",
+    "select max(sistSett) as sistSett from vedlikehold_deltaker where jobb = 'leder' and pod <> :pod"
+)
+
+private val removePreviousLeadersStatement = StatementTemplate(
+    "removePreviousLeaders",
+    "delete from vedlikehold_deltaker where jobb = 'leder' and pod <> :pod"
+)
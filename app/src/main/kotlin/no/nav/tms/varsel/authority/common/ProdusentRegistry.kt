@@ -0,0 +1,89 @@
+package no.nav.tms.varsel.authority.common
+
+import kotliquery.Row
+import kotliquery.queryOf
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.DatabaseProdusent
+import java.util.concurrent.ConcurrentHashMap
+
+// Produsenter lagres én gang i egen tabell og refereres med id fra varsel. Det finnes bare noen hundre
+// produsenter, så alle holdes i minnet og samme instans gjenbrukes for hver rad som leses.
+class ProdusentRegistry(private val database: PostgresDatabase) {
+
+    private val produsentById = ConcurrentHashMap<Int, DatabaseProdusent>()
+    private val idByProdusent = ConcurrentHashMap<DatabaseProdusent, Int>()
+
+    fun idFor(produsent: DatabaseProdusent): Int {
+        return idByProdusent[produsent] ?: register(produsent)
+    }
+
+    fun produsent(id: Int): DatabaseProdusent {
+        return produsentById[id] ?: load(id)
+    }
+
+    fun loadAll() {
+        database.list {
+            queryOf("select id, cluster, namespace, appnavn from produsent")
+                .map { it.int("id") to toProdusent(it) }
+        }.forEach { (id, produsent) -> cache(id, produsent) }
+    }
+
+    // Insert gjør ingenting om produsenten allerede finnes, slik at vi ikke skriver til raden og låser den mot andre
+    // pods som registrerer samme produsent. Da hentes id-en i stedet.
+    private fun register(produsent: DatabaseProdusent): Int {
+        val params = mapOf(
+            "cluster" to produsent.cluster,
+            "namespace" to produsent.namespace,
+            "appnavn" to produsent.appnavn
+        )
+
+        val id = database.singleOrNull {
+            queryOf(
+                """
+                    insert into produsent(cluster, namespace, appnavn) values(:cluster, :namespace, :appnavn)
+                    on conflict do nothing
+                    returning id
+                """,
+                params
+            ).map { it.int("id") }
+        } ?: database.single {
+            queryOf(
+                """
+                    select id from produsent
+                    where coalesce(cluster, '') = coalesce(cast(:cluster as text), '')
+                        and namespace = :namespace
+                        and appnavn = :appnavn
+                """,
+                params
+            ).map { it.int("id") }
+        }
+
+        return cache(id, produsent)
+    }
+
+    private fun load(id: Int): DatabaseProdusent {
+        val produsent = database.single {
+            queryOf(
+                "select cluster, namespace, appnavn from produsent where id = :id",
+                mapOf("id" to id)
+            ).map(::toProdusent)
+        }
+
+        cache(id, produsent)
+
+        return produsentById.getValue(id)
+    }
+
+    private fun cache(id: Int, produsent: DatabaseProdusent): Int {
+        val interned = produsentById.putIfAbsent(id, produsent) ?: produsent
+        idByProdusent.putIfAbsent(interned, id)
+
+        return id
+    }
+
+    private fun toProdusent(row: Row) = DatabaseProdusent(
+        cluster = row.stringOrNull("cluster"),
+        namespace = row.string("namespace"),
+        appnavn = row.string("appnavn")
+    )
+}
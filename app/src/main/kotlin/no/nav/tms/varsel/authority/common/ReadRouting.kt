@@ -0,0 +1,123 @@
+package no.nav.tms.varsel.authority.common
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Counter
+import io.prometheus.metrics.core.metrics.Gauge
+import kotliquery.queryOf
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+
+// Sender lesing til replika bare når den har spilt av alt den har mottatt fra primær. Ukjent forsinkelse, eller
+// forsinkelse over maxLag, gir lesing fra primær. Standard er ingen forsinkelse i det hele tatt.
+//
+// Hvilke brukere det nylig er skrevet for huskes bare i denne poden. Varsler som opprettes eller inaktiveres via
+// kafka på en annen pod er ikke med, så det er forsinkelsen alene som hindrer at en bruker ser gammel tilstand.
+// Forsinkelsen måles hvert intervall, så det som skrives mellom to målinger kan fortsatt mangle på replika en kort
+// stund. maxLag over null bør derfor bare settes der det er akseptabelt.
+class ReadRouting(
+    private val primary: PostgresDatabase,
+    private val replica: PostgresDatabase? = null,
+    private val maxLag: Duration = Duration.ZERO,
+    private val readAfterWriteWindow: Duration = Duration.ofSeconds(30),
+    private val measureLag: () -> Double? = { replica?.let(::replicationLagSeconds) },
+    interval: Duration = Duration.ofSeconds(5)
+) : PeriodicJob(interval) {
+
+    private val log = KotlinLogging.logger { }
+
+    @Volatile
+    private var lagSeconds: Double? = null
+
+    private val recentWrites = ConcurrentHashMap<String, Long>()
+
+    override val job = initializeJob {
+        if (replica != null) {
+            sampleLag()
+            forgetExpiredWrites()
+        }
+    }
+
+    fun sampleLag() {
+        lagSeconds = try {
+            measureLag()
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å måle forsinkelse på replika. Leser fra primær frem til neste måling." }
+            null
+        }
+
+        REPLICA_LAG.set(lagSeconds ?: -1.0)
+    }
+
+    fun registerWrite(ident: String) {
+        if (replica != null) {
+            recentWrites[ident] = System.nanoTime()
+        }
+    }
+
+    fun databaseFor(ident: String): PostgresDatabase {
+        if (replica == null) {
+            return primary
+        }
+
+        val lag = lagSeconds
+
+        val reason = when {
+            lag == null -> "ukjent_forsinkelse"
+            lag > maxLag.toMillis() / 1000.0 -> "forsinkelse"
+            isRecentlyWritten(ident) -> "nylig_skrevet"
+            else -> null
+        }
+
+        return if (reason == null) {
+            READ_ROUTING.labelValues("replica", "oppdatert").inc()
+            replica
+        } else {
+            READ_ROUTING.labelValues("primary", reason).inc()
+            primary
+        }
+    }
+
+    private fun isRecentlyWritten(ident: String): Boolean {
+        val writtenAt = recentWrites[ident] ?: return false
+
+        return System.nanoTime() - writtenAt < readAfterWriteWindow.toNanos()
+    }
+
+    private fun forgetExpiredWrites() {
+        val expiredBefore = System.nanoTime() - readAfterWriteWindow.toNanos()
+
+        recentWrites.entries.removeIf { (_, writtenAt) -> writtenAt - expiredBefore < 0 }
+    }
+
+    companion object {
+        private const val REPLICA_LAG_NAME = "${VarselMetricsReporter.NAMESPACE}_replica_lag_seconds"
+        private const val READ_ROUTING_NAME = "${VarselMetricsReporter.NAMESPACE}_read_routing"
+
+        private val REPLICA_LAG: Gauge = Gauge.builder()
+            .name(REPLICA_LAG_NAME)
+            .help("Målt forsinkelse på lese-replika (-1 når den er ukjent)")
+            .register()
+
+        private val READ_ROUTING: Counter = Counter.builder()
+            .name(READ_ROUTING_NAME)
+            .help("Lesinger fordelt på database og årsak")
+            .labelNames("target", "reason")
+            .register()
+
+        // Når replika har spilt av alt den har mottatt er den à jour, selv om siste transaksjon er gammel
+        private fun replicationLagSeconds(replica: PostgresDatabase): Double? = replica.singleOrNull {
+            queryOf(
+                """
+                select case
+                    when not pg_is_in_recovery() then null
+                    when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0
+                    else extract(epoch from now() - pg_last_xact_replay_timestamp())
+                end as lag
+                """
+            ).map { it.doubleOrNull("lag") }
+        }
+    }
+}
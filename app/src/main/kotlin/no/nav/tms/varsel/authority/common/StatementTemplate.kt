@@ -0,0 +1,165 @@
+package no.nav.tms.varsel.authority.common
+
+import io.prometheus.metrics.core.metrics.Counter
+import kotliquery.Query
+import kotliquery.Row
+import kotliquery.Session
+import kotliquery.queryOf
+import kotliquery.sessionOf
+import kotliquery.using
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.common.postgres.QueryException
+import no.nav.tms.common.postgres.UniqueConstraintException
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import org.postgresql.PGStatement
+import org.postgresql.util.PSQLState
+import java.sql.PreparedStatement
+import java.sql.SQLException
+import java.time.Duration
+
+// Spørring med fast form der navngitte parametere oversettes til posisjonelle én gang. Lik SQL-tekst for hvert kall
+// gjør at pgjdbc gjenbruker statementet fra sin cache og går over til server-side prepare etter prepareThreshold.
+class StatementTemplate(val name: String, sql: String) {
+
+    private val parameterNames: List<String>
+
+    val positionalSql: String
+
+    init {
+        val names = mutableListOf<String>()
+
+        positionalSql = namedParameter.replace(sql.trimIndent()) { match ->
+            names.add(match.value.substring(1))
+            "?"
+        }
+
+        parameterNames = names
+    }
+
+    fun query(params: Map<String, Any?> = emptyMap()): Query {
+        val values = parameterNames.map { parameterName ->
+            require(params.containsKey(parameterName)) { "Mangler verdi for parameter '$parameterName' i $name" }
+            params[parameterName]
+        }
+
+        return queryOf(positionalSql, *values.toTypedArray())
+    }
+
+    companion object {
+        // Samme mønster som kotliquery, slik at postgres-cast som '::jsonb' ikke tolkes som parameter
+        private val namedParameter = Regex("(?<!:):(?!:)[a-zA-Z]\\w+")
+    }
+}
+
+// Varsel flyttes mellom partisjoner når aktiv endres. Treffer en oppdatering en rad som samtidig ble flyttet, feiler
+// den med serialiseringsfeil, og da prøver vi én gang til mot raden der den nå ligger.
+fun PostgresDatabase.update(template: StatementTemplate, params: Map<String, Any?> = emptyMap()): Int {
+    return try {
+        try {
+            execute(template, params) { it.executeUpdate() }
+        } catch (e: SQLException) {
+            if (e.sqlState == PSQLState.SERIALIZATION_FAILURE.state) {
+                execute(template, params) { it.executeUpdate() }
+            } else {
+                throw e
+            }
+        }
+    } catch (e: SQLException) {
+        if (e.sqlState == PSQLState.UNIQUE_VIOLATION.state) {
+            throw UniqueConstraintException(e)
+        } else {
+            throw QueryException("Error during 'update' query action", e)
+        }
+    }
+}
+
+fun <T> PostgresDatabase.list(
+    template: StatementTemplate,
+    params: Map<String, Any?> = emptyMap(),
+    mapper: (Row) -> T
+): List<T> {
+    return execute(template, params) { statement ->
+        statement.executeQuery().use { resultSet ->
+            Row(resultSet).map(mapper).toList()
+        }
+    }
+}
+
+fun <T> PostgresDatabase.singleOrNull(
+    template: StatementTemplate,
+    params: Map<String, Any?> = emptyMap(),
+    mapper: (Row) -> T
+): T? = list(template, params, mapper).firstOrNull()
+
+// Leser resultatet med server-side cursor, slik at bare fetchSize rader holdes i minnet av gangen. pgjdbc bruker
+// bare cursor når autocommit er av, derfor leses radene i en transaksjon. Sekvensen er bare gyldig inne i consumer.
+// idleTimeout avbryter transaksjonen dersom consumer står for lenge mellom to hentinger, for eksempel fordi en
+// klient ikke leser svaret.
+fun <T, R> PostgresDatabase.stream(
+    template: StatementTemplate,
+    params: Map<String, Any?> = emptyMap(),
+    fetchSize: Int,
+    mapper: (Row) -> T,
+    statementTimeout: Duration? = null,
+    idleTimeout: Duration? = null,
+    consumer: (Sequence<T>) -> R
+): R {
+    return using(sessionOf(dataSource)) { session: Session ->
+        session.transaction { tx ->
+            statementTimeout?.let {
+                tx.run(queryOf("set local statement_timeout = '${it.toMillis()}ms'").asExecute)
+            }
+            idleTimeout?.let {
+                tx.run(queryOf("set local idle_in_transaction_session_timeout = '${it.toMillis()}ms'").asExecute)
+            }
+
+            tx.createPreparedStatement(template.query(params)).use { statement ->
+                statement.fetchSize = fetchSize
+
+                statement.executeQuery().use { resultSet ->
+                    consumer(Row(resultSet).map(mapper))
+                }.also {
+                    StatementMetrics.registerExecution(template, statement)
+                }
+            }
+        }
+    }
+}
+
+fun PostgresDatabase.forEachRow(
+    template: StatementTemplate,
+    params: Map<String, Any?> = emptyMap(),
+    fetchSize: Int,
+    action: (Row) -> Unit
+) = stream(template, params, fetchSize, mapper = { it }) { rows -> rows.forEach(action) }
+
+private fun <T> PostgresDatabase.execute(
+    template: StatementTemplate,
+    params: Map<String, Any?>,
+    action: (PreparedStatement) -> T
+): T {
+    return using(sessionOf(dataSource)) { session: Session ->
+        session.createPreparedStatement(template.query(params)).use { statement ->
+            action(statement).also {
+                StatementMetrics.registerExecution(template, statement)
+            }
+        }
+    }
+}
+
+object StatementMetrics {
+    private const val STATEMENT_EXECUTION_NAME = "${VarselMetricsReporter.NAMESPACE}_statement_execution"
+
+    private val STATEMENT_EXECUTION: Counter = Counter.builder()
+        .name(STATEMENT_EXECUTION_NAME)
+        .help("Kjøringer av faste spørringer, fordelt på om statementet var server-side prepared")
+        .labelNames("statement", "server_prepared")
+        .register()
+
+    fun registerExecution(template: StatementTemplate, statement: PreparedStatement) {
+        val serverPrepared = statement.isWrapperFor(PGStatement::class.java) &&
+            statement.unwrap(PGStatement::class.java).isUseServerPrepare
+
+        STATEMENT_EXECUTION.labelValues(template.name, serverPrepared.toString()).inc()
+    }
+}
@@ -0,0 +1,6 @@
+package no.nav.tms.varsel.authority.common
+
+// varsel er partisjonert på opprettet, så et oppslag på varselId alene må lete i alle partisjonene. opprettet hentes
+// fra varsel_id, slik at postgres kan utelate de andre månedene når spørringen kjøres.
+const val varselIdMedPartisjon =
+    "varselId = :varselId and opprettet = (select opprettet from varsel_id where varselId = :varselId)"
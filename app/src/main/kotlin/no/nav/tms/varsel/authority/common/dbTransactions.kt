@@ -12,15 +12,11 @@ import org.postgresql.util.PSQLState
 import java.sql.SQLException
 
 fun <T> PostgresDatabase.transaction(actions: TransactionalSession.() -> T): T {
-    val session = sessionOf(dataSource)
-
-    val result: T = session.transaction {
-        it.actions()
+    return using(sessionOf(dataSource)) { session ->
+        session.transaction {
+            it.actions()
+        }
     }
-
-    session.connection.close()
-
-    return result
 }
 
 fun TransactionalSession.updateInTx(queryBuilder: () -> Query): Int {
@@ -0,0 +1,59 @@
+package no.nav.tms.varsel.authority.config
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import no.nav.tms.varsel.authority.Innhold
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.producer.ProducerConfig
+import org.flywaydb.core.Flyway
+import java.io.File
+import java.util.jar.JarFile
+
+// Treningskjøring for CDS-arkivet som lages i runtime-imaget (-XX:ArchiveClassesAtExit). Laster klassene som ellers
+// lastes ved oppstart, uten å koble til database eller kafka, og avslutter.
+object CdsTraining {
+
+    private val log = KotlinLogging.logger { }
+
+    private const val APP_PACKAGE = "no/nav/tms/varsel/"
+
+    val enabled get() = System.getProperty("cds.training").toBoolean()
+
+    fun run() {
+        val loaded = loadApplicationClasses()
+
+        jsonReader<Innhold>().readValue<Innhold>("""{"tekst":"tekst","link":"https://nav.no","tekster":[]}""")
+            .let(defaultObjectMapper()::writeValueAsString)
+
+        Flyway.configure()
+        ProducerConfig.configNames()
+        ConsumerConfig.configNames()
+
+        log.info { "Treningskjøring for CDS lastet $loaded klasser fra appen" }
+    }
+
+    private fun loadApplicationClasses(): Int {
+        val location = File(CdsTraining::class.java.protectionDomain.codeSource.location.toURI())
+
+        if (!location.isFile) {
+            return 0
+        }
+
+        val classLoader = CdsTraining::class.java.classLoader
+
+        return JarFile(location).use { jar ->
+            jar.entries().asSequence()
+                .map { it.name }
+                .filter { it.startsWith(APP_PACKAGE) && it.endsWith(".class") }
+                .count { entry ->
+                    try {
+                        Class.forName(entry.removeSuffix(".class").replace('/', '.'), false, classLoader)
+                        true
+                    } catch (e: LinkageError) {
+                        false
+                    } catch (e: ClassNotFoundException) {
+                        false
+                    }
+                }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package no.nav.tms.varsel.authority.config
+
+import com.zaxxer.hikari.HikariDataSource
+import com.zaxxer.hikari.metrics.IMetricsTracker
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory
+import io.prometheus.metrics.core.metrics.Counter
+import io.prometheus.metrics.core.metrics.GaugeWithCallback
+import io.prometheus.metrics.core.metrics.Histogram
+import java.util.concurrent.ConcurrentHashMap
+
+object DatabasePoolMetrics {
+
+    private const val POOL_CONNECTIONS_NAME = "${VarselMetricsReporter.NAMESPACE}_db_pool_connections"
+    private const val POOL_WAIT_NAME = "${VarselMetricsReporter.NAMESPACE}_db_pool_wait_seconds"
+    private const val POOL_USAGE_NAME = "${VarselMetricsReporter.NAMESPACE}_db_pool_usage_seconds"
+    private const val POOL_TIMEOUT_NAME = "${VarselMetricsReporter.NAMESPACE}_db_pool_timeout"
+
+    private val pools = ConcurrentHashMap<String, HikariDataSource>()
+
+    private val POOL_WAIT: Histogram = Histogram.builder()
+        .name(POOL_WAIT_NAME)
+        .help("Tid brukt på å vente på ledig connection fra pool")
+        .labelNames("pool")
+        .register()
+
+    private val POOL_USAGE: Histogram = Histogram.builder()
+        .name(POOL_USAGE_NAME)
+        .help("Tid en connection er lånt ut fra pool")
+        .labelNames("pool")
+        .register()
+
+    private val POOL_TIMEOUT: Counter = Counter.builder()
+        .name(POOL_TIMEOUT_NAME)
+        .help("Antall ganger det ikke ble ledig connection fra pool i tide")
+        .labelNames("pool")
+        .register()
+
+    init {
+        GaugeWithCallback.builder()
+            .name(POOL_CONNECTIONS_NAME)
+            .help("Connections i pool fordelt på tilstand")
+            .labelNames("pool", "state")
+            .callback { callback ->
+                pools.forEach { (pool, dataSource) ->
+                    dataSource.hikariPoolMXBean?.let { mxBean ->
+                        callback.call(mxBean.activeConnections.toDouble(), pool, "active")
+                        callback.call(mxBean.idleConnections.toDouble(), pool, "idle")
+                        callback.call(mxBean.threadsAwaitingConnection.toDouble(), pool, "pending")
+                        callback.call(dataSource.maximumPoolSize.toDouble(), pool, "max")
+                    }
+                }
+            }
+            .register()
+    }
+
+    fun trackerFactory(pool: String) = MetricsTrackerFactory { _, _ -> PoolTracker(pool) }
+
+    fun register(pool: String, dataSource: HikariDataSource) {
+        pools[pool] = dataSource
+    }
+
+    private class PoolTracker(private val pool: String) : IMetricsTracker {
+        override fun recordConnectionAcquiredNanos(elapsedAcquiredNanos: Long) {
+            POOL_WAIT.labelValues(pool).observe(elapsedAcquiredNanos / 1_000_000_000.0)
+        }
+
+        override fun recordConnectionUsageMillis(elapsedBorrowedMillis: Long) {
+            POOL_USAGE.labelValues(pool).observe(elapsedBorrowedMillis / 1000.0)
+        }
+
+        override fun recordConnectionTimeout() {
+            POOL_TIMEOUT.labelValues(pool).inc()
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.nav.tms.varsel.authority.config
+
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotliquery.queryOf
+import no.nav.tms.common.postgres.PostgresDatabase
+
+// Egne pooler for API, inntak fra kafka, outbox og bakgrunnsjobber. En stor arkivering eller utløpskjøring kan da bare
+// bruke opp sine egne connections, og må vente på hverandre i stedet for å ta connections som trengs for å svare brukere.
+// Outbox har egen pool så tømming av køen ikke står bak arkivering og andre jobber. Leie av bøtter og ledervalg har
+// også egen liten pool, slik at fornying aldri venter bak jobbene leien beskytter og går ut mens de kjører.
+class DatabasePools(
+    val api: PostgresDatabase,
+    val ingest: PostgresDatabase,
+    val outbox: PostgresDatabase,
+    val maintenance: PostgresDatabase,
+    val leases: PostgresDatabase
+) {
+    companion object {
+        private val log = KotlinLogging.logger { }
+
+        fun connect(jdbcUrl: String, sizes: DatabasePoolSizes) = DatabasePools(
+            api = connect("api", jdbcUrl, sizes.api),
+            ingest = connect("ingest", jdbcUrl, sizes.ingest),
+            outbox = connect("outbox", jdbcUrl, sizes.outbox),
+            maintenance = connect("maintenance", jdbcUrl, sizes.maintenance),
+            leases = connect("leases", jdbcUrl, sizes.leases)
+        ).also { it.checkConnectionBudget(sizes) }
+
+        // Størrelse og målinger settes før poolen startes. Endringer på en startet pool er ikke trådsikre.
+        fun connect(pool: String, jdbcUrl: String, size: Int): PostgresDatabase {
+            val config = HikariConfig().apply {
+                this.jdbcUrl = jdbcUrl
+                driverClassName = "org.postgresql.Driver"
+                poolName = "varsel-$pool"
+                maximumPoolSize = size
+                minimumIdle = minOf(1, size)
+                metricsTrackerFactory = DatabasePoolMetrics.trackerFactory(pool)
+                validate()
+            }
+
+            return PostgresDatabase(HikariDataSource(config)).also { database ->
+                DatabasePoolMetrics.register(pool, database.dataSource)
+
+                log.info { "Koblet til database med pool $pool på $size connections" }
+            }
+        }
+    }
+
+    // Sjekker at poolene på alle pods får plass i databasen. Feil her gir ikke stopp, men pods som skaleres opp
+    // vil etter hvert ikke få connections.
+    private fun checkConnectionBudget(sizes: DatabasePoolSizes) {
+        val available = maintenance.singleOrNull {
+            queryOf(
+                """
+                select current_setting('max_connections')::int
+                    - current_setting('superuser_reserved_connections')::int as available
+                """
+            ).map { it.int("available") }
+        } ?: return
+
+        val needed = sizes.primaryPerPod * sizes.maxPods
+
+        if (needed > available) {
+            log.error { "Pooler bruker opptil $needed connections på ${sizes.maxPods} pods, men databasen tillater $available" }
+        } else {
+            log.info { "Pooler bruker opptil $needed av $available connections på ${sizes.maxPods} pods" }
+        }
+    }
+}
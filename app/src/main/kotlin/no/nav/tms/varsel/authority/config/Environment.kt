@@ -2,6 +2,7 @@ package no.nav.tms.varsel.authority.config
 
 import no.nav.tms.common.util.config.IntEnvVar.getEnvVarAsInt
 import no.nav.tms.common.util.config.StringEnvVar.getEnvVar
+import no.nav.tms.varsel.authority.write.outgoing.RecordValueEncoding
 
 data class Environment(
     val jdbcUrl: String = jdbcUrl(),
@@ -12,14 +13,83 @@ data class Environment(
     val kafkaCredstorePassword: String = getEnvVar("KAFKA_CREDSTORE_PASSWORD"),
     val kafkaConsumerGroupId: String = getEnvVar("KAFKA_GROUP_ID"),
     val internalVarselTopic: String = "min-side.brukervarsel-v1",
-    val publicVarselTopic: String = "min-side.aapen-brukervarsel-v1"
+    val publicVarselTopic: String = "min-side.aapen-brukervarsel-v1",
+    val outboxValueEncoding: RecordValueEncoding = getEnvVar("OUTBOX_VALUE_ENCODING", "text").let(RecordValueEncoding::parse),
+    val outboxCompressionThresholdBytes: Int = getEnvVarAsInt("OUTBOX_COMPRESSION_THRESHOLD_BYTES", 2048),
+    val outboxProducerProfile: ProducerProfile = ProducerProfile(),
+    val varselIdCacheSize: Int = getEnvVarAsInt("VARSEL_ID_CACHE_SIZE", 100_000),
+    val databaseVirtualThreads: Boolean = getEnvVar("DATABASE_VIRTUAL_THREADS", "false").toBooleanStrict(),
+    val kafkaKeyedWorkers: Int = getEnvVarAsInt("KAFKA_KEYED_WORKERS", 0),
+    val kafkaKeyedMaxPollRecords: Int = getEnvVarAsInt("KAFKA_KEYED_MAX_POLL_RECORDS", 500),
+    val ingestBackpressure: BackpressureThresholds = BackpressureThresholds(),
+    val readReplica: ReadReplicaConfig = ReadReplicaConfig(),
+    val databasePools: DatabasePoolSizes = DatabasePoolSizes()
 )
 
-private fun jdbcUrl(): String {
-    val host: String = getEnvVar("DB_HOST")
+data class ProducerProfile(
+    val compressionType: String = getEnvVar("OUTBOX_PRODUCER_COMPRESSION_TYPE", "lz4"),
+    val lingerMs: Int = getEnvVarAsInt("OUTBOX_PRODUCER_LINGER_MS", 20),
+    val batchSizeBytes: Int = getEnvVarAsInt("OUTBOX_PRODUCER_BATCH_SIZE_BYTES", 256 * 1024),
+    val maxInFlightRequests: Int = getEnvVarAsInt("OUTBOX_PRODUCER_MAX_IN_FLIGHT", 5),
+    val idempotence: Boolean = getEnvVar("OUTBOX_PRODUCER_IDEMPOTENCE", "true").toBooleanStrict(),
+    val acks: String = getEnvVar("OUTBOX_PRODUCER_ACKS", "all")
+) {
+    init {
+        if (idempotence) {
+            require(acks == "all") { "Idempotent produsent krever acks=all" }
+            require(maxInFlightRequests in 1..5) { "Idempotent produsent krever max.in.flight mellom 1 og 5" }
+        }
+    }
+}
+
+data class BackpressureThresholds(
+    val throttleQueueSize: Int = getEnvVarAsInt("INGEST_THROTTLE_QUEUE_SIZE", 20_000),
+    val pauseQueueSize: Int = getEnvVarAsInt("INGEST_PAUSE_QUEUE_SIZE", 100_000),
+    val throttleQueueAgeSeconds: Int = getEnvVarAsInt("INGEST_THROTTLE_QUEUE_AGE_SECONDS", 60),
+    val pauseQueueAgeSeconds: Int = getEnvVarAsInt("INGEST_PAUSE_QUEUE_AGE_SECONDS", 300),
+    val throttlePoolPending: Int = getEnvVarAsInt("INGEST_THROTTLE_POOL_PENDING", 5),
+    val pausePoolPending: Int = getEnvVarAsInt("INGEST_PAUSE_POOL_PENDING", 20)
+) {
+    init {
+        require(throttleQueueSize <= pauseQueueSize) { "Grense for struping av kø må være lavere enn grense for pause" }
+        require(throttleQueueAgeSeconds <= pauseQueueAgeSeconds) { "Grense for struping av alder må være lavere enn grense for pause" }
+        require(throttlePoolPending <= pausePoolPending) { "Grense for struping av pool må være lavere enn grense for pause" }
+    }
+}
+
+// Lese-replika er valgfri. Uten DB_REPLICA_HOST leses alt fra primær.
+data class ReadReplicaConfig(
+    val jdbcUrl: String? = getEnvVar("DB_REPLICA_HOST", "").ifBlank { null }?.let { jdbcUrl(host = it) },
+    val maxLagSeconds: Int = getEnvVarAsInt("DB_REPLICA_MAX_LAG_SECONDS", 0),
+    val readAfterWriteSeconds: Int = getEnvVarAsInt("DB_REPLICA_READ_AFTER_WRITE_SECONDS", 30)
+)
+
+// Standardverdiene er satt så 3 pods holder seg under max_connections på db-f1-micro i dev (25, minus 3 reservert).
+// Vedlikehold har to connections, slik at arkivering og utløp kan kjøre samtidig. Prod setter større pooler i
+// nais.yaml. DB_POOL_MAX_PODS må følge replicas.max der.
+data class DatabasePoolSizes(
+    val api: Int = getEnvVarAsInt("DB_POOL_API_SIZE", 2),
+    val ingest: Int = getEnvVarAsInt("DB_POOL_INGEST_SIZE", 1),
+    val outbox: Int = getEnvVarAsInt("DB_POOL_OUTBOX_SIZE", 1),
+    val maintenance: Int = getEnvVarAsInt("DB_POOL_MAINTENANCE_SIZE", 2),
+    val leases: Int = getEnvVarAsInt("DB_POOL_LEASES_SIZE", 1),
+    val replica: Int = getEnvVarAsInt("DB_POOL_REPLICA_SIZE", 2),
+    val maxPods: Int = getEnvVarAsInt("DB_POOL_MAX_PODS", 4)
+) {
+    init {
+        require(api > 0 && ingest > 0 && outbox > 0 && maintenance > 0 && leases > 0 && replica > 0) { "Alle pooler må ha minst én connection" }
+        require(maxPods > 0) { "Antall pods må være minst én" }
+    }
+
+    // Replika er egen instans og teller ikke mot primær
+    val primaryPerPod get() = api + ingest + outbox + maintenance + leases
+}
+
+private fun jdbcUrl(host: String = getEnvVar("DB_HOST")): String {
     val name: String = getEnvVar("DB_DATABASE")
     val user: String = getEnvVar("DB_USERNAME")
     val password: String = getEnvVar("DB_PASSWORD")
+    val prepareThreshold: String = getEnvVar("DB_PREPARE_THRESHOLD", "5")
 
-    return "jdbc:postgresql://${host}/$name?user=$user&password=$password"
+    return "jdbc:postgresql://${host}/$name?user=$user&password=$password&prepareThreshold=$prepareThreshold"
 }
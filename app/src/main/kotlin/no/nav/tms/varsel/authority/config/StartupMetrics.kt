@@ -0,0 +1,42 @@
+package no.nav.tms.varsel.authority.config
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Gauge
+import java.lang.management.ManagementFactory
+
+object StartupMetrics {
+
+    private val log = KotlinLogging.logger { }
+
+    private const val STARTUP_PHASE_NAME = "${VarselMetricsReporter.NAMESPACE}_startup_phase_seconds"
+    private const val STARTUP_READY_NAME = "${VarselMetricsReporter.NAMESPACE}_startup_time_to_ready_seconds"
+
+    private val STARTUP_PHASE: Gauge = Gauge.builder()
+        .name(STARTUP_PHASE_NAME)
+        .help("Tid brukt i hver fase av oppstart")
+        .labelNames("phase")
+        .register()
+
+    private val STARTUP_READY: Gauge = Gauge.builder()
+        .name(STARTUP_READY_NAME)
+        .help("Tid fra JVM startet til appen var klar")
+        .register()
+
+    fun <T> phase(name: String, block: () -> T): T {
+        val start = System.nanoTime()
+
+        return block().also {
+            val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+
+            STARTUP_PHASE.labelValues(name).set(seconds)
+            log.info { "Oppstartsfase $name tok ${"%.3f".format(seconds)}s" }
+        }
+    }
+
+    fun ready() {
+        val seconds = ManagementFactory.getRuntimeMXBean().uptime / 1000.0
+
+        STARTUP_READY.set(seconds)
+        log.info { "Klar ${"%.3f".format(seconds)}s etter at JVM startet" }
+    }
+}
@@ -1,12 +1,16 @@
 package no.nav.tms.varsel.authority.config
 
+import io.prometheus.metrics.core.datapoints.CounterDataPoint
 import io.prometheus.metrics.core.metrics.Counter
 import no.nav.tms.token.support.user.token.verification.LevelOfAssurance
 import no.nav.tms.varsel.action.Produsent
 import no.nav.tms.varsel.action.ValidationError
 import no.nav.tms.varsel.authority.DatabaseProdusent
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde
+import no.nav.tms.varsel.authority.write.opprett.DuplikatKilde
 import no.nav.tms.varsel.action.Varseltype
+import java.util.EnumMap
+import java.util.concurrent.ConcurrentHashMap
 
 object VarselMetricsReporter {
 
@@ -16,6 +20,7 @@ object VarselMetricsReporter {
     private const val VARSEL_INAKTIVERT_NAME = "${NAMESPACE}_varsel_inaktivert"
     private const val VARSEL_ARKIVERT_NAME = "${NAMESPACE}_varsel_arkivert"
     private const val VARSEL_INVALID_NAME = "${NAMESPACE}_varsel_invalid"
+    private const val VARSEL_DUPLIKAT_NAME = "${NAMESPACE}_varsel_duplikat"
     private const val VARSEL_API_KALL = "${NAMESPACE}_varsel_api_kall"
 
 
@@ -43,32 +48,58 @@ object VarselMetricsReporter {
         .labelNames("type", "produsent_cluster", "produsent_namespace", "produsent_app", "feil")
         .register()
 
+    private val VARSEL_DUPLIKAT: Counter = Counter.builder()
+        .name(VARSEL_DUPLIKAT_NAME)
+        .help("Opprett-eventer forkastet fordi varselId allerede finnes")
+        .labelNames("kilde")
+        .register()
+
+    private val VARSEL_AKTIVERT_HANDLES = Varseltype.entries.associateWithTo(EnumMap(Varseltype::class.java)) { type ->
+        produsentHandles(VARSEL_AKTIVERT, type.lowercaseName)
+    }
+
+    private val VARSEL_INAKTIVERT_HANDLES = Varseltype.entries.associateWithTo(EnumMap(Varseltype::class.java)) { type ->
+        VarselInaktivertKilde.entries.associateWithTo(EnumMap(VarselInaktivertKilde::class.java)) { kilde ->
+            produsentHandles(VARSEL_INAKTIVERT, type.lowercaseName, trailingLabels = arrayOf(kilde.lowercaseName))
+        }
+    }
+
+    private val VARSEL_ARKIVERT_HANDLES = Varseltype.entries.associateWithTo(EnumMap(Varseltype::class.java)) { type ->
+        CounterHandles<DatabaseProdusent>(VARSEL_ARKIVERT, arrayOf(type.lowercaseName, OVERFLOW, OVERFLOW)) {
+            arrayOf(type.lowercaseName, it.namespace, it.appnavn)
+        }
+    }
+
+    private val VARSEL_INVALID_HANDLES = CounterHandles<InvalidLabels>(VARSEL_INVALID, Array(5) { OVERFLOW }) { labels ->
+        arrayOf(
+            labels.varseltype.lowercaseName,
+            labels.produsent.cluster,
+            labels.produsent.namespace,
+            labels.produsent.appnavn,
+            labels.errorTitles.sorted().joinToString(separator = ",")
+        )
+    }
+
     fun registerVarselAktivert(varseltype: Varseltype, produsent: DatabaseProdusent) {
-        VARSEL_AKTIVERT
-            .labelValues(varseltype.name.lowercase(), produsent.cluster ?: "null", produsent.namespace, produsent.appnavn)
-            .inc()
+        VARSEL_AKTIVERT_HANDLES.getValue(varseltype)[produsent].inc()
     }
 
     fun registerVarselInaktivert(varseltype: Varseltype, produsent: DatabaseProdusent, kilde: VarselInaktivertKilde) {
-        VARSEL_INAKTIVERT
-            .labelValues(varseltype.name.lowercase(), produsent.cluster ?: "null", produsent.namespace, produsent.appnavn, kilde.lowercaseName)
-            .inc()
+        VARSEL_INAKTIVERT_HANDLES.getValue(varseltype).getValue(kilde)[produsent].inc()
     }
 
     fun registerVarselArkivert(varseltype: Varseltype, produsent: DatabaseProdusent) {
-        VARSEL_ARKIVERT
-            .labelValues(varseltype.name.lowercase(), produsent.namespace, produsent.appnavn)
+        VARSEL_ARKIVERT_HANDLES.getValue(varseltype)[produsent].inc()
+    }
+
+    fun registerVarselDuplikat(kilde: DuplikatKilde) {
+        VARSEL_DUPLIKAT
+            .labelValues(kilde.lowercaseName)
             .inc()
     }
 
     fun registrerVarselInvalid(varseltype: Varseltype, produsent: Produsent, validationErrors: List<ValidationError>) {
-        val errorLabels = validationErrors.map { it.title }
-            .sorted()
-            .joinToString(separator = ",")
-
-        VARSEL_INVALID
-            .labelValues(varseltype.name.lowercase(), produsent.cluster, produsent.namespace, produsent.appnavn, errorLabels)
-            .inc()
+        VARSEL_INVALID_HANDLES[InvalidLabels(varseltype, produsent, validationErrors.map { it.title })].inc()
     }
 
     private val VARSEL_HENTET: Counter = Counter.builder()
@@ -86,6 +117,44 @@ object VarselMetricsReporter {
             )
             .inc()
     }
+
+    private const val MAX_LABEL_HANDLES = 1000
+    private const val OVERFLOW = "overflow"
+
+    private val Varseltype.lowercaseName get() = name.lowercase()
+
+    private data class InvalidLabels(
+        val varseltype: Varseltype,
+        val produsent: Produsent,
+        val errorTitles: List<String>
+    )
+
+    private fun produsentHandles(counter: Counter, type: String, trailingLabels: Array<String> = emptyArray()) =
+        CounterHandles<DatabaseProdusent>(counter, arrayOf(type, OVERFLOW, OVERFLOW, OVERFLOW, *trailingLabels)) {
+            arrayOf(type, it.cluster ?: "null", it.namespace, it.appnavn, *trailingLabels)
+        }
+
+    // Slår opp datapunktet for en label-kombinasjon én gang og gjenbruker det, slik at tellere kan økes uten
+    // nye label-arrays. Nye kombinasjoner utover taket telles under overflow for å begrense antall tidsserier.
+    private class CounterHandles<K : Any>(
+        private val counter: Counter,
+        private val overflowLabels: Array<String>,
+        private val maxSize: Int = MAX_LABEL_HANDLES,
+        private val labels: (K) -> Array<String>
+    ) {
+        private val handles = ConcurrentHashMap<K, CounterDataPoint>()
+
+        private val overflow: CounterDataPoint by lazy { counter.labelValues(*overflowLabels) }
+
+        operator fun get(key: K): CounterDataPoint {
+            return handles[key]
+                ?: if (handles.size < maxSize) {
+                    handles.computeIfAbsent(key) { counter.labelValues(*labels(it)) }
+                } else {
+                    overflow
+                }
+        }
+    }
 }
 
 enum class Source {
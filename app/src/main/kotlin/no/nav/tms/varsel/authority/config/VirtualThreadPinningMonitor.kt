@@ -0,0 +1,42 @@
+package no.nav.tms.varsel.authority.config
+
+import io.prometheus.metrics.core.metrics.Counter
+import io.prometheus.metrics.core.metrics.Histogram
+import jdk.jfr.consumer.RecordingStream
+import java.time.Duration
+
+object VirtualThreadPinningMonitor {
+
+    private const val PINNED_EVENT = "jdk.VirtualThreadPinned"
+
+    private const val PINNED_NAME = "${VarselMetricsReporter.NAMESPACE}_virtual_thread_pinned"
+    private const val PINNED_DURATION_NAME = "${VarselMetricsReporter.NAMESPACE}_virtual_thread_pinned_seconds"
+
+    private val PINNED: Counter = Counter.builder()
+        .name(PINNED_NAME)
+        .help("Antall ganger en virtuell tråd har blokkert sin bærertråd")
+        .register()
+
+    private val PINNED_DURATION: Histogram = Histogram.builder()
+        .name(PINNED_DURATION_NAME)
+        .help("Hvor lenge virtuelle tråder har blokkert sin bærertråd")
+        .register()
+
+    private var recordingStream: RecordingStream? = null
+
+    @Synchronized
+    fun start(threshold: Duration = Duration.ofMillis(10)) {
+        if (recordingStream != null) {
+            return
+        }
+
+        recordingStream = RecordingStream().apply {
+            enable(PINNED_EVENT).withThreshold(threshold)
+            onEvent(PINNED_EVENT) { event ->
+                PINNED.inc()
+                PINNED_DURATION.observe(event.duration.toNanos() / 1_000_000_000.0)
+            }
+            startAsync()
+        }
+    }
+}
@@ -2,13 +2,36 @@ package no.nav.tms.varsel.authority.config
 
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectReader
 import com.fasterxml.jackson.databind.SerializationFeature
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule
 import com.fasterxml.jackson.module.kotlin.jacksonMapperBuilder
+import com.fasterxml.jackson.module.kotlin.jacksonTypeRef
+import kotliquery.Row
 
-fun defaultObjectMapper() = jacksonMapperBuilder()
+// ObjectMapper er trådsikker etter konfigurasjon, så alle deler samme instans og dermed samme serializer-cache
+private val sharedObjectMapper: ObjectMapper = jacksonMapperBuilder()
     .addModule(JavaTimeModule())
+    .addModule(BlackbirdModule())
     .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
     .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
     .build()
     .setDefaultPropertyInclusion(JsonInclude.Include.NON_NULL)
+
+// For eventer der mottakere forventer at null-felter er med
+private val includeNullsObjectMapper: ObjectMapper = sharedObjectMapper.copy()
+    .setDefaultPropertyInclusion(JsonInclude.Include.ALWAYS)
+
+fun defaultObjectMapper(): ObjectMapper = sharedObjectMapper
+
+fun includeNullsObjectMapper(): ObjectMapper = includeNullsObjectMapper
+
+inline fun <reified T> jsonReader(): ObjectReader = defaultObjectMapper().readerFor(jacksonTypeRef<T>())
+
+// Leser jsonb-kolonnen rett fra bytene i resultatet, uten å gå via PGobject og String
+fun <T> Row.jsonb(columnLabel: String, reader: ObjectReader): T = reader.readValue(bytes(columnLabel))
+
+fun <T> Row.jsonbOrNull(columnLabel: String, reader: ObjectReader): T? =
+    bytesOrNull(columnLabel)?.let { reader.readValue<T>(it) }
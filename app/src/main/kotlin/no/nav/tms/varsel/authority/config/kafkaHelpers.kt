@@ -0,0 +1,59 @@
+package no.nav.tms.varsel.authority.config
+
+import org.apache.kafka.clients.CommonClientConfigs
+import org.apache.kafka.clients.consumer.Consumer
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.clients.producer.KafkaProducer
+import org.apache.kafka.clients.producer.Producer
+import org.apache.kafka.clients.producer.ProducerConfig
+import org.apache.kafka.common.config.SslConfigs
+import org.apache.kafka.common.serialization.ByteArraySerializer
+import org.apache.kafka.common.serialization.StringDeserializer
+import org.apache.kafka.common.serialization.StringSerializer
+import java.util.Properties
+
+// Outbox sender ByteArray-verdier med egen profil, og den nøkkelbaserte konsumenten committer selv, så ingen av dem kan
+// lages med byggerne i tms-kafka. Tilkoblingen settes likevel opp bare her, fra de samme nais-variablene som
+// byggerne leser, slik at alle klientene i appen bruker samme brokers og sertifikater.
+fun outboxRecordProducer(environment: Environment): Producer<String, ByteArray> = KafkaProducer(
+    kafkaClientConfig(environment, clientId = "tms-varsel-authority-outbox").apply {
+        put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer::class.java)
+        put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer::class.java)
+        putAll(environment.outboxProducerProfile.toProducerConfig())
+    }
+)
+
+fun keyedVarselConsumer(environment: Environment): Consumer<String, String> = KafkaConsumer(
+    kafkaClientConfig(environment, clientId = "tms-varsel-authority-keyed").apply {
+        put(ConsumerConfig.GROUP_ID_CONFIG, environment.kafkaConsumerGroupId)
+        put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java)
+        put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java)
+        put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false)
+        put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest")
+        put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, environment.kafkaKeyedMaxPollRecords)
+    }
+)
+
+private fun ProducerProfile.toProducerConfig() = mapOf(
+    ProducerConfig.COMPRESSION_TYPE_CONFIG to compressionType,
+    ProducerConfig.LINGER_MS_CONFIG to lingerMs,
+    ProducerConfig.BATCH_SIZE_CONFIG to batchSizeBytes,
+    ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION to maxInFlightRequests,
+    ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG to idempotence,
+    ProducerConfig.ACKS_CONFIG to acks
+)
+
+private fun kafkaClientConfig(environment: Environment, clientId: String) = Properties().apply {
+    put(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, environment.kafkaBrokers)
+    put(CommonClientConfigs.CLIENT_ID_CONFIG, clientId)
+    put(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG, "SSL")
+    put(SslConfigs.SSL_ENDPOINT_IDENTIFICATION_ALGORITHM_CONFIG, "")
+    put(SslConfigs.SSL_TRUSTSTORE_TYPE_CONFIG, "JKS")
+    put(SslConfigs.SSL_KEYSTORE_TYPE_CONFIG, "PKCS12")
+    put(SslConfigs.SSL_TRUSTSTORE_LOCATION_CONFIG, environment.kafkaTruststorePath)
+    put(SslConfigs.SSL_TRUSTSTORE_PASSWORD_CONFIG, environment.kafkaCredstorePassword)
+    put(SslConfigs.SSL_KEYSTORE_LOCATION_CONFIG, environment.kafkaKeystorePath)
+    put(SslConfigs.SSL_KEYSTORE_PASSWORD_CONFIG, environment.kafkaCredstorePassword)
+    put(SslConfigs.SSL_KEY_PASSWORD_CONFIG, environment.kafkaCredstorePassword)
+}
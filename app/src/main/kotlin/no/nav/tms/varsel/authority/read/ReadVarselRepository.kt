@@ -2,49 +2,59 @@ package no.nav.tms.varsel.authority.read
 
 import io.github.oshai.kotlinlogging.KotlinLogging
 import kotliquery.Row
-import kotliquery.queryOf
-import no.nav.tms.common.postgres.JsonbHelper.json
-import no.nav.tms.common.postgres.JsonbHelper.jsonOrNull
 import no.nav.tms.common.postgres.PostgresDatabase
 import no.nav.tms.varsel.action.Sensitivitet
 import no.nav.tms.varsel.authority.common.*
 import no.nav.tms.varsel.action.Varseltype
+import no.nav.tms.varsel.authority.EksternVarslingStatus
 import no.nav.tms.varsel.authority.Innhold
+import no.nav.tms.varsel.authority.config.jsonReader
+import no.nav.tms.varsel.authority.config.jsonb
+import no.nav.tms.varsel.authority.config.jsonbOrNull
 import no.nav.tms.varsel.authority.read.DetaljertAdminVarsel.Companion.resolveInaktivert
 import no.nav.tms.varsel.authority.write.inaktiver.Timerange
+import java.time.Duration
+import java.util.concurrent.Semaphore
 
 private val log = KotlinLogging.logger { }
 
-class ReadVarselRepository(private val database: PostgresDatabase) {
+private val innholdReader = jsonReader<Innhold>()
+private val kanalerReader = jsonReader<List<String>>()
+private val eksternVarslingStatusReader = jsonReader<EksternVarslingStatus>()
+private val eksternVarslingArchiveReader = jsonReader<EksternVarslingArchiveCompatible>()
+
+class ReadVarselRepository(
+    database: PostgresDatabase,
+    private val produsenter: ProdusentRegistry = ProdusentRegistry(database),
+    private val readRouting: ReadRouting = ReadRouting(database),
+    private val eksportDatabase: PostgresDatabase = database,
+    maxSamtidigeEksporter: Int = 1
+) {
+
+    // Eksport holder en connection og en åpen transaksjon så lenge klienten leser, så den går mot en egen pool, og
+    // bare et fast antall kan pågå samtidig
+    private val eksportplasser = Semaphore(maxSamtidigeEksporter)
+
+    fun reserverEksport(): Boolean = eksportplasser.tryAcquire()
+
+    fun frigiEksport() = eksportplasser.release()
 
     fun getVarselSammendragForUser(
         ident: String,
         type: Varseltype? = null,
-        aktiv: Boolean? = null
+        aktiv: Boolean? = null,
+        spraakkode: String? = null
     ): List<DatabaseVarselsammendrag> {
-        return database.list {
-            queryOf(
-                """
-                select
-                  varselId,
-                  type,
-                  aktiv,
-                  innhold,
-                  sensitivitet,
-                  eksternVarslingStatus -> 'sendt' as eksternVarslingSendt,
-                  eksternVarslingStatus -> 'kanaler' as eksternVarslingKanaler,
-                  opprettet,
-                  aktivFremTil,
-                  inaktivert,
-                  inaktivertAv
-                from varsel where ident = :ident
-                    ${if (type != null) " and type = :type " else ""}
-                    ${if (aktiv != null) " and aktiv = :aktiv " else ""}
-            """,
-                mapOf("ident" to ident, "type" to type?.name?.lowercase(), "aktiv" to aktiv)
-            )
-                .map(toVarselsammendrag())
-        }
+        return readRouting.databaseFor(ident).list(
+            varselSammendragStatements.getValue(VarselFilter(type = type != null, aktiv = aktiv != null)),
+            mapOf(
+                "ident" to ident,
+                "type" to type?.name?.lowercase(),
+                "aktiv" to aktiv,
+                "spraakkode" to spraakkode?.lowercase()
+            ),
+            toVarselsammendrag()
+        )
     }
 
     fun getDetaljertVarselForUser(
@@ -53,36 +63,19 @@ class ReadVarselRepository(private val database: PostgresDatabase) {
         aktiv: Boolean? = null,
         timeRange: Timerange?
     ): List<DetaljertVarsel> {
-        return database.list {
-            queryOf(
-                """
-                select
-                  varselId,
-                  type,
-                  aktiv,
-                  produsent,
-                  innhold,
-                  sensitivitet,
-                  eksternVarslingStatus,
-                  opprettet,
-                  aktivFremTil,
-                  inaktivert,
-                  inaktivertAv
-                from varsel where ident = :ident
-                    ${if (type != null) " and type = :type " else ""}
-                    ${if (aktiv != null) " and aktiv = :aktiv " else ""}
-                    ${if (timeRange != null) "and (opprettet between :fom and :tom or inaktivert between :fom and :tom)" else ""}
-            """,
-                mapOf(
-                    "ident" to ident,
-                    "type" to type?.name?.lowercase(),
-                    "aktiv" to aktiv,
-                    "fom" to timeRange?.fom,
-                    "tom" to timeRange?.tom
-                )
-            )
-                .map(toDetaljertVarsel())
-        }
+        return readRouting.databaseFor(ident).list(
+            detaljertVarselStatements.getValue(
+                VarselFilter(type = type != null, aktiv = aktiv != null, timeRange = timeRange != null)
+            ),
+            mapOf(
+                "ident" to ident,
+                "type" to type?.name?.lowercase(),
+                "aktiv" to aktiv,
+                "fom" to timeRange?.fom,
+                "tom" to timeRange?.tom
+            ),
+            toDetaljertVarsel()
+        )
     }
 
     fun getAlleVarselForUserIncludeArchived(
@@ -93,98 +86,63 @@ class ReadVarselRepository(private val database: PostgresDatabase) {
         val success = mutableListOf<DetaljertAdminVarsel>()
         val failed = mutableListOf<String>()
 
-        val result = database.list {
-            queryOf(
-                """
-               select varselid,
-               jsonb_exists(varsel , 'forstBehandlet') as fromLegacyJson,
-               coalesce((varsel ->> 'opprettet'), (varsel ->> 'forstBehandlet'))::timestamp with time zone as opprettet,
-               varsel ->> 'type'                                                                           as type,
-               (varsel ->> 'aktiv')::boolean                                                                                      as aktiv,
-               COALESCE(varsel -> 'innhold' ->> 'tekst', varsel ->> 'tekst')                               as tekst,
-               COALESCE(varsel -> 'innhold' ->> 'link', varsel ->> 'link')                                 as link,
-               varsel ->> 'sikkerhetsnivaa'                                                                as sikkerhetsnivaa,
-               varsel ->> 'sensitivitet'                                                                   as sensitivitet,
-               case
-                   when varsel -> 'produsent' is not null
-                       then concat(varsel -> 'produsent' ->> 'appnavn', '(', varsel -> 'produsent' ->> 'namespace', ')')
-                   else varsel ->> 'produsentApp'
-                   end                                                                                     as produsent,
-               case
-                   when varsel -> 'eksternVarslingStatus' IS NOT NULL
-                       then (varsel -> 'eksternVarslingStatus')
-                   when (varsel -> 'eksternVarslingSendt' is not null) OR (varsel -> 'eksternVarslingKanaler' is not null)
-                       then json_build_object('sendt', varsel ->> 'eksternVarslingSendt', 'kanaler',
-                                              varsel -> 'eksternVarslingKanaler')::jsonb
-                   end                                                                                     as eksternVarsling,
-        
-        
-               varsel ->> 'inaktivertAv'                                                                   as inaktivertAv,
-               
-               CASE
-                   WHEN varsel ->> 'inaktivert' IS NULL OR varsel ->> 'inaktivert' = '' OR varsel ->> 'inaktivert' = 'null'
-                        THEN NULL
-                   ELSE (varsel ->> 'inaktivert')::timestamp with time zone
-               END                                                                                         as inaktivert,
-               varsel ->> 'fristUtlopt'                                                                    as fristUtlopt,
-               true                                                                                        as arkivert
-        from varsel_arkiv
-                where ident = :ident
-                    and (
-                        coalesce((varsel ->> 'opprettet'), (varsel ->> 'forstBehandlet')) between :fom and :tom
-                        or (varsel ->> 'inaktivert' is not null and (varsel ->> 'inaktivert')::timestamp between :fom and :tom)
-                    )
-                union
-                select varselid,
-                   false                                                                as fromLegacyJson,
-                   opprettet::timestamp with time zone,
-                   type,
-                   aktiv,
-                   innhold ->> 'tekst'                                                  as tekst,
-                   innhold ->> 'link'                                                   as link,
-                   NULL                                                                 as sikkerhetsnivaa,
-                   sensitivitet                                                         as sensitivitet,
-                   concat(produsent ->> 'appnavn', '(', produsent ->> 'namespace', ')') as produsent,
-                   eksternvarslingstatus                                                as eksternVarsling,
-                   inaktivertav                                                         as inaktivertAv,
-                   CASE
-                       WHEN inaktivert IS NULL THEN NULL
-                       ELSE inaktivert::timestamp with time zone 
-                   END                                                                  as inaktivert,
-                   null                                                                 as fristUtlopt,
-                   false                                                                as arkivert
-               from varsel
-                where ident = :ident
-                  and (opprettet between :fom and :tom or inaktivert between :fom and :tom)
-                order by opprettet desc;                
-            """,
-                mapOf(
-                    "ident" to ident, "fom" to timeRange.fom, "tom" to timeRange.tom
-                )
-            ).map(toDetaljertAdminVarsel())
-        }
-        for ((adminVarsel, errorStringId) in result) {
-            if (adminVarsel != null) {
-                success.add(adminVarsel)
-            } else if (errorStringId != null) {
-                failed.add(errorStringId)
+        readRouting.databaseFor(ident).stream(
+            adminAlleVarslerStatement,
+            mapOf("ident" to ident, "fom" to timeRange.fom, "tom" to timeRange.tom),
+            ADMIN_FETCH_SIZE,
+            toDetaljertAdminVarsel()
+        ) { rows ->
+            for ((adminVarsel, errorStringId) in rows) {
+                if (adminVarsel != null) {
+                    success.add(adminVarsel)
+                } else if (errorStringId != null) {
+                    failed.add(errorStringId)
+                }
             }
         }
+
         return ArchivedAndCurrentVarsler(
             varsler = success,
             feilendeVarsler = failed
         )
     }
 
+    // Leverer hele historikken til bruker rad for rad fra en cursor. Varsler som ikke kan leses meldes til
+    // onFeilendeVarsel i stedet for å samles opp, slik at minnebruken er lik uansett hvor mange varsler bruker har.
+    // Kalles bare med plass reservert med reserverEksport.
+    fun eksporterAlleVarslerForUser(
+        ident: String,
+        fetchSize: Int = ADMIN_FETCH_SIZE,
+        onFeilendeVarsel: (String) -> Unit,
+        onVarsel: (DetaljertAdminVarsel) -> Unit
+    ) {
+        eksportDatabase.stream(
+            adminEksportStatement,
+            mapOf("ident" to ident),
+            fetchSize,
+            toDetaljertAdminVarsel(),
+            statementTimeout = EKSPORT_STATEMENT_TIMEOUT,
+            idleTimeout = EKSPORT_IDLE_TIMEOUT
+        ) { rows ->
+            for ((adminVarsel, errorStringId) in rows) {
+                if (adminVarsel != null) {
+                    onVarsel(adminVarsel)
+                } else if (errorStringId != null) {
+                    onFeilendeVarsel(errorStringId)
+                }
+            }
+        }
+    }
+
     private fun toVarselsammendrag(): (Row) -> DatabaseVarselsammendrag = {
         DatabaseVarselsammendrag(
             type = it.string("type").let(Varseltype::parse),
             varselId = it.string("varselId"),
             aktiv = it.boolean("aktiv"),
-            innhold = it.json("innhold"),
+            innholdsammendrag = it.string("innholdsammendrag"),
             sensitivitet = it.string("sensitivitet").let(Sensitivitet::parse),
             eksternVarslingSendt = it.boolean("eksternVarslingSendt"),
-            eksternVarslingKanaler = it.jsonOrNull("eksternVarslingKanaler") ?: emptyList(),
+            eksternVarslingKanaler = it.jsonbOrNull("eksternVarslingKanaler", kanalerReader) ?: emptyList(),
             opprettet = it.zonedDateTime("opprettet"),
             aktivFremTil = it.zonedDateTimeOrNull("aktivFremTil"),
             inaktivert = it.zonedDateTimeOrNull("inaktivert")
@@ -196,10 +154,10 @@ class ReadVarselRepository(private val database: PostgresDatabase) {
             type = it.string("type").let(Varseltype::parse),
             varselId = it.string("varselId"),
             aktiv = it.boolean("aktiv"),
-            produsent = it.json("produsent"),
-            innhold = it.json("innhold"),
+            produsent = produsenter.produsent(it.int("produsentId")),
+            innhold = it.jsonb("innhold", innholdReader),
             sensitivitet = it.string("sensitivitet").let(Sensitivitet::parse),
-            eksternVarsling = it.jsonOrNull("eksternVarslingStatus"),
+            eksternVarsling = it.jsonbOrNull("eksternVarslingStatus", eksternVarslingStatusReader),
             opprettet = it.zonedDateTime("opprettet"),
             aktivFremTil = it.zonedDateTimeOrNull("aktivFremTil"),
             inaktivert = it.zonedDateTimeOrNull("inaktivert"),
@@ -214,7 +172,7 @@ class ReadVarselRepository(private val database: PostgresDatabase) {
         try {
 
             val readEksternVarsling: EksternVarslingArchiveCompatible? =
-                it.jsonOrNull("eksternVarsling")
+                it.jsonbOrNull("eksternVarsling", eksternVarslingArchiveReader)
 
             val varselType = it.string("type").let(Varseltype::parse)
 
@@ -238,7 +196,185 @@ class ReadVarselRepository(private val database: PostgresDatabase) {
         Pair(adminVarsel, errorStringId)
     }
 
+    companion object {
+        private const val ADMIN_FETCH_SIZE = 500
+        private val EKSPORT_STATEMENT_TIMEOUT = Duration.ofSeconds(30)
+        private val EKSPORT_IDLE_TIMEOUT = Duration.ofSeconds(60)
+    }
+
+}
+
+// Én fast spørring per kombinasjon av filtre. Et valgfritt filter skrevet som (:aktiv is null or aktiv = :aktiv) gir en
+// generisk plan som ikke kan utelate partisjoner, mens aktiv = :aktiv kan det.
+private data class VarselFilter(val type: Boolean, val aktiv: Boolean, val timeRange: Boolean = false) {
+    val sql get() = listOfNotNull(
+        "and type = :type".takeIf { type },
+        "and aktiv = :aktiv".takeIf { aktiv },
+        "and (opprettet between :fom and :tom or inaktivert between :fom and :tom)".takeIf { timeRange }
+    ).joinToString(" ")
+
+    val navn get() = listOfNotNull("type".takeIf { type }, "aktiv".takeIf { aktiv }, "tidsrom".takeIf { timeRange })
+        .joinToString(",", prefix = "[", postfix = "]")
+
+    companion object {
+        fun alle(medTimeRange: Boolean) = listOf(true, false).flatMap { type ->
+            listOf(true, false).flatMap { aktiv ->
+                listOf(true, false)
+                    .filter { medTimeRange || !it }
+                    .map { timeRange -> VarselFilter(type, aktiv, timeRange) }
+            }
+        }
+    }
+}
+
+private fun filterStatements(name: String, medTimeRange: Boolean, sql: (String) -> String) =
+    VarselFilter.alle(medTimeRange).associateWith { filter ->
+        StatementTemplate("$name${filter.navn}", sql(filter.sql))
+    }
+
+// Tekst på ønsket språk, ellers default-teksten, velges her og returneres som ferdig json for innhold i sammendraget
+private val varselSammendragStatements = filterStatements("varselSammendrag", medTimeRange = false) { filter ->
+    """
+    select
+      varselId,
+      type,
+      aktiv,
+      json_build_object(
+        'spraakkode', coalesce(valgtTekst.spraakkode, 'nb'),
+        'tekst', coalesce(valgtTekst.tekst, innhold ->> 'tekst'),
+        'link', innhold -> 'link'
+      )::text as innholdsammendrag,
+      sensitivitet,
+      eksternVarslingStatus -> 'sendt' as eksternVarslingSendt,
+      eksternVarslingStatus -> 'kanaler' as eksternVarslingKanaler,
+      opprettet,
+      aktivFremTil,
+      inaktivert,
+      inaktivertAv
+    from varsel
+      left join lateral (
+        select
+          tekst ->> 'spraakkode' as spraakkode,
+          tekst ->> 'tekst' as tekst
+        from jsonb_array_elements(innhold -> 'tekster') with ordinality as tekster(tekst, posisjon)
+        order by
+          lower(tekst ->> 'spraakkode') = :spraakkode::text desc nulls last,
+          (tekst ->> 'default')::boolean desc nulls last,
+          posisjon
+        limit 1
+      ) valgtTekst on true
+    where ident = :ident $filter
+    """
+}
+
+private val detaljertVarselStatements = filterStatements("detaljertVarsel", medTimeRange = true) { filter ->
+    """
+    select
+      varselId,
+      type,
+      aktiv,
+      produsentId,
+      innhold,
+      sensitivitet,
+      ${eksternVarslingStatusMedHistorikk("varsel")} as eksternVarslingStatus,
+      opprettet,
+      aktivFremTil,
+      inaktivert,
+      inaktivertAv
+    from varsel
+    where ident = :ident $filter
+    """
 }
 
+// Kolonnene admin-visningen leser fra arkivet, der varselet kan ligge både i gammelt og nytt json-format
+private val adminArkivKolonner = """
+    select varselid,
+    jsonb_exists(varsel , 'forstBehandlet') as fromLegacyJson,
+    coalesce((varsel ->> 'opprettet'), (varsel ->> 'forstBehandlet'))::timestamp with time zone as opprettet,
+    varsel ->> 'type'                                                                           as type,
+    (varsel ->> 'aktiv')::boolean                                                                                      as aktiv,
+    COALESCE(varsel -> 'innhold' ->> 'tekst', varsel ->> 'tekst')                               as tekst,
+    COALESCE(varsel -> 'innhold' ->> 'link', varsel ->> 'link')                                 as link,
+    varsel ->> 'sikkerhetsnivaa'                                                                as sikkerhetsnivaa,
+    varsel ->> 'sensitivitet'                                                                   as sensitivitet,
+    case
+        when varsel -> 'produsent' is not null
+            then concat(varsel -> 'produsent' ->> 'appnavn', '(', varsel -> 'produsent' ->> 'namespace', ')')
+        else varsel ->> 'produsentApp'
+        end                                                                                     as produsent,
+    case
+        when varsel -> 'eksternVarslingStatus' IS NOT NULL
+            then (varsel -> 'eksternVarslingStatus')
+        when (varsel -> 'eksternVarslingSendt' is not null) OR (varsel -> 'eksternVarslingKanaler' is not null)
+            then json_build_object('sendt', varsel ->> 'eksternVarslingSendt', 'kanaler',
+                                   varsel -> 'eksternVarslingKanaler')::jsonb
+        end                                                                                     as eksternVarsling,
+    varsel ->> 'inaktivertAv'                                                                   as inaktivertAv,
+    CASE
+        WHEN varsel ->> 'inaktivert' IS NULL OR varsel ->> 'inaktivert' = '' OR varsel ->> 'inaktivert' = 'null'
+             THEN NULL
+        ELSE (varsel ->> 'inaktivert')::timestamp with time zone
+    END                                                                                         as inaktivert,
+    varsel ->> 'fristUtlopt'                                                                    as fristUtlopt,
+    true                                                                                        as arkivert
+"""
+
+private val adminVarselKolonner = """
+    select varselid,
+       false                                                                as fromLegacyJson,
+       opprettet::timestamp with time zone,
+       type,
+       aktiv,
+       innhold ->> 'tekst'                                                  as tekst,
+       innhold ->> 'link'                                                   as link,
+       NULL                                                                 as sikkerhetsnivaa,
+       sensitivitet                                                         as sensitivitet,
+       concat(produsent.appnavn, '(', produsent.namespace, ')')             as produsent,
+       ${eksternVarslingStatusMedHistorikk("varsel")}                       as eksternVarsling,
+       inaktivertav                                                         as inaktivertAv,
+       CASE
+           WHEN inaktivert IS NULL THEN NULL
+           ELSE inaktivert::timestamp with time zone
+       END                                                                  as inaktivert,
+       null                                                                 as fristUtlopt,
+       false                                                                as arkivert
+"""
+
+private val adminAlleVarslerStatement = StatementTemplate(
+    "adminAlleVarsler",
+    """
+    $adminArkivKolonner
+    from varsel_arkiv
+    where ident = :ident
+      and (
+        coalesce((varsel ->> 'opprettet'), (varsel ->> 'forstBehandlet')) between :fom and :tom
+        or (varsel ->> 'inaktivert' is not null and (varsel ->> 'inaktivert')::timestamp between :fom and :tom)
+      )
+    union
+    $adminVarselKolonner
+    from varsel
+      join produsent on produsent.id = varsel.produsentId
+    where ident = :ident
+      and (opprettet between :fom and :tom or inaktivert between :fom and :tom)
+    order by opprettet desc
+    """
+)
+
+// Union all uten sortering, slik at postgres kan levere rader fortløpende til cursoren i stedet for å samle opp og
+// sortere hele historikken før første rad
+private val adminEksportStatement = StatementTemplate(
+    "adminEksport",
+    """
+    $adminVarselKolonner
+    from varsel
+      join produsent on produsent.id = varsel.produsentId
+    where ident = :ident
+    union all
+    $adminArkivKolonner
+    from varsel_arkiv
+    where ident = :ident
+    """
+)
+
 fun Row.booleanOrNull(columnLabel: String): Boolean? =
     this.anyOrNull(columnLabel) as? Boolean
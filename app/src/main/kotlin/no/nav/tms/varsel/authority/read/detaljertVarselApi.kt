@@ -4,13 +4,12 @@ import io.ktor.server.plugins.*
 import io.ktor.server.request.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.action.Varseltype.*
 import no.nav.tms.varsel.authority.config.Source
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.authority.write.inaktiver.Timerange
+import no.nav.tms.varsel.authority.common.withDatabaseContext
 
 fun Route.detaljertVarselApi(readRepository: ReadVarselRepository) {
 
@@ -18,7 +17,7 @@ fun Route.detaljertVarselApi(readRepository: ReadVarselRepository) {
         ident: String,
         type: Varseltype? = null,
         aktiv: Boolean? = null,
-    ) = withContext(Dispatchers.IO) {
+    ) = withDatabaseContext {
         VarselMetricsReporter.registerVarselHentet(type, Source.SAKSBEHANDLER)
 
         call.respond(readRepository.getDetaljertVarselForUser(ident, type = type, aktiv = aktiv, timeRange = null))
@@ -1,49 +1,31 @@
 package no.nav.tms.varsel.authority.read
 
 import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonRawValue
 import no.nav.tms.varsel.authority.*
 import no.nav.tms.varsel.action.Sensitivitet
-import no.nav.tms.varsel.action.Tekst
 import no.nav.tms.varsel.action.Varseltype
 import java.time.ZonedDateTime
 
-private const val defaultSpraakkode = "nb"
-
 data class DatabaseVarselsammendrag(
     val type: Varseltype,
     val varselId: String,
     val aktiv: Boolean,
-    val innhold: Innhold,
+    val innholdsammendrag: String,
     val eksternVarslingSendt: Boolean,
     val eksternVarslingKanaler: List<String>,
     val opprettet: ZonedDateTime,
     val aktivFremTil: ZonedDateTime?,
     val inaktivert: ZonedDateTime?,
     val sensitivitet: Sensitivitet
-) {
-    fun tekstOrDefault(spraakkode: String?): Tekst {
-        return if (innhold.tekster.isEmpty()) {
-            Tekst(
-                spraakkode = defaultSpraakkode,
-                tekst = innhold.tekst,
-                default = true
-            )
-        } else if (innhold.tekster.size == 1) {
-            innhold.tekster.first()
-        } else if (spraakkode == null) {
-            innhold.tekster.first { it.default }
-        } else {
-            innhold.tekster.find { it.spraakkode.lowercase() == spraakkode.lowercase() }
-                ?: innhold.tekster.first { it.default }
-        }
-    }
-}
+)
 
+// Innhold er ferdig rendret json fra databasen, og sendes videre uten å deserialiseres
 data class Varselsammendrag(
     val type: Varseltype,
     val varselId: String,
     val aktiv: Boolean,
-    val innhold: Innholdsammendrag?,
+    @get:JsonRawValue val innhold: String?,
     val eksternVarslingSendt: Boolean,
     val eksternVarslingKanaler: List<String>,
     val opprettet: ZonedDateTime,
@@ -51,12 +33,6 @@ data class Varselsammendrag(
     val inaktivert: ZonedDateTime?,
 )
 
-data class Innholdsammendrag(
-    val spraakkode: String,
-    val tekst: String,
-    val link: String?
-)
-
 data class DetaljertVarsel(
     val type: Varseltype,
     val varselId: String,
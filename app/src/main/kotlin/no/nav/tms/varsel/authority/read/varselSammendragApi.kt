@@ -6,14 +6,13 @@ import io.ktor.server.plugins.NotFoundException
 import io.ktor.server.request.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
 import no.nav.tms.token.support.user.token.verification.LevelOfAssurance
 import no.nav.tms.token.support.user.token.verification.UserPrincipal
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.authority.config.Source.BRUKER
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.action.Sensitivitet
+import no.nav.tms.varsel.authority.common.withDatabaseContext
 
 fun Route.varselSammendragApi(readRepository: ReadVarselRepository) {
 
@@ -21,13 +20,14 @@ fun Route.varselSammendragApi(readRepository: ReadVarselRepository) {
         user: UserPrincipal,
         type: Varseltype? = null,
         aktiv: Boolean? = null
-    ) = withContext(Dispatchers.IO) {
+    ) = withDatabaseContext {
 
-        val varsler = readRepository.getVarselSammendragForUser(user.ident, type = type, aktiv = aktiv)
-            .toSammendrag(
-                maskerSensitive = loaIsLowerThanHigh(user),
-                spraakkode = call.request.preferertSpraak
-            )
+        val varsler = readRepository.getVarselSammendragForUser(
+            ident = user.ident,
+            type = type,
+            aktiv = aktiv,
+            spraakkode = call.request.preferertSpraak
+        ).toSammendrag(maskerSensitive = loaIsLowerThanHigh(user))
 
         VarselMetricsReporter.registerVarselHentet(type,BRUKER,user.levelOfAssurance)
         call.respond(varsler)
@@ -82,28 +82,12 @@ private val ApplicationCall.user get() = principal<UserPrincipal>()
 
 private fun loaIsLowerThanHigh(user: UserPrincipal) = user.levelOfAssurance != LevelOfAssurance.High
 
-private fun List<DatabaseVarselsammendrag>.toSammendrag(
-    maskerSensitive: Boolean,
-    spraakkode: String? = null
-) = map {
-
-    val innholdsammendrag = if (maskerSensitive && it.sensitivitet == Sensitivitet.High) {
-        null
-    } else {
-        val tekst = it.tekstOrDefault(spraakkode)
-
-        Innholdsammendrag(
-            spraakkode = tekst.spraakkode,
-            tekst = tekst.tekst,
-            link = it.innhold.link
-        )
-    }
-
+private fun List<DatabaseVarselsammendrag>.toSammendrag(maskerSensitive: Boolean) = map {
     Varselsammendrag(
         type = it.type,
         varselId = it.varselId,
         aktiv = it.aktiv,
-        innhold = innholdsammendrag,
+        innhold = if (maskerSensitive && it.sensitivitet == Sensitivitet.High) null else it.innholdsammendrag,
         eksternVarslingSendt = it.eksternVarslingSendt,
         eksternVarslingKanaler = it.eksternVarslingKanaler,
         opprettet = it.opprettet,
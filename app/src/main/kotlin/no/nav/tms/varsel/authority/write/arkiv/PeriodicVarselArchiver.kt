@@ -1,8 +1,8 @@
 package no.nav.tms.varsel.authority.write.arkiv
 
 import io.github.oshai.kotlinlogging.KotlinLogging
-import no.nav.tms.common.kubernetes.PodLeaderElection
 import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.varsel.authority.common.BucketLeases
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import java.time.Duration
@@ -11,27 +11,36 @@ class PeriodicVarselArchiver(
     private val varselArchivingRepository: VarselArkivRepository,
     private val varselArkivertProducer: VarselArkivertProducer,
     private val ageThresholdDays: Int,
-    private val leaderElection: PodLeaderElection,
+    private val leases: BucketLeases,
     interval: Duration = Duration.ofSeconds(10)
 ): PeriodicJob(interval) {
 
     private val log = KotlinLogging.logger {}
 
     override val job = initializeJob {
-        if (leaderElection.isLeader()) {
-            archiveOldVarsler()
-        }
+        archiveOldVarsler()
     }
 
     private fun archiveOldVarsler() {
         val thresholdDate = nowAtUtc().minusDays(ageThresholdDays.toLong())
 
         try {
-            varselArchivingRepository.archiveOldVarsler(thresholdDate)
-                .forEach { arkivertVarsel ->
+            val assignment = leases.claim()
+
+            if (assignment.isEmpty()) {
+                return
+            }
+
+            varselArchivingRepository.archiveOldVarsler(
+                dateThreshold = thresholdDate,
+                assignment = assignment,
+                stillOwns = leases::renew
+            ) { arkiverteVarsler ->
+                arkiverteVarsler.forEach { arkivertVarsel ->
                     varselArkivertProducer.varselArkivert(arkivertVarsel)
                     VarselMetricsReporter.registerVarselArkivert(arkivertVarsel.type, arkivertVarsel.produsent)
                 }
+            }
 
         } catch (e: Exception) {
             log.error(e) { "Fikk feil mot databasen ved arkivering av beskjed. Forsøker igjen senere." }
@@ -0,0 +1,52 @@
+package no.nav.tms.varsel.authority.write.arkiv
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.varsel.authority.common.Leadership
+import no.nav.tms.kafka.application.AppHealth
+import java.time.Duration
+import java.time.YearMonth
+import java.time.ZoneOffset
+
+// Sørger for at månedspartisjoner for varsel finnes i god tid, slik at nye varsler ikke havner i default-partisjonen
+class PeriodicVarselPartitionMaintainer(
+    private val partisjonRepository: VarselPartisjonRepository,
+    private val leadership: Leadership,
+    private val monthsAhead: Long = 3,
+    interval: Duration = Duration.ofHours(1)
+) : PeriodicJob(interval) {
+
+    private val log = KotlinLogging.logger { }
+
+    override val job = initializeJob {
+        if (leadership.isLeader) {
+            ensureFuturePartitions()
+        }
+    }
+
+    fun ensureFuturePartitions() {
+        try {
+            val current = YearMonth.now(ZoneOffset.UTC)
+            val existing = partisjonRepository.maanedspartisjoner().map { it.maaned }.toSet()
+
+            (0..monthsAhead)
+                .map { current.plusMonths(it) }
+                .filterNot { it in existing }
+                .forEach {
+                    if (partisjonRepository.opprettMaanedspartisjon(it)) {
+                        log.info { "Opprettet partisjon for varsler i $it" }
+                    } else {
+                        log.warn { "Fikk ikke lås for å opprette partisjon for varsler i $it. Forsøker igjen senere." }
+                    }
+                }
+        } catch (e: Exception) {
+            log.error(e) { "Feil ved opprettelse av nye partisjoner for varsel. Forsøker igjen senere." }
+        }
+    }
+
+    fun isHealthy() = if (job.isActive) {
+        AppHealth.Healthy
+    } else {
+        AppHealth.Unhealthy
+    }
+}
@@ -1,5 +1,6 @@
 package no.nav.tms.varsel.authority.write.arkiv
 
+import io.github.oshai.kotlinlogging.KotlinLogging
 import kotliquery.Row
 import kotliquery.queryOf
 import no.nav.tms.common.postgres.JsonbHelper.json
@@ -11,58 +12,205 @@ import no.nav.tms.varsel.authority.*
 import no.nav.tms.varsel.authority.common.*
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde
+import java.time.YearMonth
+import java.time.ZoneOffset
 import java.time.ZonedDateTime
 
-class VarselArkivRepository(private val database: PostgresDatabase) {
+private val log = KotlinLogging.logger { }
 
-    fun archiveOldVarsler(dateThreshold: ZonedDateTime): List<ArkivVarsel> {
+class VarselArkivRepository(
+    private val database: PostgresDatabase,
+    private val produsenter: ProdusentRegistry = ProdusentRegistry(database),
+    private val partisjoner: VarselPartisjonRepository = VarselPartisjonRepository(database)
+) {
 
-        val archivableVarsler = getVarslerOlderThanThreshold(dateThreshold)
+    // Hele måneder før terskelen arkiveres som partisjoner, av poden som eier bøtte 0. Det som gjenstår i måneden
+    // terskelen faller i, og i default-partisjonen, arkiveres rad for rad i bøttene poden har fått tildelt. Varsler
+    // hentes i vinduer på windowSize etter varselId, og hvert vindu arkiveres i én kort transaksjon før det gis videre
+    // til onArchived. Vi holder dermed aldri mer enn én connection, og ingen transaksjon står åpen mens resten av
+    // måneden leses. Varsler som allerede ligger i arkivet gis ikke videre på nytt. stillOwns kalles før hvert vindu,
+    // og forlenger leien på bøtten. Har poden mistet bøtten, stopper arbeidet i den, slik at to pods ikke arkiverer det
+    // samme samtidig.
+    fun archiveOldVarsler(
+        dateThreshold: ZonedDateTime,
+        assignment: BucketAssignment = BucketAssignment.all(),
+        windowSize: Int = ARCHIVE_WINDOW_SIZE,
+        stillOwns: (bucket: Int) -> Boolean = { true },
+        onArchived: (List<ArkivVarsel>) -> Unit
+    ): Int {
+        val thresholdMonth = YearMonth.from(dateThreshold.withZoneSameInstant(ZoneOffset.UTC))
 
-        if (archivableVarsler.isNotEmpty()) {
-            insertArkivVarsler(archivableVarsler)
-            deleteVarsler(archivableVarsler.map { it.varselId })
+        val archivedPartitions = if (assignment.isCoordinator) {
+            archiveAgedPartitions(thresholdMonth, windowSize, { stillOwns(COORDINATOR_BUCKET) }, onArchived)
+        } else {
+            0
         }
 
-        return archivableVarsler
-    }
+        val archivedRows = assignment.buckets.sumOf { bucket ->
+            inWindows(
+                fetch = { sisteId ->
+                    if (!stillOwns(bucket)) {
+                        log.info { "Mistet bøtte $bucket under arkivering. Stopper arbeidet i bøtten." }
+                        return@inWindows emptyList()
+                    }
 
-    private fun getVarslerOlderThanThreshold(dateThreshold: ZonedDateTime): List<ArkivVarsel> {
-        return database.list {
-            queryOf(
-                "select * from varsel where opprettet < :threshold",
-                mapOf("threshold" to dateThreshold)
-            ).map(toArchiveVarsel())
+                    database.list(
+                        oldVarslerStatement,
+                        mapOf(
+                            "threshold" to dateThreshold,
+                            "maanedStart" to thresholdMonth.atDay(1).atStartOfDay(ZoneOffset.UTC),
+                            "bucketCount" to assignment.bucketCount,
+                            "bucket" to bucket,
+                            "sisteId" to sisteId,
+                            "antall" to windowSize
+                        ),
+                        toArchiveVarsel()
+                    )
+                },
+                idOf = ArkivVarsel::varselId,
+                archive = { window ->
+                    archive(window, deleteSql = "delete from varsel where varselId = any(:varselIds)")
+                        .also { if (it.isNotEmpty()) onArchived(it) }
+                        .size
+                }
+            )
         }
+
+        return archivedPartitions + archivedRows
     }
 
-    private fun insertArkivVarsler(varsler: List<ArkivVarsel>) {
-        database.batchUpdate(
-            """
-                insert into varsel_arkiv(varselId, ident, varsel, arkivert)
-                values(:varselId, :ident, :varsel, :arkivert)
-                on conflict do nothing
-            """,
-            varsler.map {
-                mapOf(
-                    "varselId" to it.varselId,
-                    "ident" to it.ident,
-                    "varsel" to it.toJsonb(),
-                    "arkivert" to nowAtUtc(),
+    // Partisjonen kopieres til arkivet mens den fortsatt er koblet til, slik at varslene hele tiden finnes i enten
+    // varsel eller varsel_arkiv. Deretter kobles den fra, og varsel_id og ekstern status ryddes før partisjonen
+    // slettes. Endringer på et varsel etter at det er kopiert kommer ikke med i arkivet, men månedene vi arkiverer
+    // her ligger uansett godt forbi terskelen. Blir vi avbrutt, starter neste runde på nytt med partisjonen, og
+    // varsler som allerede er arkivert hoppes over.
+    private fun archiveAgedPartitions(
+        thresholdMonth: YearMonth,
+        windowSize: Int,
+        stillCoordinator: () -> Boolean,
+        onArchived: (List<ArkivVarsel>) -> Unit
+    ): Int {
+        return partisjoner.maanedspartisjoner()
+            .filter { it.maaned < thresholdMonth }
+            .sumOf { partisjon ->
+                val statement = partitionWindowStatement(partisjon)
+                var mistetBoette = false
+
+                val archived = inWindows(
+                    fetch = { sisteId ->
+                        if (!stillCoordinator()) {
+                            mistetBoette = true
+                            return@inWindows emptyList()
+                        }
+
+                        database.list(statement, mapOf("sisteId" to sisteId, "antall" to windowSize), toArchiveVarsel())
+                    },
+                    idOf = ArkivVarsel::varselId,
+                    archive = { window ->
+                        archive(window, deleteSql = null)
+                            .also { if (it.isNotEmpty()) onArchived(it) }
+                            .size
+                    }
+                )
+
+                if (mistetBoette || !stillCoordinator()) {
+                    log.info { "Mistet bøtte $COORDINATOR_BUCKET under arkivering av ${partisjon.navn}. Overlater partisjonen til ny eier." }
+                    return@sumOf archived
+                }
+
+                if (partisjon.tilkoblet && !partisjoner.kobleFra(partisjon)) {
+                    log.warn { "Arkiverte $archived varsler fra ${partisjon.navn}, men fikk ikke lås for å koble fra partisjonen" }
+                    return@sumOf archived
+                }
+
+                // En frakoblet partisjon har ikke lenger triggeren som holder varsel_id oppdatert
+                val idStatement = partitionIdStatement(partisjon)
+
+                inWindows(
+                    fetch = { sisteId ->
+                        database.list(idStatement, mapOf("sisteId" to sisteId, "antall" to windowSize)) {
+                            it.string("varselId")
+                        }
+                    },
+                    idOf = { it },
+                    archive = { varselIds ->
+                        deleteReferences(varselIds)
+                        0
+                    }
                 )
+
+                if (!stillCoordinator()) {
+                    log.info { "Mistet bøtte $COORDINATOR_BUCKET før ${partisjon.navn} ble slettet. Overlater partisjonen til ny eier." }
+                    return@sumOf archived
+                }
+
+                if (partisjoner.slett(partisjon)) {
+                    log.info { "Arkiverte $archived varsler fra ${partisjon.navn} og slettet partisjonen" }
+                } else {
+                    log.warn { "Arkiverte $archived varsler fra ${partisjon.navn}, men fikk ikke lås for å slette partisjonen" }
+                }
+
+                archived
             }
-        )
     }
 
-    private fun deleteVarsler(varselIds: List<String>) {
+    // Går gjennom vinduer i varselId-rekkefølge til et vindu er tomt
+    private fun <T> inWindows(
+        fetch: (sisteId: String) -> List<T>,
+        idOf: (T) -> String,
+        archive: (List<T>) -> Int
+    ): Int {
+        var sisteId = ""
+        var archived = 0
 
-        database.update {
-            val varselIdArray = it.createArrayOf("VARCHAR", varselIds)
+        while (true) {
+            val window = fetch(sisteId)
 
-            queryOf(
-                "delete from varsel where varselId = any(:varselIds)",
-                mapOf("varselIds" to varselIdArray)
-            )
+            if (window.isEmpty()) {
+                return archived
+            }
+
+            archived += archive(window)
+            sisteId = idOf(window.last())
+        }
+    }
+
+    // Skriver varslene som ikke allerede er arkivert, og sletter hele vinduet med deleteSql i samme transaksjon.
+    // Hvilke som er nye avgjøres av on conflict, slik at et varsel bare gis videre én gang selv om to pods skulle
+    // arkivere det samtidig. Historikken er med i arkivert eksternVarslingStatus, og slettes etter varselet i en egen
+    // spørring, slik at statuser som ble lagret mens vi ventet på lås på varselet også kommer med. Gir varslene som
+    // ble arkivert nå.
+    private fun archive(varsler: List<ArkivVarsel>, deleteSql: String?): List<ArkivVarsel> {
+        val params = mapOf("varselIds" to varsler.map { it.varselId }.toTypedArray())
+
+        return database.transaction {
+            val nye = run(
+                queryOf(
+                    insertArkivSql,
+                    mapOf(
+                        "varselIds" to varsler.map { it.varselId }.toTypedArray(),
+                        "identer" to varsler.map { it.ident }.toTypedArray(),
+                        "varsler" to varsler.map { it.toJsonb()?.value }.toTypedArray(),
+                        "arkivert" to nowAtUtc()
+                    )
+                ).map { it.string("varselId") }.asList
+            ).toSet()
+
+            if (deleteSql != null) {
+                updateInTx { queryOf(deleteSql, params) }
+                updateInTx { queryOf("delete from varsel_ekstern_status where varselId = any(:varselIds)", params) }
+            }
+
+            varsler.filter { it.varselId in nye }
+        }
+    }
+
+    private fun deleteReferences(varselIds: List<String>) {
+        val params = mapOf("varselIds" to varselIds.toTypedArray())
+
+        database.transaction {
+            updateInTx { queryOf("delete from varsel_id where varselId = any(:varselIds)", params) }
+            updateInTx { queryOf("delete from varsel_ekstern_status where varselId = any(:varselIds)", params) }
         }
     }
 
@@ -74,16 +222,64 @@ class VarselArkivRepository(private val database: PostgresDatabase) {
             aktiv = row.boolean("aktiv"),
             sensitivitet = row.string("sensitivitet").let(Sensitivitet::parse),
             innhold = row.json("innhold"),
-            produsent = row.json("produsent"),
+            produsent = produsenter.produsent(row.int("produsentId")),
             eksternVarslingBestilling = row.jsonOrNull("eksternVarslingBestilling"),
-            eksternVarslingStatus = row.jsonOrNull("eksternVarslingStatus"),
+            eksternVarslingStatus = row.jsonOrNull("eksternVarslingMedHistorikk"),
             opprettet = row.zonedDateTime("opprettet"),
             inaktivert = row.zonedDateTimeOrNull("inaktivert"),
             inaktivertAv = row.stringOrNull("inaktivertAv")?.let { VarselInaktivertKilde.from(it) }
         )
     }
+
+    companion object {
+        private const val ARCHIVE_WINDOW_SIZE = 500
+        private const val COORDINATOR_BUCKET = 0
+    }
 }
 
+// Måneder før terskelmåneden arkiveres som hele partisjoner, så her tas bare terskelmåneden fra varsel og eldre
+// varsler som fortsatt ligger i varsel_default
+private val oldVarslerStatement = StatementTemplate(
+    "oldVarsler",
+    """
+    select *, ${eksternVarslingStatusMedHistorikk("v")} as eksternVarslingMedHistorikk
+    from varsel v
+    where opprettet >= :maanedStart and opprettet < :threshold
+        and $varselBucketExpression = :bucket and varselId > :sisteId
+    union all
+    select *, ${eksternVarslingStatusMedHistorikk("d")} as eksternVarslingMedHistorikk
+    from varsel_default d
+    where opprettet < :maanedStart
+        and $varselBucketExpression = :bucket and varselId > :sisteId
+    order by varselId
+    limit :antall
+    """
+)
+
+private fun partitionWindowStatement(partisjon: VarselPartisjon) = StatementTemplate(
+    "archivePartition",
+    """
+    select *, ${eksternVarslingStatusMedHistorikk(partisjon.navn)} as eksternVarslingMedHistorikk
+    from ${partisjon.navn}
+    where varselId > :sisteId
+    order by varselId
+    limit :antall
+    """
+)
+
+private fun partitionIdStatement(partisjon: VarselPartisjon) = StatementTemplate(
+    "archivedPartitionIds",
+    "select varselId from ${partisjon.navn} where varselId > :sisteId order by varselId limit :antall"
+)
+
+private const val insertArkivSql = """
+    insert into varsel_arkiv(varselId, ident, varsel, arkivert)
+    select varselId, ident, cast(varsel as jsonb), :arkivert
+    from unnest(cast(:varselIds as text[]), cast(:identer as text[]), cast(:varsler as text[])) as nye(varselId, ident, varsel)
+    on conflict do nothing
+    returning varselId
+"""
+
 data class ArkivVarsel(
     val type: Varseltype,
     val varselId: String,
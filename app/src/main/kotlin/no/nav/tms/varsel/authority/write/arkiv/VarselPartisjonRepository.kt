@@ -0,0 +1,117 @@
+package no.nav.tms.varsel.authority.write.arkiv
+
+import kotliquery.TransactionalSession
+import kotliquery.queryOf
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.common.transaction
+import no.nav.tms.varsel.authority.common.updateInTx
+import java.sql.SQLException
+import java.time.Duration
+import java.time.YearMonth
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+
+// Månedspartisjonene til varsel heter varsel_yyyy_mm og er selv delt i _aktiv og _inaktiv. Navnene lages bare fra
+// YearMonth, så de kan trygt settes rett inn i DDL.
+class VarselPartisjonRepository(private val database: PostgresDatabase) {
+
+    fun maanedspartisjoner(): List<VarselPartisjon> {
+        return database.list {
+            queryOf(
+                """
+                select relname as navn, relispartition as tilkoblet
+                from pg_class
+                where relkind = 'p'
+                  and relname ~ '^varsel_[0-9]{4}_[0-9]{2}$'
+                """
+            ).map {
+                VarselPartisjon(
+                    maaned = YearMonth.parse(it.string("navn").removePrefix("varsel_"), partisjonsnavnFormat),
+                    tilkoblet = it.boolean("tilkoblet")
+                )
+            }
+        }.sortedBy { it.maaned }
+    }
+
+    // Partisjonen lages frittstående og kobles til etterpå. Tilkobling trenger bare share update exclusive på varsel,
+    // mens create table ... partition of tar access exclusive. Varsler for måneden som allerede ligger i
+    // varsel_default flyttes over først, ellers ville tilkoblingen feilet. Gir false dersom vi ikke fikk lås i tide.
+    fun opprettMaanedspartisjon(maaned: YearMonth): Boolean {
+        val navn = VarselPartisjon(maaned, tilkoblet = false).navn
+        val fom = maaned.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC)
+        val tom = maaned.plusMonths(1).atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC)
+
+        return medLockTimeout {
+            updateInTx { queryOf("create table $navn (like varsel including defaults) partition by list (aktiv)") }
+            updateInTx { queryOf("create table ${navn}_aktiv partition of $navn for values in (true)") }
+            updateInTx { queryOf("create table ${navn}_inaktiv partition of $navn for values in (false)") }
+
+            val flyttet = updateInTx {
+                queryOf(
+                    """
+                    with flyttet as (
+                        delete from varsel_default where opprettet >= :fom and opprettet < :tom returning *
+                    )
+                    insert into $navn select * from flyttet
+                    """,
+                    mapOf("fom" to fom, "tom" to tom)
+                )
+            }
+
+            // Slettingen fra varsel_default fjernet id-ene fra varsel_id, og den nye tabellen har ingen triggere
+            // før den er koblet til
+            if (flyttet > 0) {
+                updateInTx { queryOf("insert into varsel_id(varselId, opprettet) select varselId, opprettet from $navn") }
+            }
+
+            updateInTx { queryOf("alter table varsel attach partition $navn for values from ('$fom') to ('$tom')") }
+        }
+    }
+
+    // Frakoblet partisjon er usynlig for spørringer mot varsel, men kan fortsatt leses direkte til den er arkivert.
+    // detach partition concurrently avvises av postgres så lenge varsel har en default-partisjon, så frakobling tar
+    // access exclusive på varsel. Låsen venter derfor bare kort, og gir false slik at vi prøver igjen neste runde.
+    fun kobleFra(partisjon: VarselPartisjon): Boolean {
+        return medLockTimeout {
+            updateInTx { queryOf("alter table varsel detach partition ${partisjon.navn}") }
+        }
+    }
+
+    fun slett(partisjon: VarselPartisjon): Boolean {
+        return medLockTimeout {
+            updateInTx { queryOf("drop table if exists ${partisjon.navn}") }
+        }
+    }
+
+    // En ventende access exclusive-lås stiller seg foran alle andre spørringer mot tabellen, så DDL får bare vente
+    // i LOCK_TIMEOUT før den gir opp
+    private fun medLockTimeout(ddl: TransactionalSession.() -> Unit): Boolean {
+        return try {
+            database.transaction {
+                updateInTx { queryOf("set local lock_timeout = '${LOCK_TIMEOUT.toMillis()}ms'") }
+                ddl()
+            }
+            true
+        } catch (e: Exception) {
+            if ((e as? SQLException ?: e.cause as? SQLException)?.sqlState == LOCK_NOT_AVAILABLE) {
+                false
+            } else {
+                throw e
+            }
+        }
+    }
+
+    companion object {
+        private val LOCK_TIMEOUT = Duration.ofSeconds(2)
+        private const val LOCK_NOT_AVAILABLE = "55P03"
+    }
+}
+
+private val partisjonsnavnFormat = DateTimeFormatter.ofPattern("yyyy_MM")
+
+data class VarselPartisjon(
+    val maaned: YearMonth,
+    val tilkoblet: Boolean
+) {
+    val navn get() = "varsel_${maaned.format(partisjonsnavnFormat)}"
+}
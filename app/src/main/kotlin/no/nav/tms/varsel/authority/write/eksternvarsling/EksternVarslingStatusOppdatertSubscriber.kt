@@ -3,24 +3,34 @@ package no.nav.tms.varsel.authority.write.eksternvarsling
 import com.fasterxml.jackson.databind.JsonMappingException
 import com.fasterxml.jackson.module.kotlin.treeToValue
 import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Counter
 import no.nav.tms.common.logging.TeamLogs
 import no.nav.tms.kafka.application.JsonMessage
 import no.nav.tms.kafka.application.SkippableMessageException
 import no.nav.tms.kafka.application.Subscriber
 import no.nav.tms.kafka.application.Subscription
 import no.nav.tms.varsel.authority.EksternStatus
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import no.nav.tms.varsel.authority.write.incoming.IngestBackpressure
+import no.nav.tms.varsel.authority.write.incoming.PollBuffer
 import java.time.ZonedDateTime
 
+// Med coalesce samles statuser per varselId til workeren er ferdig med pollen, og hvert varsel oppdateres én gang.
+// Det krever at alle eventer for et varsel går til samme instans, slik nøkkelbasert prosessering sørger for.
 internal class EksternVarslingStatusOppdatertSubscriber(
-    private val eksternVarslingStatusUpdater: EksternVarslingStatusUpdater
-) : Subscriber() {
+    private val eksternVarslingStatusUpdater: EksternVarslingStatusUpdater,
+    private val backpressure: IngestBackpressure? = null,
+    private val coalesce: Boolean = false
+) : Subscriber(), PollBuffer {
 
     private val log = KotlinLogging.logger { }
     private val teamLog = TeamLogs.logger { }
 
     private val objectMapper = defaultObjectMapper()
 
+    private val buffered = LinkedHashMap<String, MutableList<EksternVarslingOppdatert>>()
+
     override fun subscribe(): Subscription = Subscription
         .forEvent("eksternVarslingStatusOppdatert")
         .withAnyValue("status", "venter", "sendt", "feilet", "kansellert")
@@ -32,10 +42,38 @@ internal class EksternVarslingStatusOppdatertSubscriber(
 
 
     override suspend fun receive(jsonMessage: JsonMessage) {
+        backpressure?.awaitCapacity()
+
         val oppdatertEvent = deserialize(jsonMessage)
 
-        eksternVarslingStatusUpdater.updateEksternVarslingStatus(oppdatertEvent)
-        log.info { "Behandlet eksternVarslingStatusOppdatert med status ${oppdatertEvent.status}" }
+        if (coalesce) {
+            buffered.getOrPut(oppdatertEvent.varselId) { mutableListOf() }.add(oppdatertEvent)
+        } else {
+            eksternVarslingStatusUpdater.updateEksternVarslingStatus(oppdatertEvent)
+            log.info { "Behandlet eksternVarslingStatusOppdatert med status ${oppdatertEvent.status}" }
+        }
+    }
+
+    override fun flush() {
+        buffered.values.forEach { statusEvents ->
+            COALESCED_EVENTS.labelValues("mottatt").inc(statusEvents.size.toDouble())
+
+            try {
+                val skrevet = eksternVarslingStatusUpdater.updateEksternVarslingStatus(statusEvents)
+
+                COALESCED_EVENTS.labelValues("skrevet").inc(skrevet.toDouble())
+
+                log.info { "Behandlet ${statusEvents.size} eksternVarslingStatusOppdatert med $skrevet oppdatering(er)" }
+            } catch (e: SkippableMessageException) {
+                log.warn { "Hoppet over ${statusEvents.size} eksternVarslingStatusOppdatert: ${e.message}" }
+            }
+        }
+
+        buffered.clear()
+    }
+
+    override fun discard() {
+        buffered.clear()
     }
 
     private fun deserialize(jsonMessage: JsonMessage): EksternVarslingOppdatert {
@@ -50,6 +88,14 @@ internal class EksternVarslingStatusOppdatertSubscriber(
         }
     }
 
+    companion object {
+        private val COALESCED_EVENTS: Counter = Counter.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_ekstern_varsling_status_coalesced")
+            .help("Statuser for ekstern varsling behandlet samlet per poll, og antall oppdateringer de ga")
+            .labelNames("utfall")
+            .register()
+    }
+
     class StatusOppdatertDeserializationException: SkippableMessageException("eksternVarslingOppdatert-event har ikke riktig json-format")
 }
 
@@ -1,18 +1,111 @@
 package no.nav.tms.varsel.authority.write.eksternvarsling
 
+import kotliquery.Row
+import kotliquery.TransactionalSession
 import kotliquery.queryOf
 import no.nav.tms.common.postgres.JsonbHelper.toJsonb
 import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.EksternFeilHistorikkEntry
+import no.nav.tms.varsel.authority.EksternStatus
 import no.nav.tms.varsel.authority.EksternVarslingStatus
+import no.nav.tms.varsel.authority.common.transaction
+import no.nav.tms.varsel.authority.common.updateInTx
+import no.nav.tms.varsel.authority.common.varselIdMedPartisjon
+import no.nav.tms.varsel.authority.config.jsonReader
+import no.nav.tms.varsel.authority.config.jsonbOrNull
+import org.postgresql.util.PSQLState
+import java.sql.SQLException
+
+private val eksternVarslingStatusReader = jsonReader<EksternVarslingStatus>()
 
 class EksternVarslingStatusRepository(val database: PostgresDatabase) {
 
-    fun updateEksternVarslingStatus(varselId: String, eksternVarslingStatus: EksternVarslingStatus) {
-        database.update {
+    // Historikk og sammendrag skrives i samme transaksjon, med varselet låst. Feil som fortsatt ligger i jsonb på
+    // varselet flyttes til historikken første gang varselet oppdateres, slik at sammendraget holdes lite. Gir antall
+    // varsler som ble oppdatert, som er 0 dersom varselet ikke finnes.
+    fun updateEksternVarslingStatus(
+        varselId: String,
+        statusEvents: List<EksternVarslingOppdatert>,
+        oppdater: (EksternVarslingStatus?) -> EksternVarslingStatus
+    ): Int {
+        return try {
+            updateInTransaction(varselId, statusEvents, oppdater)
+        } catch (e: Exception) {
+            // Varselet ble flyttet til en annen partisjon mens vi leste det
+            if ((e as? SQLException ?: e.cause as? SQLException)?.sqlState == PSQLState.SERIALIZATION_FAILURE.state) {
+                updateInTransaction(varselId, statusEvents, oppdater)
+            } else {
+                throw e
+            }
+        }
+    }
+
+    private fun updateInTransaction(
+        varselId: String,
+        statusEvents: List<EksternVarslingOppdatert>,
+        oppdater: (EksternVarslingStatus?) -> EksternVarslingStatus
+    ): Int = database.transaction {
+        val gjeldende = run(
+            queryOf(lockGjeldendeStatusSql, mapOf("varselId" to varselId)).map(toGjeldendeStatus()).asSingle
+        ) ?: return@transaction 0
+
+        val eldreFeil = gjeldende.status?.feilhistorikk.orEmpty().map { it.toHistorikk(varselId) }
+
+        insertHistorikk(eldreFeil + statusEvents.map { it.toHistorikk() })
+
+        val sammendrag = oppdater(gjeldende.status?.copy(feilhistorikk = emptyList()))
+
+        updateInTx {
             queryOf(
-                "update varsel set eksternVarslingStatus = :status where varselId = :varselId",
-                mapOf("varselId" to varselId, "status" to eksternVarslingStatus.toJsonb())
+                "update varsel set eksternVarslingStatus = :status where $varselIdMedPartisjon",
+                mapOf("varselId" to varselId, "status" to sammendrag.toJsonb())
             )
         }
     }
+
+    private fun TransactionalSession.insertHistorikk(historikk: List<Map<String, Any?>>) {
+        if (historikk.isNotEmpty()) {
+            batchPreparedNamedStatement(insertHistorikkSql, historikk)
+        }
+    }
+
+    private fun EksternVarslingOppdatert.toHistorikk() = mapOf(
+        "varselId" to varselId,
+        "status" to status.lowercaseName,
+        "kanal" to kanal,
+        "renotifikasjon" to renotifikasjon,
+        "batch" to batch,
+        "feilmelding" to feilmelding,
+        "tidspunkt" to tidspunkt
+    )
+
+    private fun EksternFeilHistorikkEntry.toHistorikk(varselId: String) = mapOf(
+        "varselId" to varselId,
+        "status" to EksternStatus.Feilet.lowercaseName,
+        "kanal" to null,
+        "renotifikasjon" to null,
+        "batch" to null,
+        "feilmelding" to feilmelding,
+        "tidspunkt" to tidspunkt
+    )
+
+    private fun toGjeldendeStatus(): (Row) -> GjeldendeEksternStatus = {
+        GjeldendeEksternStatus(
+            status = it.jsonbOrNull("eksternVarslingStatus", eksternVarslingStatusReader)
+        )
+    }
 }
+
+// Skiller et varsel uten status fra et varsel som ikke finnes
+private class GjeldendeEksternStatus(
+    val status: EksternVarslingStatus?
+)
+
+private const val lockGjeldendeStatusSql =
+    "select eksternVarslingStatus from varsel where $varselIdMedPartisjon for update"
+
+private val insertHistorikkSql = """
+    insert into varsel_ekstern_status(varselId, status, kanal, renotifikasjon, batch, feilmelding, tidspunkt)
+    values(:varselId, :status, :kanal, :renotifikasjon, :batch, :feilmelding, :tidspunkt)
+    on conflict do nothing
+""".trimIndent()
@@ -1,65 +1,54 @@
 package no.nav.tms.varsel.authority.write.eksternvarsling
 
 import io.github.oshai.kotlinlogging.KotlinLogging
-import io.github.oshai.kotlinlogging.withLoggingContext
 import no.nav.tms.kafka.application.SkippableMessageException
 import no.nav.tms.varsel.authority.*
 import no.nav.tms.varsel.authority.EksternStatus.*
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
-import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
-import kotlin.collections.distinct
-import kotlin.collections.plus
 
+// Hver status lagres som en egen rad i varsel_ekstern_status. På varselet holdes bare et sammendrag av gjeldende
+// status uten historikk, slik at det ikke vokser med antall statuser. Historikken settes sammen ved lesing.
 class EksternVarslingStatusUpdater(
-    private val eksternVarslingStatusRepository: EksternVarslingStatusRepository,
-    private val varselRepository: WriteVarselRepository,
-    private val feilhistorikkMaxSize: Int = 10
+    private val eksternVarslingStatusRepository: EksternVarslingStatusRepository
 ) {
     private val log = KotlinLogging.logger { }
 
     fun updateEksternVarslingStatus(statusEvent: EksternVarslingOppdatert) {
-        val varsel = varselRepository.getVarsel(statusEvent.varselId)
+        updateEksternVarslingStatus(listOf(statusEvent))
+    }
 
-        if (varsel == null) {
-            log.warn { "Ignorerer status [${statusEvent.status}] fordi tilhørende varsel ikke fantes." }
-            throw UpdatedVarselMissingException()
-        } else if (statusEvent.feilmelding != null && feilhistorikkIsFull(varsel.eksternVarslingStatus)) {
-            log.warn { "Ignorerer feilet-status fordi feilhistorikken er full (max_entries: $feilhistorikkMaxSize)." }
-            throw FeilhistorikkFullException()
-        }
+    // Folder statuser for samme varsel i rekkefølge med samme regler som for én status, og skriver resultatet én gang.
+    // Helt like eventer tas bare med én gang. Gir antall oppdateringer av varselet.
+    fun updateEksternVarslingStatus(statusEvents: List<EksternVarslingOppdatert>): Int {
+        val unikeEvents = statusEvents.distinct()
+        val varselId = unikeEvents.first().varselId
 
-        val currentStatus = varsel.eksternVarslingStatus ?: emptyEksternVarsling()
+        require(unikeEvents.all { it.varselId == varselId }) { "Statuser som slås sammen må gjelde samme varsel" }
 
-        withLoggingContext("type" to varsel.type.name.lowercase()) {
-            mapStatusAndPerformUpdate(varsel.varselId, currentStatus, statusEvent)
+        val oppdaterte = eksternVarslingStatusRepository.updateEksternVarslingStatus(varselId, unikeEvents) { gjeldende ->
+            unikeEvents.fold(gjeldende ?: emptyEksternVarsling(), ::mapStatus)
         }
-    }
 
-    private fun mapStatusAndPerformUpdate(varselId: String, currentStatus: EksternVarslingStatus, statusEvent: EksternVarslingOppdatert) {
-        val feilhistorikk = if (statusEvent.feilmelding == null) {
-            currentStatus.feilhistorikk
-        } else {
-            EksternFeilHistorikkEntry(
-                feilmelding = statusEvent.feilmelding,
-                tidspunkt = statusEvent.tidspunkt,
-            ).let {
-                currentStatus.feilhistorikk + it
-            }.distinct()
+        if (oppdaterte == 0) {
+            log.warn { "Ignorerer ${unikeEvents.size} statuser fordi tilhørende varsel ikke fantes." }
+            throw UpdatedVarselMissingException()
         }
 
-        val updatedStatus = EksternVarslingStatus(
+        return oppdaterte
+    }
+
+    private fun mapStatus(currentStatus: EksternVarslingStatus, statusEvent: EksternVarslingOppdatert): EksternVarslingStatus {
+        return EksternVarslingStatus(
             sendt = currentStatus.sendt || statusEvent.status == Sendt,
             sendtSomBatch = currentStatus.sendtSomBatch || (statusEvent.batch == true && statusEvent.status == Sendt),
             sendtTidspunkt = if (statusEvent.status == Sendt && statusEvent.renotifikasjon == false) statusEvent.tidspunkt else currentStatus.sendtTidspunkt,
             renotifikasjonSendt = if (statusEvent.renotifikasjon == true) true else currentStatus.renotifikasjonSendt,
             renotifikasjonTidspunkt = if (statusEvent.renotifikasjon == true) statusEvent.tidspunkt else currentStatus.renotifikasjonTidspunkt,
             kanaler = (currentStatus.kanaler + statusEvent.kanal).filterNotNull().distinct(),
-            feilhistorikk = feilhistorikk,
+            feilhistorikk = emptyList(),
             sisteStatus = statusEvent.status,
             sistOppdatert = nowAtUtc()
         )
-
-        eksternVarslingStatusRepository.updateEksternVarslingStatus(varselId, updatedStatus)
     }
 
     private fun emptyEksternVarsling() = EksternVarslingStatus(
@@ -68,11 +57,6 @@ class EksternVarslingStatusUpdater(
         kanaler = emptyList(),
         sistOppdatert = nowAtUtc()
     )
-
-    private fun feilhistorikkIsFull(status: EksternVarslingStatus?): Boolean {
-        return status?.feilhistorikk != null && status.feilhistorikk.size >= feilhistorikkMaxSize
-    }
 }
 
 class UpdatedVarselMissingException : SkippableMessageException("Fant ikke varsel tilhørende ekstern varseloppdatering")
-class FeilhistorikkFullException: SkippableMessageException("Ignorerer feil-status; Feilhistorikken er full")
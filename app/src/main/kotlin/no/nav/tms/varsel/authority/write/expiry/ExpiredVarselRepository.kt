@@ -1,38 +1,55 @@
 package no.nav.tms.varsel.authority.write.expiry
 
 import kotliquery.Row
-import kotliquery.queryOf
-import no.nav.tms.common.postgres.JsonbHelper.json
 import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.common.BucketAssignment
+import no.nav.tms.varsel.authority.common.ProdusentRegistry
+import no.nav.tms.varsel.authority.common.StatementTemplate
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
+import no.nav.tms.varsel.authority.common.list
+import no.nav.tms.varsel.authority.common.varselBucketExpression
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde.Frist
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.authority.DatabaseProdusent
 
-class ExpiredVarselRepository(private val database: PostgresDatabase) {
-
-    fun updateExpiredVarsel(): List<ExpiredVarsel> {
-        return database.list {
-            queryOf(
-                """
-                    update varsel set 
-                        aktiv = false,
-                        inaktivert = :now,
-                        inaktivertAv = :frist
-                    where
-                        aktiv = true
-                        and aktivFremTil < :now
-                    returning
-                        varselId,
-                        type as varseltype,
-                        produsent
-                """,
-                mapOf(
-                    "now" to nowAtUtc(),
-                    "frist" to Frist.lowercaseName
+class ExpiredVarselRepository(
+    private val database: PostgresDatabase,
+    private val produsenter: ProdusentRegistry = ProdusentRegistry(database)
+) {
+
+    // Inaktiverer utgåtte varsler i vinduer på windowSize. Hvert vindu er committet før det gis videre til onExpired,
+    // slik at vi aldri melder fra om et varsel som ikke faktisk er inaktivert, og minnebruken er lik uansett mengde.
+    // Bare varsler i bøttene poden har fått tildelt behandles.
+    fun updateExpiredVarsel(
+        assignment: BucketAssignment = BucketAssignment.all(),
+        windowSize: Int = EXPIRY_WINDOW_SIZE,
+        onExpired: (List<ExpiredVarsel>) -> Unit
+    ): Int {
+        val now = nowAtUtc()
+
+        return assignment.buckets.sumOf { bucket ->
+            var total = 0
+
+            do {
+                val window = database.list(
+                    expireVarselStatement,
+                    mapOf(
+                        "now" to now,
+                        "frist" to Frist.lowercaseName,
+                        "windowSize" to windowSize,
+                        "bucketCount" to assignment.bucketCount,
+                        "bucket" to bucket
+                    ),
+                    toExpiredVasel()
                 )
-            )
-                .map(toExpiredVasel())
+
+                if (window.isNotEmpty()) {
+                    onExpired(window)
+                    total += window.size
+                }
+            } while (window.size == windowSize)
+
+            total
         }
     }
 
@@ -40,11 +57,38 @@ class ExpiredVarselRepository(private val database: PostgresDatabase) {
         ExpiredVarsel(
             varselId = row.string("varselId"),
             varseltype = row.string("varseltype").let(Varseltype::parse),
-            produsent = row.json("produsent")
+            produsent = produsenter.produsent(row.int("produsentId"))
         )
     }
+
+    companion object {
+        private const val EXPIRY_WINDOW_SIZE = 500
+    }
 }
 
+private val expireVarselStatement = StatementTemplate(
+    "expireVarsel",
+    """
+    update varsel set
+        aktiv = false,
+        inaktivert = :now,
+        inaktivertAv = :frist
+    where varselId in (
+        select varselId from varsel
+        where
+            aktiv = true
+            and aktivFremTil < :now
+            and $varselBucketExpression = :bucket
+        limit :windowSize
+        for update skip locked
+    )
+    returning
+        varselId,
+        type as varseltype,
+        produsentId
+    """
+)
+
 data class ExpiredVarsel(
     val varselId: String,
     val varseltype: Varseltype,
@@ -3,6 +3,7 @@ package no.nav.tms.varsel.authority.write.expiry
 import io.github.oshai.kotlinlogging.KotlinLogging
 import no.nav.tms.common.util.scheduling.PeriodicJob
 import no.nav.tms.kafka.application.AppHealth
+import no.nav.tms.varsel.authority.common.BucketLeases
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertHendelse
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde.Frist
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertProducer
@@ -12,25 +13,32 @@ import java.time.Duration
 class PeriodicExpiredVarselProcessor(
     private val expiredVarselRepository: ExpiredVarselRepository,
     private val varselInaktivertProducer: VarselInaktivertProducer,
-    private val leaderElection: no.nav.tms.common.kubernetes.PodLeaderElection,
+    private val leases: BucketLeases,
     interval: Duration = Duration.ofMinutes(1)
 ) : PeriodicJob(interval) {
 
     private val log = KotlinLogging.logger { }
 
     override val job = initializeJob {
-        if (leaderElection.isLeader()) {
-           updateExpiredVarsel()
-        }
+        updateExpiredVarsel()
     }
 
+    // Alle pods kjører jobben, men hver behandler bare varsler i bøttene den leier
     fun updateExpiredVarsel() {
         try {
-            val expiredVarselList = expiredVarselRepository.updateExpiredVarsel()
+            val assignment = leases.claim()
+
+            if (assignment.isEmpty()) {
+                log.info { "Poden har ingen bøtter for utløp av varsler denne gangen." }
+                return
+            }
 
-            if (expiredVarselList.isNotEmpty()) {
+            val antallUtgaatte = expiredVarselRepository.updateExpiredVarsel(assignment) { expiredVarselList ->
                 varselInaktivert(expiredVarselList)
-                log.info { "Prosesserte ${expiredVarselList.size} utgåtte varsler." }
+            }
+
+            if (antallUtgaatte > 0) {
+                log.info { "Prosesserte $antallUtgaatte utgåtte varsler." }
             } else {
                 log.info { "Ingen varsler har utgått siden forrige sjekk." }
             }
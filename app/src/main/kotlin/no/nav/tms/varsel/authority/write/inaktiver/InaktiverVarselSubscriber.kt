@@ -12,11 +12,13 @@ import no.nav.tms.varsel.action.InaktiverVarsel
 import no.nav.tms.varsel.authority.DatabaseVarsel
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import no.nav.tms.varsel.authority.write.incoming.IngestBackpressure
 import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
 
 internal class InaktiverVarselSubscriber(
     private val varselRepository: WriteVarselRepository,
-    private val varselInaktivertProducer: VarselInaktivertProducer
+    private val varselInaktivertProducer: VarselInaktivertProducer,
+    private val backpressure: IngestBackpressure? = null
 ) : Subscriber() {
 
     private val log = KotlinLogging.logger {}
@@ -31,6 +33,8 @@ internal class InaktiverVarselSubscriber(
 
 
     override suspend fun receive(jsonMessage: JsonMessage) {
+        backpressure?.awaitCapacity()
+
         log.info { "Inaktiver-event mottatt" }
 
         val inaktiverVarsel = deserialize(jsonMessage)
@@ -2,21 +2,22 @@ package no.nav.tms.varsel.authority.write.inaktiver
 
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.github.oshai.kotlinlogging.withLoggingContext
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
 import no.nav.tms.varsel.action.Varseltype.Beskjed
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde.Admin
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde.Bruker
 import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
+import no.nav.tms.varsel.authority.common.ReadRouting
+import no.nav.tms.varsel.authority.common.withDatabaseContext
 
 class VarselInaktiverer(
     private val varselRepository: WriteVarselRepository,
-    private val varselInaktivertProducer: VarselInaktivertProducer
+    private val varselInaktivertProducer: VarselInaktivertProducer,
+    private val readRouting: ReadRouting? = null
 ) {
     private val log = KotlinLogging.logger {}
 
-    suspend fun inaktiverBeskjedForBruker(varselId: String, ident: String) = withContext(Dispatchers.IO) {
+    suspend fun inaktiverBeskjedForBruker(varselId: String, ident: String) = withDatabaseContext {
         traceInaktiverVarsel(varselId, Bruker) {
             val varsel = varselRepository.getVarsel(varselId)
 
@@ -36,6 +37,7 @@ class VarselInaktiverer(
                     log.info { "Inaktiverer beskjed." }
 
                     varselRepository.inaktiverVarsel(varsel.varselId, Bruker)
+                    readRouting?.registerWrite(ident)
 
                     VarselMetricsReporter.registerVarselInaktivert(varsel.type, varsel.produsent, Bruker)
 
@@ -52,7 +54,7 @@ class VarselInaktiverer(
         }
     }
 
-    suspend fun inaktiverVarselForAdmin(varselId: String, grunn: String) = withContext(Dispatchers.IO) {
+    suspend fun inaktiverVarselForAdmin(varselId: String, grunn: String) = withDatabaseContext {
         traceInaktiverVarsel(varselId, Admin) {
 
             when (val varsel = varselRepository.getVarsel(varselId)) {
@@ -71,6 +73,7 @@ class VarselInaktiverer(
                             )
                         )
                     )
+                    readRouting?.registerWrite(varsel.ident)
 
                     VarselMetricsReporter.registerVarselInaktivert(varsel.type, varsel.produsent, Admin)
 
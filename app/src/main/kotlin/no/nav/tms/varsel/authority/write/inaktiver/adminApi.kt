@@ -8,7 +8,9 @@ import io.ktor.server.response.*
 import io.ktor.server.routing.*
 import no.nav.tms.varsel.authority.config.Source
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import no.nav.tms.varsel.authority.config.includeNullsObjectMapper
 import no.nav.tms.varsel.authority.read.ReadVarselRepository
+import java.io.OutputStream
 import java.time.LocalDate
 import java.time.ZoneId
 import java.time.format.DateTimeFormatter
@@ -38,8 +40,54 @@ fun Route.adminApi(
             )
         )
     }
+
+    // Skriver én json-linje per varsel etter hvert som radene leses. Skriving mot klienten blokkerer når den ikke
+    // henter data raskt nok, og da leses heller ingen nye rader fra databasen. Plass reserveres før svaret startes,
+    // slik at eksport som ikke får plass kan avvises med riktig status.
+    post("/varsel/admin/alle/eksport") {
+        VarselMetricsReporter.registerVarselHentet(
+            source = Source.ADMIN,
+            varseltype = null
+        )
+        val request = call.receive<EksportVarslerRequest>()
+
+        if (!readRepository.reserverEksport()) {
+            call.respondText(
+                status = HttpStatusCode.TooManyRequests,
+                text = "Andre eksporter pågår. Forsøk igjen senere."
+            )
+            return@post
+        }
+
+        try {
+            call.respondOutputStream(ndjson) {
+                readRepository.eksporterAlleVarslerForUser(
+                    ident = request.ident,
+                    onFeilendeVarsel = { varselId ->
+                        writeLine(FeilendeVarsel(varselId, "Kunne ikke lese varsel"))
+                    },
+                    onVarsel = { varsel ->
+                        writeLine(varsel)
+                    }
+                )
+            }
+        } finally {
+            readRepository.frigiEksport()
+        }
+    }
+}
+
+private val ndjson = ContentType("application", "x-ndjson")
+
+private val eksportWriter = includeNullsObjectMapper().writer()
+
+private fun OutputStream.writeLine(value: Any) {
+    write(eksportWriter.writeValueAsBytes(value))
+    write('\n'.code)
 }
 
+data class FeilendeVarsel(val varselId: String, val feil: String)
+
 private suspend fun ApplicationCall.inaktiverVarselRequest() = try {
     receive<InaktiverVarselRequest>()
 } catch (e: ContentTransformationException) {
@@ -67,4 +115,6 @@ private fun ApplicationCall.timeRange(): Timerange =
 
 data class AlleVarslerRequest(val ident: String, val fom: String, val tom: String){
     fun timeRange() = Timerange(fom,tom)
-}
\ No newline at end of file
+}
+
+data class EksportVarslerRequest(val ident: String)
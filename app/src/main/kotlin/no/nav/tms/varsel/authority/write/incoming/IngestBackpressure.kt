@@ -0,0 +1,149 @@
+package no.nav.tms.varsel.authority.write.incoming
+
+import com.zaxxer.hikari.HikariDataSource
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.metrics.core.metrics.Gauge
+import kotlinx.coroutines.delay
+import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.kafka.application.AppHealth
+import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
+import no.nav.tms.varsel.authority.config.BackpressureThresholds
+import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
+import java.time.Duration
+
+// Måler jevnlig hvor mye som er klart til sending i utgående kø og hvor mange som venter på databasen, og struper
+// eller pauser inntak fra kafka når grensene passeres. Records som venter på nytt forsøk teller ikke med. Vi går først
+// tilbake når målingene er godt under grensen, for å unngå at inntaket slås av og på ved hver måling.
+class IngestBackpressure(
+    private val queueRepository: RecordQueueRepository,
+    private val dataSource: HikariDataSource,
+    private val thresholds: BackpressureThresholds,
+    private val resumeRatio: Double = 0.5,
+    private val throttleDelay: Duration = Duration.ofMillis(50),
+    private val maxPause: Duration = Duration.ofSeconds(60),
+    interval: Duration = Duration.ofSeconds(5)
+) : PeriodicJob(interval) {
+
+    private val log = KotlinLogging.logger { }
+
+    @Volatile
+    var state: IngestState = IngestState.Open
+        private set
+
+    @Volatile
+    private var pauseGraceUntil = 0L
+
+    init {
+        reportState()
+    }
+
+    override val job = initializeJob {
+        sample()
+    }
+
+    fun sample() {
+        val next = try {
+            val queueStatus = queueRepository.queueStatus(limit = thresholds.pauseQueueSize)
+
+            QUEUE_READY.set(queueStatus.size.toDouble())
+            QUEUE_BACKOFF.set(queueStatus.waiting.toDouble())
+
+            nextState(
+                queueSize = queueStatus.size,
+                queueAgeSeconds = queueStatus.oldestCreatedAt
+                    ?.let { Duration.between(it, nowAtUtc()).seconds }
+                    ?: 0,
+                poolPending = dataSource.hikariPoolMXBean?.threadsAwaitingConnection ?: 0
+            )
+        } catch (e: Exception) {
+            log.warn(e) { "Klarte ikke å måle belastning. Pauser inntak frem til neste måling." }
+            IngestState.Paused
+        }
+
+        if (next != state) {
+            log.info { "Endrer inntak fra ${state.lowercaseName} til ${next.lowercaseName}" }
+            state = next
+            reportState()
+        }
+    }
+
+    // Brukes per melding av subscribers. En pause varer maks maxPause av gangen, og etterpå strupes det i like lang
+    // tid, slik at konsumenten rekker å polle igjen før kafka anser den som død.
+    suspend fun awaitCapacity() {
+        if (state == IngestState.Paused && System.nanoTime() > pauseGraceUntil) {
+            val deadline = System.nanoTime() + maxPause.toNanos()
+
+            while (state == IngestState.Paused && System.nanoTime() < deadline) {
+                delay(PAUSE_CHECK_INTERVAL_MS)
+            }
+
+            if (state == IngestState.Paused) {
+                pauseGraceUntil = System.nanoTime() + maxPause.toNanos()
+            }
+        }
+
+        throttle()
+    }
+
+    suspend fun throttle() {
+        if (state != IngestState.Open) {
+            delay(throttleDelay.toMillis())
+        }
+    }
+
+    fun isHealthy() = if (job.isActive) {
+        AppHealth.Healthy
+    } else {
+        AppHealth.Unhealthy
+    }
+
+    private fun nextState(queueSize: Int, queueAgeSeconds: Long, poolPending: Int): IngestState {
+        fun levelAt(ratio: Double) = when {
+            queueSize >= thresholds.pauseQueueSize * ratio -> IngestState.Paused
+            queueAgeSeconds >= thresholds.pauseQueueAgeSeconds * ratio -> IngestState.Paused
+            poolPending >= thresholds.pausePoolPending * ratio -> IngestState.Paused
+            queueSize >= thresholds.throttleQueueSize * ratio -> IngestState.Throttled
+            queueAgeSeconds >= thresholds.throttleQueueAgeSeconds * ratio -> IngestState.Throttled
+            poolPending >= thresholds.throttlePoolPending * ratio -> IngestState.Throttled
+            else -> IngestState.Open
+        }
+
+        val entering = levelAt(1.0)
+        val remaining = levelAt(resumeRatio)
+
+        return maxOf(entering, minOf(state, remaining))
+    }
+
+    private fun reportState() {
+        IngestState.entries.forEach {
+            INGEST_STATE.labelValues(it.lowercaseName).set(if (it == state) 1.0 else 0.0)
+        }
+    }
+
+    companion object {
+        private const val PAUSE_CHECK_INTERVAL_MS = 1000L
+
+        private val INGEST_STATE: Gauge = Gauge.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_ingest_backpressure")
+            .help("Gjeldende tilstand for inntak fra kafka (1 for aktiv tilstand)")
+            .labelNames("state")
+            .register()
+
+        private val QUEUE_READY: Gauge = Gauge.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_ingest_outbox_ready")
+            .help("Utgående kafka-records klare til sending, talt opp til grensen for pause")
+            .register()
+
+        private val QUEUE_BACKOFF: Gauge = Gauge.builder()
+            .name("${VarselMetricsReporter.NAMESPACE}_ingest_outbox_backoff")
+            .help("Utgående kafka-records som venter på nytt forsøk, og ikke regnes med i belastningen")
+            .register()
+    }
+}
+
+enum class IngestState {
+    Open, Throttled, Paused;
+
+    val lowercaseName = name.lowercase()
+}
@@ -0,0 +1,220 @@
+package no.nav.tms.varsel.authority.write.incoming
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.coroutines.*
+import no.nav.tms.common.logging.TeamLogs
+import no.nav.tms.kafka.application.AppHealth
+import no.nav.tms.kafka.application.MessageBroadcaster
+import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import org.apache.kafka.clients.consumer.Consumer
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.consumer.ConsumerRecords
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.WakeupException
+import java.time.Duration
+
+// Fordeler records fra hver poll på faste workere etter varselId, slik at eventer for samme varsel behandles i
+// rekkefølge mens uavhengige varsler går mot databasen samtidig. Offsets committes først når hele pollen er ferdig,
+// og etter at workerens PollBuffer er skrevet. Feiler en worker, spoles bare partisjonene den hadde records i tilbake
+// til dens første record, og neste poll venter med økende backoff. Etter maxRetries feil på rad stopper konsumenten
+// og melder seg usunn. Mister vi partisjoner ved rebalansering, skrives og committes det som er behandlet for dem
+// før en annen konsument tar over.
+class KeyedKafkaConsumer(
+    private val consumer: Consumer<String, String>,
+    private val topics: List<String>,
+    private val broadcasters: List<MessageBroadcaster>,
+    private val pollBuffers: List<List<PollBuffer>> = broadcasters.map { emptyList() },
+    private val backpressure: IngestBackpressure? = null,
+    private val pollTimeout: Duration = Duration.ofSeconds(1),
+    private val retryBackoff: Duration = Duration.ofSeconds(1),
+    private val maxRetryBackoff: Duration = Duration.ofSeconds(60),
+    private val maxRetries: Int = 10
+) {
+    private val log = KotlinLogging.logger { }
+    private val teamLog = TeamLogs.logger { }
+
+    private val objectMapper = defaultObjectMapper()
+
+    // Leses og endres bare fra konsumenttråden, også fra rebalanseringslytteren som kalles inne i poll()
+    private val uncommitted = mutableMapOf<TopicPartition, OffsetAndMetadata>()
+
+    private var failedPolls = 0
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    private val job = scope.launch(start = CoroutineStart.LAZY) {
+        try {
+            consumer.subscribe(topics, rebalanceListener)
+
+            while (isActive && failedPolls <= maxRetries) {
+                applyBackpressure()
+
+                val records = consumer.poll(pollTimeout)
+
+                if (!records.isEmpty) {
+                    processPoll(records)
+                }
+            }
+
+            if (failedPolls > maxRetries) {
+                log.error { "Nøkkelbasert prosessering feilet $failedPolls ganger på rad. Stopper konsumenten." }
+            }
+        } catch (e: WakeupException) {
+            log.info { "Avslutter konsument for nøkkelbasert prosessering" }
+        } finally {
+            consumer.close()
+        }
+    }
+
+    fun start() {
+        job.start()
+    }
+
+    suspend fun stop() {
+        consumer.wakeup()
+        job.cancelAndJoin()
+    }
+
+    fun isHealthy() = if (job.isActive) {
+        AppHealth.Healthy
+    } else {
+        AppHealth.Unhealthy
+    }
+
+    private suspend fun processPoll(records: ConsumerRecords<String, String>) {
+        try {
+            val failed = coroutineScope {
+                records.groupBy(::workerIndex)
+                    .map { (worker, workerRecords) ->
+                        async { processWorker(worker, workerRecords) }
+                    }
+                    .awaitAll()
+                    .flatten()
+            }
+
+            val rewound = rewindTo(failed)
+
+            uncommitted.putAll(nextOffsets(records) + rewound)
+            commit(uncommitted.keys)
+
+            if (failed.isEmpty()) {
+                failedPolls = 0
+            } else {
+                failedPolls++
+                delay(retryDelay())
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.error { "Feil ved commit etter nøkkelbasert prosessering av ${records.count()} records. Forsøker på nytt." }
+            teamLog.error(e) { "Feil ved commit etter nøkkelbasert prosessering av ${records.count()} records. Forsøker på nytt." }
+
+            pollBuffers.flatten().forEach { it.discard() }
+            uncommitted.clear()
+            rewindTo(records.toList())
+
+            failedPolls++
+            delay(retryDelay())
+        }
+    }
+
+    // Gir tilbake recordene til en worker som feilet, slik at bare de spoles tilbake. Andre workere fullfører pollen.
+    private suspend fun processWorker(
+        worker: Int,
+        workerRecords: List<ConsumerRecord<String, String>>
+    ): List<ConsumerRecord<String, String>> {
+        return try {
+            workerRecords.mapNotNull { it.value() }
+                .forEach {
+                    backpressure?.throttle()
+                    broadcasters[worker].broadcastJson(it)
+                }
+
+            pollBuffers[worker].forEach { it.flush() }
+
+            emptyList()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.error { "Feil ved nøkkelbasert prosessering av ${workerRecords.size} records i worker $worker. Forsøker på nytt." }
+            teamLog.error(e) { "Feil ved nøkkelbasert prosessering av ${workerRecords.size} records i worker $worker. Forsøker på nytt." }
+
+            pollBuffers[worker].forEach { it.discard() }
+
+            workerRecords
+        }
+    }
+
+    private fun retryDelay(): Long {
+        val backoff = retryBackoff.toMillis() * (1L shl minOf(failedPolls - 1, 20))
+
+        return minOf(backoff, maxRetryBackoff.toMillis())
+    }
+
+    // Ved pause fortsetter vi å polle uten å hente records, slik at konsumenten beholder partisjonene sine
+    private fun applyBackpressure() {
+        if (backpressure?.state == IngestState.Paused) {
+            consumer.pause(consumer.assignment())
+        } else if (consumer.paused().isNotEmpty()) {
+            consumer.resume(consumer.paused())
+        }
+    }
+
+    private fun commit(partitions: Collection<TopicPartition>) {
+        val offsets = uncommitted.filterKeys { it in partitions }
+
+        if (offsets.isNotEmpty()) {
+            consumer.commitSync(offsets)
+            uncommitted.keys.removeAll(offsets.keys)
+        }
+    }
+
+    private val rebalanceListener = object : ConsumerRebalanceListener {
+        override fun onPartitionsRevoked(partitions: Collection<TopicPartition>) {
+            pollBuffers.flatten().forEach { it.flush() }
+            commit(partitions)
+        }
+
+        override fun onPartitionsAssigned(partitions: Collection<TopicPartition>) {}
+
+        // Tapte partisjoner kan ikke committes. Den nye eieren leser dem fra siste commit.
+        override fun onPartitionsLost(partitions: Collection<TopicPartition>) {
+            pollBuffers.flatten().forEach { it.discard() }
+            uncommitted.keys.removeAll(partitions.toSet())
+        }
+    }
+
+    // Produsentene bruker varselId som nøkkel. Bare records uten nøkkel leses for å finne varselId.
+    private fun workerIndex(record: ConsumerRecord<String, String>): Int {
+        val key = record.key() ?: varselIdFromValue(record) ?: record.partition().toString()
+
+        return Math.floorMod(key.hashCode(), broadcasters.size)
+    }
+
+    private fun varselIdFromValue(record: ConsumerRecord<String, String>): String? {
+        return try {
+            record.value()?.let { objectMapper.readTree(it)["varselId"]?.asText() }
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun nextOffsets(records: ConsumerRecords<String, String>): Map<TopicPartition, OffsetAndMetadata> {
+        return records.partitions().associateWith { partition ->
+            OffsetAndMetadata(records.records(partition).last().offset() + 1)
+        }
+    }
+
+    // Spoler hver partisjon tilbake til første record som ikke ble behandlet. Records foran den i samme partisjon er
+    // ferdige, så offseten committes også, slik at de ikke leses på nytt ved rebalansering.
+    private fun rewindTo(records: List<ConsumerRecord<String, String>>): Map<TopicPartition, OffsetAndMetadata> {
+        return records.groupBy { TopicPartition(it.topic(), it.partition()) }
+            .mapValues { (partition, partitionRecords) ->
+                val offset = partitionRecords.minOf { it.offset() }
+                consumer.seek(partition, offset)
+                OffsetAndMetadata(offset)
+            }
+    }
+}
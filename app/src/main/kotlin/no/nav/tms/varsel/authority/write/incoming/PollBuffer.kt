@@ -0,0 +1,10 @@
+package no.nav.tms.varsel.authority.write.incoming
+
+// Subscriber som samler opp eventer mens en worker går gjennom sin del av en poll, og skriver dem samlet når workeren
+// er ferdig. Skjer det en feil, spoles hele pollen tilbake før offsets committes, så ingenting går tapt.
+interface PollBuffer {
+    fun flush()
+
+    // Kalles når pollen spoles tilbake, slik at eventene ikke tas med to ganger
+    fun discard()
+}
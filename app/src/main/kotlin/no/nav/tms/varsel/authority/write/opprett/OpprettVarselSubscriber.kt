@@ -16,11 +16,14 @@ import no.nav.tms.varsel.authority.Innhold
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
 import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import no.nav.tms.varsel.authority.write.incoming.IngestBackpressure
 import org.postgresql.util.PSQLException
 
 internal class OpprettVarselSubscriber(
     private val varselRepository: WriteVarselRepository,
-    private val varselAktivertProducer: VarselOpprettetProducer
+    private val varselAktivertProducer: VarselOpprettetProducer,
+    private val recentVarselIds: RecentVarselIdCache = RecentVarselIdCache(),
+    private val backpressure: IngestBackpressure? = null
 ) : Subscriber() {
 
     private val log = KotlinLogging.logger { }
@@ -46,8 +49,12 @@ internal class OpprettVarselSubscriber(
     private val objectMapper = defaultObjectMapper()
 
     override suspend fun receive(jsonMessage: JsonMessage) {
+        backpressure?.awaitCapacity()
+
         log.info { "Opprett-event motatt" }
 
+        rejectKnownDuplicate(jsonMessage)
+
         deserialize(jsonMessage)
             .also { validate(it) }
             .let {
@@ -72,11 +79,14 @@ internal class OpprettVarselSubscriber(
     private fun opprettVarsel(dbVarsel: DatabaseVarsel) {
         try {
             varselRepository.insertVarsel(dbVarsel)
+            recentVarselIds.add(dbVarsel.varselId)
             varselAktivertProducer.varselOpprettet(dbVarsel)
             VarselMetricsReporter.registerVarselAktivert(dbVarsel.type, dbVarsel.produsent)
             log.info { "Opprett varsel fra kafka behandlet" }
 
         } catch (e: UniqueConstraintException) {
+            recentVarselIds.add(dbVarsel.varselId)
+            VarselMetricsReporter.registerVarselDuplikat(DuplikatKilde.Database)
             log.info { "Ignorerte duplikat varsel" }
             throw DuplikatVarselException()
         } catch (e: PSQLException) {
@@ -85,6 +95,16 @@ internal class OpprettVarselSubscriber(
         }
     }
 
+    private fun rejectKnownDuplicate(jsonMessage: JsonMessage) {
+        val varselId = jsonMessage.json["varselId"]?.asText() ?: return
+
+        if (recentVarselIds.contains(varselId)) {
+            VarselMetricsReporter.registerVarselDuplikat(DuplikatKilde.Cache)
+            log.info { "Ignorerte kjent duplikat varsel" }
+            throw DuplikatVarselException()
+        }
+    }
+
     private fun mapInnhold(opprettVarsel: OpprettVarsel): Innhold {
         val defaultTekst = with(opprettVarsel.tekster) {
             if (size == 1) {
@@ -0,0 +1,42 @@
+package no.nav.tms.varsel.authority.write.opprett
+
+import java.time.Duration
+
+// Inneholder kun varselId-er som databasen allerede har bekreftet, så et treff er aldri falskt positivt. Oppføringer
+// eldre enn ttl regnes som ukjente, og slike varsler går videre til vanlig sjekk mot databasen.
+class RecentVarselIdCache(
+    private val maxSize: Int = 100_000,
+    private val ttl: Duration = Duration.ofHours(24)
+) {
+    private val seenAt = object : LinkedHashMap<String, Long>(1024, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>?) = size > maxSize
+    }
+
+    fun contains(varselId: String): Boolean = synchronized(seenAt) {
+        val timestamp = seenAt[varselId] ?: return false
+
+        if (System.nanoTime() - timestamp > ttl.toNanos()) {
+            seenAt.remove(varselId)
+            false
+        } else {
+            true
+        }
+    }
+
+    fun add(varselId: String) = synchronized(seenAt) {
+        seenAt[varselId] = System.nanoTime()
+    }
+
+    fun addAll(varselIds: List<String>) = synchronized(seenAt) {
+        val now = System.nanoTime()
+        varselIds.forEach { seenAt[it] = now }
+    }
+
+    val size get() = synchronized(seenAt) { seenAt.size }
+}
+
+enum class DuplikatKilde {
+    Cache, Database;
+
+    val lowercaseName = name.lowercase()
+}
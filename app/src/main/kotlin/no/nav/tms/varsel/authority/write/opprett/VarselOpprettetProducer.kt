@@ -1,13 +1,11 @@
 package no.nav.tms.varsel.authority.write.opprett
 
 import com.fasterxml.jackson.annotation.JsonProperty
-import com.fasterxml.jackson.databind.SerializationFeature
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
-import com.fasterxml.jackson.module.kotlin.jacksonMapperBuilder
 import io.github.oshai.kotlinlogging.KotlinLogging
 import no.nav.tms.varsel.action.*
 import no.nav.tms.varsel.authority.*
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
+import no.nav.tms.varsel.authority.config.includeNullsObjectMapper
 import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
 import java.time.ZonedDateTime
 
@@ -18,15 +16,12 @@ class VarselOpprettetProducer(
 
     private val log = KotlinLogging.logger { }
 
-    private val objectMapper = jacksonMapperBuilder()
-        .addModule(JavaTimeModule())
-        .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
-        .build()
+    private val objectWriter = includeNullsObjectMapper().writerFor(VarselOpprettet::class.java)
 
     fun varselOpprettet(dbVarsel: DatabaseVarsel) {
 
         val varselOpprettetEvent = VarselOpprettet.fromDatabaseVarsel(dbVarsel)
-            .let(objectMapper::writeValueAsString)
+            .let(objectWriter::writeValueAsString)
 
         queueRepository.enqueueRecord(topicName, dbVarsel.varselId, varselOpprettetEvent)
 
@@ -2,110 +2,78 @@ package no.nav.tms.varsel.authority.write.opprett
 
 import kotliquery.Row
 import kotliquery.queryOf
-import no.nav.tms.common.postgres.JsonbHelper.json
-import no.nav.tms.common.postgres.JsonbHelper.jsonOrNull
 import no.nav.tms.common.postgres.JsonbHelper.toJsonb
 import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.action.EksternVarslingBestilling
 import no.nav.tms.varsel.action.Sensitivitet
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.authority.DatabaseVarsel
+import no.nav.tms.varsel.authority.EksternVarslingStatus
 import no.nav.tms.varsel.authority.Innhold
 import no.nav.tms.varsel.authority.common.*
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.config.defaultObjectMapper
+import no.nav.tms.varsel.authority.config.jsonReader
+import no.nav.tms.varsel.authority.config.jsonb
+import no.nav.tms.varsel.authority.config.jsonbOrNull
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde
+import java.time.ZonedDateTime
 
-class WriteVarselRepository(val database: PostgresDatabase) {
+class WriteVarselRepository(
+    val database: PostgresDatabase,
+    private val produsenter: ProdusentRegistry = ProdusentRegistry(database)
+) {
 
     fun insertVarsel(dbVarsel: DatabaseVarsel) {
-        database.update {
-            queryOf(
-                """
-                insert into varsel(
-                    type,
-                    varselId,
-                    ident,
-                    sensitivitet,
-                    innhold,
-                    produsent,
-                    eksternVarslingBestilling,
-                    eksternVarslingStatus,
-                    aktiv,
-                    opprettet,
-                    aktivFremTil,
-                    inaktivert,
-                    inaktivertAv,
-                    metadata
-                ) values (
-                    :type,
-                    :varselId,
-                    :ident,
-                    :sensitivitet,
-                    :innhold,
-                    :produsent,
-                    :eksternVarslingBestilling,
-                    :eksternVarslingStatus,
-                    :aktiv,
-                    :opprettet,
-                    :aktivFremTil,
-                    :inaktivert,
-                    :inaktivertAv,
-                    :metadata
-                )
-            """,
-                mapOf(
-                    "type" to dbVarsel.type.name.lowercase(),
-                    "varselId" to dbVarsel.varselId,
-                    "ident" to dbVarsel.ident,
-                    "sensitivitet" to dbVarsel.sensitivitet.name.lowercase(),
-                    "innhold" to dbVarsel.innhold.toJsonb(),
-                    "produsent" to dbVarsel.produsent.toJsonb(),
-                    "eksternVarslingBestilling" to dbVarsel.eksternVarslingBestilling.toJsonb(),
-                    "eksternVarslingStatus" to dbVarsel.eksternVarslingStatus.toJsonb(),
-                    "aktiv" to dbVarsel.aktiv,
-                    "opprettet" to dbVarsel.opprettet,
-                    "aktivFremTil" to dbVarsel.aktivFremTil,
-                    "inaktivert" to dbVarsel.inaktivert,
-                    "inaktivertAv" to dbVarsel.inaktivertAv?.name,
-                    "metadata" to dbVarsel.metadata.toJsonb()
-                )
+        database.update(
+            insertVarselStatement,
+            mapOf(
+                "type" to dbVarsel.type.name.lowercase(),
+                "varselId" to dbVarsel.varselId,
+                "ident" to dbVarsel.ident,
+                "sensitivitet" to dbVarsel.sensitivitet.name.lowercase(),
+                "innhold" to dbVarsel.innhold.toJsonb(),
+                "produsentId" to produsenter.idFor(dbVarsel.produsent),
+                "eksternVarslingBestilling" to dbVarsel.eksternVarslingBestilling.toJsonb(),
+                "eksternVarslingStatus" to dbVarsel.eksternVarslingStatus.toJsonb(),
+                "aktiv" to dbVarsel.aktiv,
+                "opprettet" to dbVarsel.opprettet,
+                "aktivFremTil" to dbVarsel.aktivFremTil,
+                "inaktivert" to dbVarsel.inaktivert,
+                "inaktivertAv" to dbVarsel.inaktivertAv?.name,
+                "metadata" to dbVarsel.metadata.toJsonb()
             )
-        }
+        )
     }
 
     fun getVarsel(varselId: String): DatabaseVarsel? {
-        return database.singleOrNull {
+        return database.singleOrNull(getVarselStatement, mapOf("varselId" to varselId), toDbVarsel())
+    }
+
+    fun getVarselIdsOpprettetEtter(tidspunkt: ZonedDateTime, limit: Int): List<String> {
+        return database.list {
             queryOf(
-                "select * from varsel where varselId = :varselId",
-                mapOf("varselId" to varselId)
+                "select varselId from varsel where opprettet > :tidspunkt order by opprettet desc limit :limit",
+                mapOf("tidspunkt" to tidspunkt, "limit" to limit)
             )
-                .map(toDbVarsel())
+                .map { it.string("varselId") }
         }
     }
 
     fun inaktiverVarsel(varselId: String, kilde: VarselInaktivertKilde, metadata: Map<String, Any>? = null) {
-        database.update {
-            queryOf(
-                """
-                update varsel set 
-                  aktiv = false,
-                  inaktivertAv = :kilde,
-                  inaktivert = :tidspunkt,
-                  metadata = coalesce(metadata::jsonb, '{}'::jsonb) || coalesce(:metadata, '{}'::jsonb)
-                where varselId = :varselId
-            """,
-                mapOf(
-                    "varselId" to varselId,
-                    "kilde" to kilde.lowercaseName,
-                    "tidspunkt" to nowAtUtc(),
-                    "metadata" to metadata.toJsonb()
-                )
+        database.update(
+            inaktiverVarselStatement,
+            mapOf(
+                "varselId" to varselId,
+                "kilde" to kilde.lowercaseName,
+                "tidspunkt" to nowAtUtc(),
+                "metadata" to metadata.toJsonb()
             )
-        }
+        )
     }
 
     private fun toDbVarsel(): (Row) -> DatabaseVarsel = { row ->
-        val varselInnhold: Innhold = row.json("innhold")
+        val varselInnhold: Innhold = row.jsonb("innhold", innholdReader)
 
         DatabaseVarsel(
             type = row.string("type").let(Varseltype::parse),
@@ -114,14 +82,73 @@ class WriteVarselRepository(val database: PostgresDatabase) {
             aktiv = row.boolean("aktiv"),
             sensitivitet = row.string("sensitivitet").let(Sensitivitet::parse),
             innhold = varselInnhold,
-            produsent = row.json("produsent"),
-            eksternVarslingBestilling = row.jsonOrNull("eksternVarslingBestilling"),
-            eksternVarslingStatus = row.jsonOrNull("eksternVarslingStatus"),
+            produsent = produsenter.produsent(row.int("produsentId")),
+            eksternVarslingBestilling = row.jsonbOrNull("eksternVarslingBestilling", bestillingReader),
+            eksternVarslingStatus = row.jsonbOrNull("eksternVarslingMedHistorikk", eksternVarslingStatusReader),
             opprettet = row.zonedDateTime("opprettet"),
             inaktivert = row.zonedDateTimeOrNull("inaktivert"),
             inaktivertAv = row.stringOrNull("inaktivertAv")?.let { VarselInaktivertKilde.from(it) },
             aktivFremTil = row.zonedDateTimeOrNull("aktivFremTil"),
-            metadata = row.jsonOrNull("metadata")
+            metadata = row.jsonbOrNull("metadata", metadataReader)
         )
     }
 }
+
+private val innholdReader = jsonReader<Innhold>()
+private val bestillingReader = jsonReader<EksternVarslingBestilling>()
+private val eksternVarslingStatusReader = jsonReader<EksternVarslingStatus>()
+private val metadataReader = jsonReader<Map<String, Any>>()
+
+private val insertVarselStatement = StatementTemplate(
+    "insertVarsel",
+    """
+    insert into varsel(
+        type,
+        varselId,
+        ident,
+        sensitivitet,
+        innhold,
+        produsentId,
+        eksternVarslingBestilling,
+        eksternVarslingStatus,
+        aktiv,
+        opprettet,
+        aktivFremTil,
+        inaktivert,
+        inaktivertAv,
+        metadata
+    ) values (
+        :type,
+        :varselId,
+        :ident,
+        :sensitivitet,
+        :innhold,
+        :produsentId,
+        :eksternVarslingBestilling,
+        :eksternVarslingStatus,
+        :aktiv,
+        :opprettet,
+        :aktivFremTil,
+        :inaktivert,
+        :inaktivertAv,
+        :metadata
+    )
+    """
+)
+
+private val getVarselStatement = StatementTemplate(
+    "getVarsel",
+    "select varsel.*, ${eksternVarslingStatusMedHistorikk("varsel")} as eksternVarslingMedHistorikk from varsel where $varselIdMedPartisjon"
+)
+
+private val inaktiverVarselStatement = StatementTemplate(
+    "inaktiverVarsel",
+    """
+    update varsel set 
+      aktiv = false,
+      inaktivertAv = :kilde,
+      inaktivert = :tidspunkt,
+      metadata = coalesce(metadata::jsonb, '{}'::jsonb) || coalesce(:metadata, '{}'::jsonb)
+    where $varselIdMedPartisjon
+    """
+)
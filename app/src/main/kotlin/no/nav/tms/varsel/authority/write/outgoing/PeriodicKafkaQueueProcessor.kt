@@ -3,63 +3,432 @@ package no.nav.tms.varsel.authority.write.outgoing
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.prometheus.metrics.core.metrics.Counter
 import io.prometheus.metrics.core.metrics.Gauge
-import no.nav.tms.common.kubernetes.PodLeaderElection
 import no.nav.tms.common.logging.TeamLogs
 import no.nav.tms.common.util.scheduling.PeriodicJob
+import no.nav.tms.varsel.authority.common.Leadership
+import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.kafka.application.AppHealth
-import no.nav.tms.kafka.producer.ProducerSendUtils.batched
-import no.nav.tms.kafka.producer.RetriableSendException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import no.nav.tms.varsel.authority.config.VarselMetricsReporter
+import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository.RecordQueueDto
 import org.apache.kafka.clients.producer.Producer
+import org.apache.kafka.clients.producer.RecordMetadata
+import org.apache.kafka.common.InvalidRecordException
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.errors.AuthenticationException
+import org.apache.kafka.common.errors.AuthorizationException
+import org.apache.kafka.common.errors.CorruptRecordException
+import org.apache.kafka.common.errors.InvalidProducerEpochException
+import org.apache.kafka.common.errors.OutOfOrderSequenceException
+import org.apache.kafka.common.errors.ProducerFencedException
+import org.apache.kafka.common.errors.RecordBatchTooLargeException
+import org.apache.kafka.common.errors.RecordTooLargeException
+import org.apache.kafka.common.errors.RetriableException
+import org.apache.kafka.common.errors.SerializationException
+import org.apache.kafka.common.errors.UnsupportedVersionException
 import java.time.Duration
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import kotlin.math.max
+import kotlin.math.min
 
+// Produsenten opprettes først når poden faktisk skal sende, slik at poder som ikke er leder slipper å koble til kafka.
+// Mister poden ledelse, avsluttes runden etter batchene som er på vei, og produsenten lukkes. Feiler produsenten selv,
+// lukkes den og en ny lages etter en pause.
 class PeriodicKafkaQueueProcessor(
     private val repository: RecordQueueRepository,
-    private val recordProducer: Producer<String, String>,
-    private val leaderElection: PodLeaderElection,
+    private val producerFactory: () -> Producer<String, ByteArray>,
+    private val leadership: Leadership,
     private val batchSize: Int = 1000,
     private val syncTimeoutSeconds: Long = 15,
-    internal: Duration = Duration.ofSeconds(2)
+    internal: Duration = Duration.ofSeconds(2),
+    private val maxInFlightBatches: Int = 3,
+    private val retryPolicy: RecordRetryPolicy = RecordRetryPolicy(),
+    private val minSlotAge: Duration = Duration.ofMinutes(1),
+    private val producerBackoff: Duration = Duration.ofSeconds(5),
+    private val maxProducerBackoff: Duration = Duration.ofMinutes(5),
+    private val recreateProducer: Boolean = true
 ): PeriodicJob(internal) {
 
+    // Samme produsent brukes videre etter feil, siden den ikke kan lages på nytt
+    constructor(
+        repository: RecordQueueRepository,
+        recordProducer: Producer<String, ByteArray>,
+        leadership: Leadership,
+        batchSize: Int = 1000,
+        syncTimeoutSeconds: Long = 15,
+        internal: Duration = Duration.ofSeconds(2),
+        maxInFlightBatches: Int = 3,
+        retryPolicy: RecordRetryPolicy = RecordRetryPolicy(),
+        producerBackoff: Duration = Duration.ofSeconds(5)
+    ) : this(
+        repository = repository,
+        producerFactory = { recordProducer },
+        leadership = leadership,
+        batchSize = batchSize,
+        syncTimeoutSeconds = syncTimeoutSeconds,
+        internal = internal,
+        maxInFlightBatches = maxInFlightBatches,
+        retryPolicy = retryPolicy,
+        producerBackoff = producerBackoff,
+        recreateProducer = false
+    )
+
     private val log = KotlinLogging.logger { }
     private val teamLog = TeamLogs.logger { }
 
+    @Volatile
+    private var currentProducer: Producer<String, ByteArray>? = null
+
+    private val recordProducer: Producer<String, ByteArray>
+        get() = currentProducer ?: producerFactory().also { currentProducer = it }
+
+    private var producerFailures = 0
+    private var pausedUntil = System.nanoTime()
+
+    // Holdes mens køen behandles, slik at produsenten ikke lukkes midt i en runde
+    private val producerLock = Mutex()
+
+    init {
+        leadership.onChange { isLeader ->
+            if (!isLeader && recreateProducer) {
+                producerLock.withLock { releaseProducer() }
+            }
+        }
+    }
+
     override val job = initializeJob {
-        if (leaderElection.isLeader()) {
-            processQueue()
+        producerLock.withLock {
+            if (leadership.isLeader && System.nanoTime() - pausedUntil >= 0) {
+                processQueue()
+                rotateQueueSlots()
+            }
         }
     }
 
-    private fun processQueue() {
+    // Neste batch hentes fra databasen mens forrige batch fortsatt er på vei til kafka. Vi venter alltid på eldste
+    // batch først, og en nøkkel har aldri mer enn én record på vei. En senere record for samme nøkkel holdes tilbake til
+    // den forrige er bekreftet, slik at den ikke kan komme frem før en tidligere record som feiler og sendes på nytt.
+    // Bare recorden som må vente holdes tilbake. Den tas med foran neste batch fra køen, og resten sendes med en gang.
+    //
+    // Feiler én record permanent, stoppes bare nøkkelen dens, og resten av køen sendes som vanlig. Midlertidige feil
+    // mot kafka gjelder alle records, og da avslutter vi runden og prøver igjen senere. Feil i produsenten telles ikke
+    // mot records, men gir en pause før vi prøver igjen med ny produsent.
+    private suspend fun processQueue() = coroutineScope {
 
         reportQueueSize()
+        reportProducerMetrics()
+
+        val inFlight = ArrayDeque<InFlightBatch>()
+        val inFlightKeys = mutableSetOf<String>()
+        val blockedKeys = mutableSetOf<String>()
+
+        var lastFetchedId = 0L
+        var queueDrained = false
+        var deferred = emptyList<RecordQueueDto>()
+        var outcome: SendOutcome = SendOutcome.Ok
+
+        fun awaitOldest() {
+            val batch = inFlight.removeFirst()
+            inFlightKeys -= batch.keys
+
+            val batchOutcome = awaitAndDequeue(batch, blockedKeys, registerRecordFailures = outcome !is SendOutcome.ProducerFailure)
+
+            if (outcome is SendOutcome.Ok || batchOutcome is SendOutcome.ProducerFailure && outcome !is SendOutcome.ProducerFailure) {
+                outcome = batchOutcome
+            }
+        }
+
+        fun send(records: List<RecordQueueDto>) {
+            val batch = sendBatch(records, blockedKeys, inFlightKeys)
+
+            if (batch.sent.isNotEmpty() || batch.sendFailure != null) {
+                inFlight.addLast(batch)
+            }
+
+            if (batch.sendFailure == null) {
+                deferred = batch.deferred
+            } else {
+                deferred = emptyList()
+
+                while (inFlight.isNotEmpty()) {
+                    awaitOldest()
+                }
+            }
+        }
+
+        while (!queueDrained && outcome is SendOutcome.Ok && leadership.isLeader) {
+            val nextInQueue = repository.peekNext(batchSize, afterId = lastFetchedId)
+
+            if (nextInQueue.isNotEmpty()) {
+                log.info { "Behandler neste ${nextInQueue.size} elementer i record-queue" }
+
+                lastFetchedId = nextInQueue.last().id
+            }
+
+            if (deferred.isNotEmpty() || nextInQueue.isNotEmpty()) {
+                send(deferred + nextInQueue)
+            }
+
+            queueDrained = nextInQueue.size < batchSize
+
+            if (inFlight.size >= maxInFlightBatches) {
+                awaitOldest()
+            }
+        }
+
+        // Records som ventet på en tidligere record for samme nøkkel sendes når den er bekreftet
+        while (deferred.isNotEmpty() && outcome is SendOutcome.Ok && leadership.isLeader) {
+            if (inFlight.isNotEmpty()) {
+                awaitOldest()
+            }
+
+            if (outcome is SendOutcome.Ok) {
+                send(deferred)
+            }
+        }
+
+        while (inFlight.isNotEmpty()) {
+            awaitOldest()
+        }
+
+        when (val result = outcome) {
+            is SendOutcome.Ok -> producerFailures = 0
+            is SendOutcome.Transient -> logSendFailure(result.cause)
+            is SendOutcome.ProducerFailure -> handleProducerFailure(result.cause)
+        }
+    }
+
+    // Records med en nøkkel som allerede er på vei, og senere records for samme nøkkel, gis tilbake som deferred.
+    // Kaster produsenten direkte fra send, gjelder feilen produsenten og ikke recorden, og resten av batchen sendes ikke.
+    private fun sendBatch(
+        batch: List<RecordQueueDto>,
+        blockedKeys: MutableSet<String>,
+        inFlightKeys: MutableSet<String>
+    ): InFlightBatch {
+        val sent = mutableListOf<Pair<RecordQueueDto, Future<RecordMetadata>>>()
+        val deferred = mutableListOf<RecordQueueDto>()
+
+        batch.forEachIndexed { index, dto ->
+            if (dto.recordKey in blockedKeys) {
+                return@forEachIndexed
+            }
+
+            if (dto.recordKey in inFlightKeys) {
+                deferred += dto
+                return@forEachIndexed
+            }
+
+            try {
+                sent += dto to recordProducer.send(dto.toKafkaRecord())
+                inFlightKeys += dto.recordKey
+            } catch (e: Exception) {
+                return InFlightBatch(sent, unsent = batch.drop(index), deferred = emptyList(), sendFailure = e)
+            }
+        }
+
+        return InFlightBatch(sent, unsent = emptyList(), deferred = deferred, sendFailure = null)
+    }
+
+    private fun CoroutineScope.awaitAndDequeue(
+        batch: InFlightBatch,
+        blockedKeys: MutableSet<String>,
+        registerRecordFailures: Boolean
+    ): SendOutcome {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(syncTimeoutSeconds)
+        val acknowledged = mutableListOf<Long>()
+        val failed = mutableListOf<Pair<RecordQueueDto, Throwable>>()
+        var transientFailure = batch.sendFailure?.let(::unwrap)?.takeIf(::isTransient)
+        var producerFailure = batch.sendFailure?.let(::unwrap)?.takeUnless(::isTransient)
+
+        batch.sent.forEach { (dto, future) ->
+            try {
+                future.get(max(deadline - System.nanoTime(), 0L), TimeUnit.NANOSECONDS)
+
+                if (dto.recordKey !in blockedKeys) {
+                    acknowledged += dto.id
+                    reportEntryProcessed(dto.topic)
+                }
+            } catch (e: Exception) {
+                blockedKeys += dto.recordKey
+
+                val cause = unwrap(e)
+
+                if (isTransient(cause)) {
+                    transientFailure = transientFailure ?: cause
+                } else {
+                    failed += dto to cause
+                }
+            }
+        }
+
+        blockedKeys += batch.unsent.map { it.recordKey }
+
+        producerFailure = producerFailure ?: producerFailureAmong(batch.sent.size, failed)
+
+        if (acknowledged.isNotEmpty()) {
+            launch(Dispatchers.IO) {
+                dequeueRecords(acknowledged)
+            }
+        }
+
+        if (failed.isNotEmpty() && producerFailure == null && registerRecordFailures) {
+            launch(Dispatchers.IO) {
+                registerFailures(failed)
+            }
+        }
+
+        return producerFailure?.let { SendOutcome.ProducerFailure(it) }
+            ?: transientFailure?.let { SendOutcome.Transient(it) }
+            ?: SendOutcome.Ok
+    }
+
+    // Feiler alle records i en batch med samme feil, er det ikke recordene det er noe galt med
+    private fun producerFailureAmong(sent: Int, failed: List<Pair<RecordQueueDto, Throwable>>): Throwable? {
+        val causes = failed.map { (_, cause) -> cause }
+
+        causes.firstOrNull(::isProducerFailure)?.let { return it }
+
+        val sameFailureForAll = sent > 1 && causes.size == sent && causes.map { it::class }.distinct().size == 1
+
+        return causes.firstOrNull()?.takeIf { sameFailureForAll && !isRecordFailure(it) }
+    }
+
+    private fun handleProducerFailure(cause: Throwable) {
+        producerFailures++
 
-        val nextInQueue = repository.peekNext(batchSize)
-        if (nextInQueue.isEmpty()) {
-            return
+        val pause = producerBackoff.multipliedBy(1L shl min(producerFailures - 1, 16))
+            .let { if (it > maxProducerBackoff) maxProducerBackoff else it }
+
+        pausedUntil = System.nanoTime() + pause.toNanos()
+
+        PRODUCER_FAILURES.labelValues(cause::class.simpleName ?: "ukjent").inc()
+
+        log.error { "Produsent for outbox feilet med ${cause::class.simpleName}. Venter ${pause.seconds} sekunder før neste forsøk." }
+        teamLog.error(cause) { "Produsent for outbox feilet. Venter ${pause.seconds} sekunder før neste forsøk." }
+
+        if (recreateProducer) {
+            closeProducer()
+        }
+    }
+
+    // Runden er ferdig når vi har låsen, så det er ingenting på vei som må vente på produsenten
+    private fun releaseProducer() {
+        val producer = currentProducer ?: return
+        currentProducer = null
+
+        try {
+            producer.close(Duration.ofSeconds(syncTimeoutSeconds))
+            log.info { "Poden er ikke lenger leder. Lukket produsent for outbox." }
+        } catch (e: Exception) {
+            log.warn { "Klarte ikke å lukke produsent etter tapt ledelse" }
         }
+    }
 
-        log.info { "Behandler neste ${nextInQueue.size} elementer i record-queue" }
+    private fun closeProducer() {
+        val producer = currentProducer ?: return
+        currentProducer = null
 
         try {
-            recordProducer.batched(syncTimeoutSeconds) {
-                nextInQueue.forEach { dto ->
-                    sendInBatch(dto.toKafkaRecord()) {
-                        repository.dequeueRecord(dto.id)
-                        reportEntryProcessed(dto.topic)
-                    }
+            producer.close(Duration.ZERO)
+        } catch (e: Exception) {
+            log.warn { "Klarte ikke å lukke produsent som feilet" }
+        }
+    }
+
+    private fun registerFailures(failed: List<Pair<RecordQueueDto, Throwable>>) {
+        failed.forEach { (dto, cause) ->
+            try {
+                val quarantined = repository.registerFailure(
+                    id = dto.id,
+                    error = "${cause::class.simpleName}: ${cause.message}",
+                    maxAttempts = retryPolicy.maxAttempts,
+                    backoff = retryPolicy.backoff,
+                    maxBackoff = retryPolicy.maxBackoff
+                )
+
+                RECORD_FAILED.labelValues(dto.topic, quarantined.toString()).inc()
+
+                if (quarantined) {
+                    log.error { "Record ${dto.id} feilet ${retryPolicy.maxAttempts} ganger og er satt i karantene" }
+                    teamLog.error(cause) { "Record ${dto.id} med nøkkel ${dto.recordKey} er satt i karantene" }
+                } else {
+                    log.warn { "Record ${dto.id} kunne ikke sendes til kafka. Prøver på nytt senere." }
+                    teamLog.warn(cause) { "Record ${dto.id} med nøkkel ${dto.recordKey} kunne ikke sendes til kafka" }
                 }
+            } catch (e: Exception) {
+                log.warn { "Klarte ikke å registrere feil for record ${dto.id}. Den blir sendt på nytt." }
+                teamLog.warn(e) { "Klarte ikke å registrere feil for record ${dto.id}. Den blir sendt på nytt." }
+            }
+        }
+    }
+
+    private fun rotateQueueSlots() {
+        try {
+            val slots = repository.rotateSlots(minSlotAge)
+
+            if (slots.truncated.isNotEmpty()) {
+                log.info { "Truncated tømte slots ${slots.truncated} i record-queue" }
             }
-        } catch (e: RetriableSendException) {
-            log.warn { "Midlertidig feil ved sending av eventer fra outbox til kafka. Prøver på nytt senere" }
-            teamLog.warn(e) { "Midlertidig feil ved sending av eventer fra outbox til kafka. Prøver på nytt senere" }
+
+            if (slots.rotated) {
+                log.info { "Byttet aktiv slot i record-queue til ${slots.active}" }
+            }
+
+            RECORD_QUEUE_ACTIVE_SLOT.set(slots.active.toDouble())
         } catch (e: Exception) {
-            log.error { "Feil ved sending av eventer fra outbox til kafka. Avslutter prosessering." }
-            teamLog.error(e) { "Feil ved sending av eventer fra outbox til kafka. Avslutter prosessering." }
+            log.warn(e) { "Klarte ikke å rotere slots i record-queue. Prøver igjen senere." }
         }
     }
 
+    private fun unwrap(e: Throwable): Throwable = if (e is ExecutionException) e.cause ?: e else e
+
+    private fun isTransient(cause: Throwable): Boolean {
+        return cause is RetriableException || cause is TimeoutException
+    }
+
+    // Feil i tilgang, konfigurasjon eller tilstanden til produsenten gjelder alle records
+    private fun isProducerFailure(cause: Throwable): Boolean {
+        return cause is AuthenticationException ||
+            cause is AuthorizationException ||
+            cause is ProducerFencedException ||
+            cause is OutOfOrderSequenceException ||
+            cause is InvalidProducerEpochException ||
+            cause is UnsupportedVersionException ||
+            cause is SerializationException ||
+            cause is ConfigException ||
+            cause is IllegalStateException
+    }
+
+    // Feil som alltid skyldes recorden selv, selv om alle records i en batch skulle feile på samme måte
+    private fun isRecordFailure(cause: Throwable): Boolean {
+        return cause is RecordTooLargeException ||
+            cause is RecordBatchTooLargeException ||
+            cause is InvalidRecordException ||
+            cause is CorruptRecordException
+    }
+
+    private fun dequeueRecords(ids: List<Long>) {
+        try {
+            repository.dequeueRecords(ids)
+        } catch (e: Exception) {
+            log.warn { "Klarte ikke å fjerne ${ids.size} sendte records fra kø. Disse blir sendt på nytt." }
+            teamLog.warn(e) { "Klarte ikke å fjerne ${ids.size} sendte records fra kø. Disse blir sendt på nytt." }
+        }
+    }
+
+    private fun logSendFailure(e: Throwable) {
+        log.warn { "Midlertidig feil ved sending av eventer fra outbox til kafka. Prøver på nytt senere" }
+        teamLog.warn(e) { "Midlertidig feil ved sending av eventer fra outbox til kafka. Prøver på nytt senere" }
+    }
+
     fun isHealthy() = if (job.isActive) {
         AppHealth.Healthy
     } else {
@@ -67,9 +436,11 @@ class PeriodicKafkaQueueProcessor(
     }
 
     fun flushAndClose() {
+        val producer = currentProducer ?: return
+
         try {
-            recordProducer.flush()
-            recordProducer.close()
+            producer.flush()
+            producer.close()
             log.info { "Produsent for kafka-eventer er flushet og lukket." }
         } catch (e: Exception) {
             log.warn { "Klarte ikke å flushe og lukke produsent. Det kan være eventer som ikke ble sendt." }
@@ -78,16 +449,48 @@ class PeriodicKafkaQueueProcessor(
 
     private fun reportQueueSize() {
         RECORD_QUEUE_TOTAL_SIZE.set(repository.queueSize().toDouble())
+
+        repository.quarantineStatus().let { status ->
+            RECORD_QUARANTINE_SIZE.set(status.size.toDouble())
+            RECORD_QUARANTINE_AGE.set(
+                status.oldestCreatedAt?.let { Duration.between(it, nowAtUtc()).seconds.toDouble() } ?: 0.0
+            )
+        }
     }
 
     private fun reportEntryProcessed(topic: String) {
         RECORD_QUEUE_PROCESSED.labelValues(topic).inc()
     }
 
+    private fun reportProducerMetrics() {
+        recordProducer.metrics()
+            .filterKeys { it.group() == PRODUCER_METRICS_GROUP && it.name() in REPORTED_PRODUCER_METRICS }
+            .forEach { (name, metric) ->
+                (metric.metricValue() as? Double)
+                    ?.takeIf { it.isFinite() }
+                    ?.let { PRODUCER_METRICS.labelValues(name.name()).set(it) }
+            }
+    }
+
     companion object {
 
         private const val RECORD_QUEUE_TOTAL_SIZE_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_queue_total_size"
         private const val RECORD_QUEUE_PROCESSED_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_queue_processed"
+        private const val RECORD_FAILED_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_failed"
+        private const val RECORD_QUARANTINE_SIZE_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_quarantine_size"
+        private const val RECORD_QUARANTINE_AGE_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_quarantine_oldest_seconds"
+        private const val RECORD_QUEUE_ACTIVE_SLOT_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_queue_active_slot"
+        private const val PRODUCER_FAILURES_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_producer_failure"
+        private const val PRODUCER_METRICS_NAME = "${VarselMetricsReporter.NAMESPACE}_outgoing_record_producer"
+
+        private const val PRODUCER_METRICS_GROUP = "producer-metrics"
+        private val REPORTED_PRODUCER_METRICS = setOf(
+            "record-send-rate",
+            "batch-size-avg",
+            "records-per-request-avg",
+            "request-latency-avg",
+            "compression-rate-avg"
+        )
 
         private val RECORD_QUEUE_PROCESSED: Counter = Counter.builder()
             .name(RECORD_QUEUE_PROCESSED_NAME)
@@ -99,7 +502,60 @@ class PeriodicKafkaQueueProcessor(
             .name(RECORD_QUEUE_TOTAL_SIZE_NAME)
             .help("Totalt antall utgående kafka-records i kø")
             .register()
+
+        private val RECORD_FAILED: Counter = Counter.builder()
+            .name(RECORD_FAILED_NAME)
+            .help("Utgående kafka-records som feilet permanent, fordelt på om de ble satt i karantene")
+            .labelNames("topic", "quarantined")
+            .register()
+
+        private val RECORD_QUARANTINE_SIZE: Gauge = Gauge.builder()
+            .name(RECORD_QUARANTINE_SIZE_NAME)
+            .help("Antall utgående kafka-records i karantene")
+            .register()
+
+        private val RECORD_QUARANTINE_AGE: Gauge = Gauge.builder()
+            .name(RECORD_QUARANTINE_AGE_NAME)
+            .help("Sekunder siden eldste record i karantene ble satt der")
+            .register()
+
+        private val RECORD_QUEUE_ACTIVE_SLOT: Gauge = Gauge.builder()
+            .name(RECORD_QUEUE_ACTIVE_SLOT_NAME)
+            .help("Slot i record-queue som nye records skrives til")
+            .register()
+
+        private val PRODUCER_FAILURES: Counter = Counter.builder()
+            .name(PRODUCER_FAILURES_NAME)
+            .help("Feil i produsenten for utgående records som ga pause og ny produsent")
+            .labelNames("error")
+            .register()
+
+        private val PRODUCER_METRICS: Gauge = Gauge.builder()
+            .name(PRODUCER_METRICS_NAME)
+            .help("Utvalgte metrikker fra kafka-produsent for utgående records")
+            .labelNames("metric")
+            .register()
+    }
+
+    private sealed interface SendOutcome {
+        object Ok : SendOutcome
+        class Transient(val cause: Throwable) : SendOutcome
+        class ProducerFailure(val cause: Throwable) : SendOutcome
     }
 
+    private class InFlightBatch(
+        val sent: List<Pair<RecordQueueDto, Future<RecordMetadata>>>,
+        val unsent: List<RecordQueueDto>,
+        val deferred: List<RecordQueueDto>,
+        val sendFailure: Exception?
+    ) {
+        val keys = sent.map { (dto, _) -> dto.recordKey }.toSet()
+    }
 }
 
+// Antall forsøk før en record som feiler permanent settes i karantene, og hvor lenge det ventes mellom forsøkene
+data class RecordRetryPolicy(
+    val maxAttempts: Int = 8,
+    val backoff: Duration = Duration.ofSeconds(2),
+    val maxBackoff: Duration = Duration.ofMinutes(10)
+)
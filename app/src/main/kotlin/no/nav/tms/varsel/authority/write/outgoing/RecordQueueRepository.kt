@@ -1,59 +1,192 @@
 package no.nav.tms.varsel.authority.write.outgoing
 
 import kotliquery.queryOf
+import kotliquery.sessionOf
+import kotliquery.using
 import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.common.StatementTemplate
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper
+import no.nav.tms.varsel.authority.common.update
 import org.apache.kafka.clients.producer.ProducerRecord
+import java.sql.SQLException
+import java.time.Duration
+import java.time.ZonedDateTime
 
-class RecordQueueRepository(private val database: PostgresDatabase) {
+class RecordQueueRepository(
+    private val database: PostgresDatabase,
+    private val valueEncoding: RecordValueEncoding = RecordValueEncoding.Text,
+    private val compressionThresholdBytes: Int = 2048
+) {
     fun enqueueRecord(topic: String, key: String, value: String) {
-        database.update {
-            queryOf("""
-                insert into outgoing_record_queue(topic, recordKey, recordValue, createdAt)
-                values(:topic, :recordKey, :recordValue, :createdAt)
-            """, mapOf(
+        val encodedValue = RecordValueCodec.encode(value, valueEncoding, compressionThresholdBytes)
+
+        database.update(
+            enqueueRecordStatement,
+            mapOf(
                 "topic" to topic,
                 "recordKey" to key,
-                "recordValue" to value,
+                "recordValue" to encodedValue.text,
+                "recordValueBytes" to encodedValue.bytes,
+                "valueEncoding" to encodedValue.encoding.lowercaseName,
                 "createdAt" to ZonedDateTimeHelper.nowAtUtc(),
-            ))
-        }
+            )
+        )
     }
 
-    fun dequeueRecord(id: Long) {
-        database.update {
-            queryOf("""
-                delete from outgoing_record_queue where id = :entryId
-            """, mapOf(
-                "entryId" to id
-            ))
-        }
+    fun dequeueRecords(ids: List<Long>) {
+        database.update(dequeueRecordsStatement, mapOf("entryIds" to ids.toTypedArray()))
     }
 
-    fun peekNext(numberOfElements: Int): List<RecordQueueDto> {
+    // Records som venter på nytt forsøk hoppes over, og det samme gjør senere records med samme nøkkel, slik at
+    // rekkefølgen per nøkkel holder så lenge en record ikke er satt i karantene.
+    fun peekNext(numberOfElements: Int, afterId: Long = 0): List<RecordQueueDto> {
         return database.list {
             queryOf("""
                 select
                     id,
                     topic,
                     recordKey,
-                    recordValue
+                    recordValue,
+                    recordValueBytes,
+                    valueEncoding
                 from 
-                    outgoing_record_queue
-                order by createdAt
+                    outgoing_record_queue record
+                where id > :afterId
+                    and (nextAttemptAt is null or nextAttemptAt <= now())
+                    and not exists (
+                        select 1 from outgoing_record_queue venter
+                        where venter.recordKey = record.recordKey
+                            and venter.id < record.id
+                            and venter.nextAttemptAt > now()
+                    )
+                order by id
                 limit :batchSize
-            """, mapOf("batchSize" to numberOfElements)
+            """, mapOf("batchSize" to numberOfElements, "afterId" to afterId)
                 ).map { row ->
                 RecordQueueDto(
                     id = row.long("id"),
                     topic = row.string("topic"),
                     recordKey = row.string("recordKey"),
-                    recordValue = row.string("recordValue")
+                    recordValue = RecordValueCodec.decode(
+                        encoding = RecordValueEncoding.parse(row.string("valueEncoding")),
+                        text = row.stringOrNull("recordValue"),
+                        bytes = row.bytesOrNull("recordValueBytes")
+                    )
                 )
             }
         }
     }
 
+    // Øker antall forsøk og venter eksponentielt lenger før neste. Records som har brukt opp forsøkene sine flyttes
+    // til karantene, slik at de ikke holder igjen resten av køen.
+    fun registerFailure(
+        id: Long,
+        error: String,
+        maxAttempts: Int,
+        backoff: Duration,
+        maxBackoff: Duration
+    ): Boolean {
+        database.update(
+            registerFailureStatement,
+            mapOf(
+                "id" to id,
+                "error" to error.take(MAX_ERROR_LENGTH),
+                "backoffMillis" to backoff.toMillis(),
+                "maxBackoffMillis" to maxBackoff.toMillis()
+            )
+        )
+
+        return database.update(
+            quarantineStatement,
+            mapOf("id" to id, "maxAttempts" to maxAttempts)
+        ) > 0
+    }
+
+    fun quarantineStatus(): RecordQueueStatus {
+        return database.single {
+            queryOf("select count(*) as antall, min(quarantinedAt) as eldste from outgoing_record_quarantine")
+                .map { row ->
+                    RecordQueueStatus(
+                        size = row.int("antall"),
+                        oldestCreatedAt = row.zonedDateTimeOrNull("eldste")
+                    )
+                }
+        }
+    }
+
+    // Slots som ikke lenger skrives til truncates når de er tømt. Aktiv slot byttes når den har vært aktiv i minst
+    // minSlotAge og neste slot er truncated. Truncate venter ikke på låser, slik at sending aldri blir holdt igjen.
+    fun rotateSlots(minSlotAge: Duration): RecordQueueSlots {
+        val (active, count) = slotState()
+        val sizes = slotSizes()
+
+        val truncated = sizes
+            .filter { (slot, size) -> slot != active && size > 0 }
+            .keys
+            .filter(::truncateIfDrained)
+
+        val next = (active + 1) % count
+        val nextIsEmpty = next in truncated || sizes[next] == 0L
+
+        val rotated = nextIsEmpty && database.update(
+            rotateSlotStatement,
+            mapOf("active" to active, "next" to next, "minSlotAgeMillis" to minSlotAge.toMillis())
+        ) > 0
+
+        return RecordQueueSlots(active = if (rotated) next else active, truncated = truncated, rotated = rotated)
+    }
+
+    fun activeSlot(): Int = slotState().first
+
+    private fun slotState(): Pair<Int, Int> {
+        return database.single {
+            queryOf("select aktiv, antall from outgoing_record_slot").map { it.int("aktiv") to it.int("antall") }
+        }
+    }
+
+    private fun slotSizes(): Map<Int, Long> {
+        return database.list {
+            queryOf("""
+                select
+                    cast(substring(c.relname from 'outgoing_record_queue_(\d+)$') as integer) as slot,
+                    pg_relation_size(c.oid) as storrelse
+                from pg_inherits i
+                    join pg_class c on c.oid = i.inhrelid
+                where i.inhparent = 'outgoing_record_queue'::regclass
+            """).map { it.int("slot") to it.long("storrelse") }
+        }.toMap()
+    }
+
+    // Låsen tas med nowait. En ventende access exclusive-lås ville stilt seg foran lesinger og skrivinger mot køen, så
+    // er partisjonen i bruk prøver vi heller igjen neste runde.
+    private fun truncateIfDrained(slot: Int): Boolean {
+        val partition = "outgoing_record_queue_$slot"
+
+        return try {
+            using(sessionOf(database.dataSource)) { session ->
+                session.transaction { tx ->
+                    tx.run(queryOf("lock table $partition in access exclusive mode nowait").asExecute)
+
+                    val drained = tx.run(
+                        queryOf("select not exists(select 1 from $partition) as tom").map { it.boolean("tom") }.asSingle
+                    ) ?: false
+
+                    if (drained) {
+                        tx.run(queryOf("truncate $partition").asExecute)
+                    }
+
+                    drained
+                }
+            }
+        } catch (e: SQLException) {
+            if (e.sqlState == LOCK_NOT_AVAILABLE) {
+                false
+            } else {
+                throw e
+            }
+        }
+    }
+
     fun queueSize(): Int {
         return database.single {
             queryOf("select count(*) as antall from outgoing_record_queue")
@@ -61,12 +194,112 @@ class RecordQueueRepository(private val database: PostgresDatabase) {
         }
     }
 
-    data class RecordQueueDto(
+    // Måler bare records som er klare til å sendes. Records som venter på nytt forsøk telles for seg, slik at én
+    // record i backoff ikke ser ut som en kø som står stille. Antall klare telles bare opp til limit, siden det er
+    // nok å vite at grensen er passert. Id følger innsettingsrekkefølge, så eldste klare record finnes via
+    // primærnøkkel uten egen indeks på createdAt.
+    fun queueStatus(limit: Int): RecordQueueStatus {
+        return database.single {
+            queryOf("""
+                select
+                    (
+                        select count(*) from (
+                            select 1 from outgoing_record_queue
+                            where nextAttemptAt is null or nextAttemptAt <= now()
+                            limit :limit
+                        ) klare
+                    ) as antall,
+                    (select count(*) from outgoing_record_queue where nextAttemptAt > now()) as venter,
+                    (
+                        select createdAt from outgoing_record_queue
+                        where nextAttemptAt is null or nextAttemptAt <= now()
+                        order by id
+                        limit 1
+                    ) as eldste
+            """, mapOf("limit" to limit))
+                .map { row ->
+                    RecordQueueStatus(
+                        size = row.int("antall"),
+                        oldestCreatedAt = row.zonedDateTimeOrNull("eldste"),
+                        waiting = row.int("venter")
+                    )
+                }
+        }
+    }
+
+    data class RecordQueueSlots(
+        val active: Int,
+        val truncated: List<Int>,
+        val rotated: Boolean
+    )
+
+    data class RecordQueueStatus(
+        val size: Int,
+        val oldestCreatedAt: ZonedDateTime?,
+        val waiting: Int = 0
+    )
+
+    class RecordQueueDto(
         val id: Long,
         val topic: String,
         val recordKey: String,
-        val recordValue: String
+        val recordValue: ByteArray
     ) {
         fun toKafkaRecord() = ProducerRecord(topic, recordKey, recordValue)
     }
+
+    companion object {
+        private const val MAX_ERROR_LENGTH = 1000
+        private const val LOCK_NOT_AVAILABLE = "55P03"
+    }
 }
+
+private val enqueueRecordStatement = StatementTemplate(
+    "enqueueRecord",
+    """
+    insert into outgoing_record_queue(topic, recordKey, recordValue, recordValueBytes, valueEncoding, createdAt)
+    values(:topic, :recordKey, :recordValue, :recordValueBytes, :valueEncoding, :createdAt)
+    """
+)
+
+private val dequeueRecordsStatement = StatementTemplate(
+    "dequeueRecords",
+    "delete from outgoing_record_queue where id = any(:entryIds)"
+)
+
+private val registerFailureStatement = StatementTemplate(
+    "registerRecordFailure",
+    """
+    update outgoing_record_queue set
+        attempts = attempts + 1,
+        lastError = :error,
+        nextAttemptAt = now() + least(
+            cast(:backoffMillis as bigint) * power(2, attempts),
+            cast(:maxBackoffMillis as bigint)
+        ) * interval '1 millisecond'
+    where id = :id
+    """
+)
+
+private val quarantineStatement = StatementTemplate(
+    "quarantineRecord",
+    """
+    with flyttet as (
+        delete from outgoing_record_queue where id = :id and attempts >= :maxAttempts
+        returning *
+    )
+    insert into outgoing_record_quarantine(
+        id, topic, recordKey, recordValue, recordValueBytes, valueEncoding, createdAt, attempts, lastError, quarantinedAt
+    )
+    select id, topic, recordKey, recordValue, recordValueBytes, valueEncoding, createdAt, attempts, lastError, now()
+    from flyttet
+    """
+)
+
+private val rotateSlotStatement = StatementTemplate(
+    "rotateRecordSlot",
+    """
+    update outgoing_record_slot set aktiv = :next, byttet = now()
+    where aktiv = :active and byttet < now() - cast(:minSlotAgeMillis as bigint) * interval '1 millisecond'
+    """
+)
@@ -0,0 +1,63 @@
+package no.nav.tms.varsel.authority.write.outgoing
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+enum class RecordValueEncoding {
+    Text, Binary, Gzip;
+
+    val lowercaseName = name.lowercase()
+
+    companion object {
+        fun parse(string: String): RecordValueEncoding {
+            return entries.find { it.lowercaseName == string.lowercase() }
+                ?: throw IllegalArgumentException("No RecordValueEncoding enum matches $string")
+        }
+    }
+}
+
+internal class EncodedRecordValue(
+    val encoding: RecordValueEncoding,
+    val text: String?,
+    val bytes: ByteArray?
+)
+
+internal object RecordValueCodec {
+
+    fun encode(value: String, preferredEncoding: RecordValueEncoding, compressionThresholdBytes: Int): EncodedRecordValue {
+        if (preferredEncoding == RecordValueEncoding.Text) {
+            return EncodedRecordValue(RecordValueEncoding.Text, value, null)
+        }
+
+        val bytes = value.toByteArray(Charsets.UTF_8)
+
+        return if (preferredEncoding == RecordValueEncoding.Gzip && bytes.size >= compressionThresholdBytes) {
+            EncodedRecordValue(RecordValueEncoding.Gzip, null, gzip(bytes))
+        } else {
+            EncodedRecordValue(RecordValueEncoding.Binary, null, bytes)
+        }
+    }
+
+    fun decode(encoding: RecordValueEncoding, text: String?, bytes: ByteArray?): ByteArray {
+        return when (encoding) {
+            RecordValueEncoding.Text -> requireNotNull(text) { "Mangler recordValue for record med tekst-format" }
+                .toByteArray(Charsets.UTF_8)
+            RecordValueEncoding.Binary -> requireNotNull(bytes) { "Mangler recordValueBytes for record med binært format" }
+            RecordValueEncoding.Gzip -> requireNotNull(bytes) { "Mangler recordValueBytes for record med gzip-format" }
+                .let(::gunzip)
+        }
+    }
+
+    private fun gzip(bytes: ByteArray): ByteArray {
+        val output = ByteArrayOutputStream(bytes.size / 2)
+
+        GZIPOutputStream(output).use { it.write(bytes) }
+
+        return output.toByteArray()
+    }
+
+    private fun gunzip(bytes: ByteArray): ByteArray {
+        return GZIPInputStream(bytes.inputStream()).use { it.readBytes() }
+    }
+}
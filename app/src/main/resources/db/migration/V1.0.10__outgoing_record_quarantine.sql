@@ -0,0 +1,21 @@
+alter table outgoing_record_queue add column attempts integer not null default 0;
+alter table outgoing_record_queue add column lastError text;
+alter table outgoing_record_queue add column nextAttemptAt timestamp with time zone;
+
+create index outgoing_record_queue_next_attempt_at on outgoing_record_queue(nextAttemptAt) where nextAttemptAt is not null;
+
+create table outgoing_record_quarantine
+(
+    id bigint primary key,
+    topic text not null,
+    recordKey text not null,
+    recordValue text,
+    recordValueBytes bytea,
+    valueEncoding text not null,
+    createdAt timestamp with time zone,
+    attempts integer not null,
+    lastError text,
+    quarantinedAt timestamp with time zone not null
+);
+
+create index outgoing_record_quarantine_quarantined_at on outgoing_record_quarantine(quarantinedAt);
@@ -0,0 +1,56 @@
+-- Utgående kø som en ring av partisjoner. Nye records skrives til aktiv slot, og slots som ikke lenger skrives til
+-- truncates når de er tømt, i stedet for at hver sletting etterlater døde rader til vacuum.
+alter table outgoing_record_queue rename to outgoing_record_queue_gammel;
+alter index outgoing_record_queue_pkey rename to outgoing_record_queue_gammel_pkey;
+alter index outgoing_record_queue_record_key rename to outgoing_record_queue_gammel_record_key;
+alter index outgoing_record_queue_created_at rename to outgoing_record_queue_gammel_created_at;
+alter index outgoing_record_queue_next_attempt_at rename to outgoing_record_queue_gammel_next_attempt_at;
+
+create table outgoing_record_slot
+(
+    id boolean primary key default true check (id),
+    aktiv smallint not null,
+    antall smallint not null,
+    byttet timestamp with time zone not null
+);
+
+insert into outgoing_record_slot(aktiv, antall, byttet) values (0, 4, now());
+
+create function outgoing_record_aktiv_slot() returns smallint as $$
+    select aktiv from outgoing_record_slot
+$$ language sql stable;
+
+create sequence outgoing_record_id as bigint;
+select setval('outgoing_record_id', (select last_value from outgoing_record_queue_id_seq));
+
+create table outgoing_record_queue
+(
+    id bigint not null default nextval('outgoing_record_id'),
+    slot smallint not null default outgoing_record_aktiv_slot(),
+    topic text not null,
+    recordKey text not null,
+    recordValue text,
+    recordValueBytes bytea,
+    valueEncoding text not null default 'text',
+    createdAt timestamp with time zone,
+    attempts integer not null default 0,
+    lastError text,
+    nextAttemptAt timestamp with time zone,
+    primary key (id, slot)
+) partition by list (slot);
+
+create table outgoing_record_queue_0 partition of outgoing_record_queue for values in (0);
+create table outgoing_record_queue_1 partition of outgoing_record_queue for values in (1);
+create table outgoing_record_queue_2 partition of outgoing_record_queue for values in (2);
+create table outgoing_record_queue_3 partition of outgoing_record_queue for values in (3);
+
+insert into outgoing_record_queue(
+    id, slot, topic, recordKey, recordValue, recordValueBytes, valueEncoding, createdAt, attempts, lastError, nextAttemptAt
+)
+select id, 0, topic, recordKey, recordValue, recordValueBytes, valueEncoding, createdAt, attempts, lastError, nextAttemptAt
+from outgoing_record_queue_gammel;
+
+drop table outgoing_record_queue_gammel;
+
+create index outgoing_record_queue_record_key on outgoing_record_queue(recordKey);
+create index outgoing_record_queue_next_attempt_at on outgoing_record_queue(nextAttemptAt) where nextAttemptAt is not null;
@@ -0,0 +1,29 @@
+-- Historikk for ekstern varsling skrives som egne rader i stedet for å legges til i jsonb på varselet. Feil som
+-- allerede ligger i eksternVarslingStatus -> 'feilhistorikk' flyttes hit første gang varselet får en ny status, og
+-- leses sammen med radene her frem til da.
+--
+-- Når aktiv endres flyttes varselet til en annen partisjon, og id-en fjernes og legges inn igjen i varsel_id.
+-- Fremmednøkkelen sjekkes derfor først ved commit, og historikken slettes eksplisitt når varselet arkiveres.
+create table varsel_ekstern_status
+(
+    id bigint generated always as identity primary key,
+    varselId text not null references varsel_id(varselId) deferrable initially deferred,
+    status text not null,
+    kanal text,
+    renotifikasjon boolean,
+    batch boolean,
+    feilmelding text,
+    tidspunkt timestamp with time zone not null,
+    mottatt timestamp with time zone not null default now()
+);
+
+-- Samme status levert flere ganger lagres bare én gang
+create unique index varsel_ekstern_status_unik on varsel_ekstern_status(
+    varselId,
+    status,
+    tidspunkt,
+    coalesce(kanal, ''),
+    coalesce(feilmelding, ''),
+    coalesce(renotifikasjon, false),
+    coalesce(batch, false)
+);
@@ -0,0 +1,3 @@
+alter table outgoing_record_queue alter column recordValue drop not null;
+alter table outgoing_record_queue add column recordValueBytes bytea;
+alter table outgoing_record_queue add column valueEncoding text not null default 'text';
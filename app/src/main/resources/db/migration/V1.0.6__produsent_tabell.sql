@@ -0,0 +1,24 @@
+create table produsent
+(
+    id integer generated always as identity primary key,
+    cluster text,
+    namespace text not null,
+    appnavn text not null
+);
+
+create unique index produsent_identitet on produsent((coalesce(cluster, '')), namespace, appnavn);
+
+insert into produsent(cluster, namespace, appnavn)
+select distinct produsent ->> 'cluster', produsent ->> 'namespace', produsent ->> 'appnavn' from varsel
+on conflict do nothing;
+
+alter table varsel add column produsentId integer references produsent(id);
+
+update varsel set produsentId = produsent.id
+from produsent
+where coalesce(varsel.produsent ->> 'cluster', '') = coalesce(produsent.cluster, '')
+    and varsel.produsent ->> 'namespace' = produsent.namespace
+    and varsel.produsent ->> 'appnavn' = produsent.appnavn;
+
+alter table varsel alter column produsentId set not null;
+alter table varsel drop column produsent;
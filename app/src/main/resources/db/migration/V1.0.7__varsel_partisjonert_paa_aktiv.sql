@@ -0,0 +1,33 @@
+-- Varsel skal partisjoneres, og primærnøkkel på en partisjonert tabell må inneholde partisjonsnøkkelen. Unik varselId
+-- sikres derfor av varsel_id, som også har opprettet, slik at oppslag på varselId kan gå rett til riktig måned.
+-- Selve delingen i aktive og inaktive varsler gjøres sammen med månedsdelingen i neste migrering, så tabellen bare
+-- kopieres én gang.
+
+create table varsel_id (
+    varselId text primary key,
+    opprettet timestamp with time zone not null
+);
+
+insert into varsel_id(varselId, opprettet) select varselId, opprettet from varsel;
+
+-- Flytting mellom partisjoner kjøres som delete fra den ene og insert i den andre, og utløser begge triggerne.
+-- Id-en fjernes og legges inn igjen i samme transaksjon, mens et nytt varsel med samme id feiler på varsel_id.
+create function varsel_id_registrer() returns trigger as $$
+begin
+    insert into varsel_id(varselId, opprettet) values (new.varselId, new.opprettet);
+    return new;
+end;
+$$ language plpgsql;
+
+create function varsel_id_fjern() returns trigger as $$
+begin
+    delete from varsel_id where varselId = old.varselId;
+    return old;
+end;
+$$ language plpgsql;
+
+create trigger varsel_id_registrer before insert on varsel
+    for each row execute function varsel_id_registrer();
+
+create trigger varsel_id_fjern before delete on varsel
+    for each row execute function varsel_id_fjern();
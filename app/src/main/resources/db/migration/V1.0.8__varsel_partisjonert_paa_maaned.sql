@@ -0,0 +1,75 @@
+-- Varsel deles i månedspartisjoner på opprettet, og hver måned deles videre i aktive og inaktive varsler. Arkivering
+-- av en hel måned blir da å flytte radene og droppe partisjonen, i stedet for å slette rad for rad. Når aktiv endres
+-- flytter postgres raden over i den andre partisjonen, slik at spørringer på aktive varsler bare leser de små
+-- partisjonene. Partisjoner for kommende måneder opprettes av leder. Varsler utenfor alle måneder havner i
+-- varsel_default.
+-- Tabellen kopieres én gang. Primærnøkkel og indekser lages etter kopieringen, så låsen holdes kortest mulig.
+-- varsel_id er allerede fylt ut i forrige migrering, og triggerne som holder den oppdatert følger med den gamle
+-- tabellen, så de lages på nytt her.
+
+alter table varsel rename to varsel_upartisjonert;
+
+create table varsel (
+    varselId text not null,
+    type text not null,
+    ident text not null,
+    aktiv boolean not null,
+    sensitivitet text not null,
+    innhold jsonb not null,
+    eksternVarslingBestilling jsonb,
+    eksternVarslingStatus jsonb,
+    opprettet timestamp with time zone not null,
+    aktivFremTil timestamp with time zone,
+    inaktivert timestamp with time zone,
+    inaktivertAv text,
+    metadata jsonb,
+    produsentId integer not null references produsent(id)
+) partition by range (opprettet);
+
+create table varsel_default partition of varsel default partition by list (aktiv);
+create table varsel_default_aktiv partition of varsel_default for values in (true);
+create table varsel_default_inaktiv partition of varsel_default for values in (false);
+
+do $$
+declare
+    maaned date := date_trunc('month', least((select min(opprettet) from varsel_upartisjonert), now()) at time zone 'UTC');
+    siste date := date_trunc('month', now() at time zone 'UTC') + interval '3 months';
+    navn text;
+begin
+    while maaned <= siste loop
+        navn := 'varsel_' || to_char(maaned, 'YYYY_MM');
+
+        execute format(
+            'create table %I partition of varsel for values from (%L) to (%L) partition by list (aktiv)',
+            navn, maaned::timestamp at time zone 'UTC', (maaned + interval '1 month')::timestamp at time zone 'UTC'
+        );
+        execute format('create table %I partition of %I for values in (true)', navn || '_aktiv', navn);
+        execute format('create table %I partition of %I for values in (false)', navn || '_inaktiv', navn);
+
+        maaned := maaned + interval '1 month';
+    end loop;
+end;
+$$;
+
+insert into varsel(
+    varselId, type, ident, aktiv, sensitivitet, innhold, eksternVarslingBestilling, eksternVarslingStatus,
+    opprettet, aktivFremTil, inaktivert, inaktivertAv, metadata, produsentId
+)
+select
+    varselId, type, ident, aktiv, sensitivitet, innhold, eksternVarslingBestilling, eksternVarslingStatus,
+    opprettet, aktivFremTil, inaktivert, inaktivertAv, metadata, produsentId
+from varsel_upartisjonert;
+
+drop table varsel_upartisjonert;
+
+alter table varsel add primary key (varselId, opprettet, aktiv);
+
+create index varsel_ident on varsel(ident);
+create index varsel_opprettet on varsel(opprettet);
+create index varsel_aktiv_frem_til on varsel(aktivFremTil) where aktiv;
+
+create trigger varsel_id_registrer before insert on varsel
+    for each row execute function varsel_id_registrer();
+
+create trigger varsel_id_fjern before delete on varsel
+    for each row execute function varsel_id_fjern();
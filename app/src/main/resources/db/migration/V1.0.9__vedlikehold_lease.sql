@@ -0,0 +1,16 @@
+create table vedlikehold_deltaker
+(
+    jobb text not null,
+    pod text not null,
+    sistSett timestamp with time zone not null,
+    primary key (jobb, pod)
+);
+
+create table vedlikehold_lease
+(
+    jobb text not null,
+    bucket integer not null,
+    eier text,
+    utloper timestamp with time zone,
+    primary key (jobb, bucket)
+);
@@ -0,0 +1,82 @@
+package no.nav.tms.varsel.authority.common
+
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class BucketLeasesTest {
+
+    private val database = LocalPostgresDatabase.getCleanInstance()
+
+    private fun leases(pod: String, leaseDuration: Duration = Duration.ofMinutes(5)) =
+        BucketLeases(database, jobb = "test", bucketCount = 4, leaseDuration = leaseDuration, pod = pod)
+
+    @AfterEach
+    fun cleanUp() {
+        LocalPostgresDatabase.resetInstance()
+    }
+
+    @Test
+    fun `fordeler bøttene jevnt når flere pods deltar`() {
+        val podA = leases("pod-a")
+        val podB = leases("pod-b")
+
+        podA.claim().buckets shouldContainExactlyInAnyOrder listOf(0, 1, 2, 3)
+        podB.claim().buckets.shouldBeEmpty()
+
+        val andelA = podA.claim().buckets
+        val andelB = podB.claim().buckets
+
+        andelA shouldHaveSize 2
+        andelB shouldHaveSize 2
+        (andelA + andelB) shouldContainExactlyInAnyOrder listOf(0, 1, 2, 3)
+    }
+
+    @Test
+    fun `tar over bøttene til en pod som forsvinner`() {
+        val podA = leases("pod-a", leaseDuration = Duration.ofMillis(500))
+        val podB = leases("pod-b", leaseDuration = Duration.ofMillis(500))
+
+        podA.claim()
+        podB.claim()
+        podA.claim()
+        podB.claim().buckets shouldHaveSize 2
+
+        Thread.sleep(1000)
+
+        podB.claim().buckets shouldContainExactlyInAnyOrder listOf(0, 1, 2, 3)
+    }
+
+    @Test
+    fun `gir fra seg bøttene ved avslutning`() {
+        val podA = leases("pod-a")
+        val podB = leases("pod-b")
+
+        podA.claim()
+        podB.claim().isEmpty() shouldBe true
+
+        podA.release()
+
+        podB.claim().buckets shouldContainExactlyInAnyOrder listOf(0, 1, 2, 3)
+    }
+
+    @Test
+    fun `fornyer bare bøtter poden fortsatt eier`() {
+        val podA = leases("pod-a", leaseDuration = Duration.ofMillis(500))
+        val podB = leases("pod-b", leaseDuration = Duration.ofMillis(500))
+
+        podA.claim()
+        podA.renew(0) shouldBe true
+        podB.renew(0) shouldBe false
+
+        Thread.sleep(1000)
+
+        podB.claim().buckets shouldContainExactlyInAnyOrder listOf(0, 1, 2, 3)
+        podA.renew(0) shouldBe false
+    }
+}
@@ -0,0 +1,71 @@
+package no.nav.tms.varsel.authority.common
+
+import io.kotest.matchers.shouldBe
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.mockk
+import kotlinx.coroutines.runBlocking
+import no.nav.tms.common.kubernetes.PodLeaderElection
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class LeadershipTest {
+
+    private val leaderElection: PodLeaderElection = mockk()
+
+    private val leadership = Leadership(leaderElection, leaseDuration = Duration.ofMillis(500))
+
+    @Test
+    fun `leser ledelse fra siste sjekk uten å spørre leader election`() = runBlocking<Unit> {
+        coEvery { leaderElection.isLeader() } returns true
+
+        leadership.isLeader shouldBe false
+
+        leadership.refresh()
+
+        repeat(10) { leadership.isLeader shouldBe true }
+
+        coVerify(exactly = 1) { leaderElection.isLeader() }
+    }
+
+    @Test
+    fun `gir fra seg ledelse med en gang når sjekken feiler`() = runBlocking<Unit> {
+        val endringer = mutableListOf<Boolean>()
+        leadership.onChange { endringer.add(it) }
+
+        coEvery { leaderElection.isLeader() } returns true
+        leadership.refresh()
+
+        coEvery { leaderElection.isLeader() } throws RuntimeException("Ingen svar")
+        leadership.refresh()
+
+        leadership.isLeader shouldBe false
+        endringer shouldBe listOf(true, false)
+    }
+
+    @Test
+    fun `mister ledelse når leien går ut uten ny sjekk`() = runBlocking<Unit> {
+        coEvery { leaderElection.isLeader() } returns true
+        leadership.refresh()
+        leadership.isLeader shouldBe true
+
+        Thread.sleep(600)
+
+        leadership.isLeader shouldBe false
+    }
+
+    @Test
+    fun `varsler om endringer i ledelse`() = runBlocking<Unit> {
+        val endringer = mutableListOf<Boolean>()
+        leadership.onChange { endringer.add(it) }
+
+        coEvery { leaderElection.isLeader() } returns true
+        leadership.refresh()
+        leadership.refresh()
+
+        coEvery { leaderElection.isLeader() } returns false
+        leadership.refresh()
+
+        endringer shouldBe listOf(true, false)
+    }
+}
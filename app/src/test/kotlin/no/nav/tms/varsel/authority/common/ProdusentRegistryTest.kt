@@ -0,0 +1,82 @@
+package no.nav.tms.varsel.authority.common
+
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import kotliquery.queryOf
+import no.nav.tms.common.postgres.PostgresDatabase
+import no.nav.tms.varsel.authority.DatabaseProdusent
+import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.util.UUID
+
+class ProdusentRegistryTest {
+
+    private val database = LocalPostgresDatabase.getCleanInstance()
+
+    @AfterEach
+    fun cleanUp() {
+        LocalPostgresDatabase.resetInstance()
+    }
+
+    @Test
+    fun `gir samme id når en produsent registreres fra flere pods`() {
+        val produsent = DatabaseProdusent(cluster = null, namespace = "min-side", appnavn = UUID.randomUUID().toString())
+        val annen = produsent.copy(cluster = "dev-gcp")
+
+        val id = ProdusentRegistry(database).idFor(produsent)
+
+        ProdusentRegistry(database).idFor(produsent) shouldBe id
+        ProdusentRegistry(database).idFor(annen) shouldNotBe id
+        ProdusentRegistry(database).produsent(id) shouldBe produsent
+    }
+
+    @Test
+    fun `flytter produsenter fra varsel til egen tabell ved migrering`() {
+        val dataSource = LocalPostgresDatabase.connectToNewDatabase("produsent_migrering")
+
+        try {
+            LocalPostgresDatabase.migrateTo(dataSource, "1.0.5")
+
+            val gammelDatabase = PostgresDatabase(dataSource)
+
+            val uten = DatabaseProdusent(cluster = null, namespace = "min-side", appnavn = "app")
+            val med = DatabaseProdusent(cluster = "dev-gcp", namespace = "min-side", appnavn = "app")
+
+            gammelDatabase.insertGammeltVarsel("varsel-1", """{ "namespace": "min-side", "appnavn": "app" }""")
+            gammelDatabase.insertGammeltVarsel("varsel-2", """{ "cluster": null, "namespace": "min-side", "appnavn": "app" }""")
+            gammelDatabase.insertGammeltVarsel("varsel-3", """{ "cluster": "dev-gcp", "namespace": "min-side", "appnavn": "app" }""")
+
+            LocalPostgresDatabase.migrateTo(dataSource, "1.0.6")
+
+            val produsentIder = gammelDatabase.list {
+                queryOf("select varselId, produsentId from varsel")
+                    .map { it.string("varselId") to it.int("produsentId") }
+            }.toMap()
+
+            val registry = ProdusentRegistry(gammelDatabase)
+
+            produsentIder.getValue("varsel-1") shouldBe produsentIder.getValue("varsel-2")
+            registry.produsent(produsentIder.getValue("varsel-1")) shouldBe uten
+            registry.produsent(produsentIder.getValue("varsel-3")) shouldBe med
+
+            gammelDatabase.list { queryOf("select id from produsent").map { it.int("id") } } shouldContainExactlyInAnyOrder
+                produsentIder.values.distinct()
+        } finally {
+            dataSource.close()
+        }
+    }
+
+    private fun PostgresDatabase.insertGammeltVarsel(varselId: String, produsent: String) {
+        update {
+            queryOf(
+                """
+                    insert into varsel(varselId, type, ident, aktiv, sensitivitet, innhold, produsent, opprettet)
+                    values(:varselId, 'beskjed', '123', true, 'high', '{}', cast(:produsent as jsonb), now())
+                """,
+                mapOf("varselId" to varselId, "produsent" to produsent)
+            )
+        }
+    }
+}
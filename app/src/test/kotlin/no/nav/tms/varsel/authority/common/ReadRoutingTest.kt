@@ -0,0 +1,75 @@
+package no.nav.tms.varsel.authority.common
+
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.mockk.mockk
+import no.nav.tms.common.postgres.PostgresDatabase
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class ReadRoutingTest {
+
+    private val primary: PostgresDatabase = mockk()
+    private val replica: PostgresDatabase = mockk()
+
+    private var lag: Double? = null
+
+    private val readRouting = ReadRouting(
+        primary = primary,
+        replica = replica,
+        readAfterWriteWindow = Duration.ofMillis(500),
+        measureLag = { lag }
+    )
+
+    @Test
+    fun `leser fra replika kun når den har spilt av alt fra primær`() {
+        readRouting.databaseFor("123") shouldBeSameInstanceAs primary
+
+        lag = 0.0
+        readRouting.sampleLag()
+        readRouting.databaseFor("123") shouldBeSameInstanceAs replica
+
+        lag = 0.5
+        readRouting.sampleLag()
+        readRouting.databaseFor("123") shouldBeSameInstanceAs primary
+
+        lag = null
+        readRouting.sampleLag()
+        readRouting.databaseFor("123") shouldBeSameInstanceAs primary
+    }
+
+    @Test
+    fun `leser fra primær for bruker det nylig er skrevet for`() {
+        lag = 0.0
+        readRouting.sampleLag()
+
+        readRouting.registerWrite("123")
+
+        readRouting.databaseFor("123") shouldBeSameInstanceAs primary
+        readRouting.databaseFor("456") shouldBeSameInstanceAs replica
+
+        Thread.sleep(600)
+
+        readRouting.databaseFor("123") shouldBeSameInstanceAs replica
+    }
+
+    @Test
+    fun `leser alltid fra primær uten replika`() {
+        val utenReplika = ReadRouting(primary = primary, measureLag = { 0.0 })
+        utenReplika.sampleLag()
+
+        utenReplika.databaseFor("123") shouldBeSameInstanceAs primary
+    }
+
+    @Test
+    fun `godtar forsinkelse opp til maxLag når det er satt`() {
+        val medGrense = ReadRouting(primary = primary, replica = replica, maxLag = Duration.ofSeconds(5), measureLag = { lag })
+
+        lag = 3.0
+        medGrense.sampleLag()
+        medGrense.databaseFor("123") shouldBeSameInstanceAs replica
+
+        lag = 10.0
+        medGrense.sampleLag()
+        medGrense.databaseFor("123") shouldBeSameInstanceAs primary
+    }
+}
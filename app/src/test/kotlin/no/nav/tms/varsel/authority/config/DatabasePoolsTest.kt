@@ -0,0 +1,69 @@
+package no.nav.tms.varsel.authority.config
+
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import no.nav.tms.varsel.authority.common.BucketLeases
+import no.nav.tms.varsel.authority.common.ProdusentRegistry
+import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
+import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import no.nav.tms.varsel.authority.database.TestVarsel
+import no.nav.tms.varsel.authority.write.arkiv.VarselArkivRepository
+import no.nav.tms.varsel.authority.write.expiry.ExpiredVarselRepository
+import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+
+internal class DatabasePoolsTest {
+
+    private val database = LocalPostgresDatabase.getCleanInstance()
+    private val sizes = DatabasePoolSizes()
+
+    private val maintenance = LocalPostgresDatabase.connectWithPoolSize(sizes.maintenance)
+    private val leases = LocalPostgresDatabase.connectWithPoolSize(sizes.leases)
+
+    @AfterEach
+    fun cleanUp() {
+        maintenance.dataSource.close()
+        leases.dataSource.close()
+        LocalPostgresDatabase.resetInstance()
+    }
+
+    @Test
+    fun `arkivering, utløp og fornying av leie kjører samtidig på poolene de har i appen`() = runBlocking<Unit> {
+        val varselRepository = WriteVarselRepository(database)
+
+        repeat(20) {
+            varselRepository.insertVarsel(TestVarsel(opprettet = nowAtUtc().minusDays(400), aktivFremTil = null).dbVarsel())
+            varselRepository.insertVarsel(TestVarsel(aktivFremTil = nowAtUtc().minusDays(1)).dbVarsel())
+        }
+
+        val produsenter = ProdusentRegistry(maintenance)
+        val archiveLeases = BucketLeases(leases, jobb = "arkivering", bucketCount = 4, pod = "denne-pod")
+        val expiryLeases = BucketLeases(leases, jobb = "utloep", bucketCount = 4, pod = "denne-pod")
+
+        withTimeout(20000) {
+            val arkivert = async(Dispatchers.IO) {
+                VarselArkivRepository(maintenance, produsenter).archiveOldVarsler(
+                    dateThreshold = nowAtUtc().minusDays(365),
+                    assignment = archiveLeases.claim(),
+                    windowSize = 5,
+                    stillOwns = archiveLeases::renew
+                ) { }
+            }
+
+            val utloept = async(Dispatchers.IO) {
+                val assignment = expiryLeases.claim()
+
+                ExpiredVarselRepository(maintenance, produsenter).updateExpiredVarsel(assignment, windowSize = 5) {
+                    assignment.buckets.forEach { expiryLeases.renew(it) shouldBe true }
+                }
+            }
+
+            arkivert.await() shouldBe 20
+            utloept.await() shouldBe 20
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package no.nav.tms.varsel.authority.database
 
+import com.zaxxer.hikari.HikariConfig
 import com.zaxxer.hikari.HikariDataSource
 import kotliquery.queryOf
 import no.nav.tms.common.postgres.Postgres
@@ -12,7 +13,7 @@ object LocalPostgresDatabase {
     private val container = PostgreSQLContainer("postgres:14.5").apply { start() }
     private val instance: PostgresDatabase by lazy {
         Postgres.connectToContainer(container).also {
-            migrate(it.dataSource, expectedMigrations = 5)
+            migrate(it.dataSource, expectedMigrations = 13)
         }
     }
 
@@ -25,10 +26,52 @@ object LocalPostgresDatabase {
         return instance
     }
 
+    // Egen pool mot samme database, for tester som skal kjøre med samme antall connections som i appen
+    fun connectWithPoolSize(size: Int): PostgresDatabase {
+        instance
+
+        val config = HikariConfig().apply {
+            jdbcUrl = container.jdbcUrl
+            username = container.username
+            password = container.password
+            maximumPoolSize = size
+            minimumIdle = minOf(1, size)
+        }
+
+        return PostgresDatabase(HikariDataSource(config))
+    }
+
+    // Ny, tom database i samme container, for tester som migrerer med data fra en eldre versjon
+    fun connectToNewDatabase(name: String): HikariDataSource {
+        instance.update { queryOf("drop database if exists $name") }
+        instance.update { queryOf("create database $name") }
+
+        val config = HikariConfig().apply {
+            jdbcUrl = container.jdbcUrl.replace("/${container.databaseName}", "/$name")
+            username = container.username
+            password = container.password
+            maximumPoolSize = 2
+        }
+
+        return HikariDataSource(config)
+    }
+
+    fun migrateTo(dataSource: HikariDataSource, version: String) {
+        Flyway.configure()
+            .dataSource(dataSource)
+            .target(version)
+            .load()
+            .migrate()
+    }
+
     fun resetInstance() {
+        instance.update { queryOf("delete from varsel_ekstern_status") }
         instance.update { queryOf("delete from varsel") }
         instance.update { queryOf("delete from varsel_arkiv") }
         instance.update { queryOf("delete from outgoing_record_queue") }
+        instance.update { queryOf("delete from outgoing_record_quarantine") }
+        instance.update { queryOf("delete from vedlikehold_lease") }
+        instance.update { queryOf("delete from vedlikehold_deltaker") }
     }
 
     private fun migrate(dataSource: HikariDataSource, expectedMigrations: Int) {
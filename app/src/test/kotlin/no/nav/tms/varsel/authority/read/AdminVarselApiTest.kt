@@ -338,6 +338,77 @@ class AdminVarselApiTest {
         ).ids
     }
 
+    @Test
+    fun `eksporterer hele historikken til bruker som ndjson`() = testVarselApi {
+        val arkivertVarsel = TestVarsel(
+            varselId = "arkivertVarsel2019",
+            ident = ident,
+            opprettet = "15-01-2019".toOsloZonedDateTime()
+        )
+        val legacyVarsel = TestVarsel(
+            varselId = "legacyVarsel2018",
+            ident = ident,
+        ).withLegacyProperties(
+            sikkerhetsnivaa = 4,
+            forstBehandlet = "2018-08-10"
+        )
+
+        insertCurrentArkiverteVarsler(ident, arkivertVarsel)
+        insertLegacyArkiverteVarsler(ident, legacyVarsel)
+        insertArkivertVarsel(
+            ident = ident,
+            varselId = "uventetVarselFormat",
+            jsonBlob = """{"type": "oppgave", "eventId": "uventetVarselFormat"}"""
+        )
+
+        val response = client.post("$endpoint/eksport") {
+            contentType(ContentType.Application.Json)
+            setBody(objectMapper.writeValueAsString(mapOf("ident" to ident)))
+        }
+
+        response.status shouldBe HttpStatusCode.OK
+        response.contentType()?.withoutParameters() shouldBe ContentType("application", "x-ndjson")
+
+        val linjer = response.bodyAsText()
+            .lines()
+            .filter { it.isNotBlank() }
+            .map { objectMapper.readTree(it) }
+
+        val (feilende, varsler) = linjer.partition { it.has("feil") }
+
+        varsler.varselIds shouldContainOnly listOf(
+            aktivtVarselJun2025,
+            inaktivtVarselMay2023,
+            aktivtVarselOct2025,
+            inaktivtVarselOct2025,
+            varselDec2024Inaktivert2025,
+            arkivertVarsel,
+            legacyVarsel
+        ).ids
+        varsler.find { it["varselId"].asText() == legacyVarsel.varselId }!!["arkivert"].asBoolean() shouldBe true
+
+        feilende.map { it["varselId"].asText() } shouldContainOnly listOf("uventetVarselFormat")
+    }
+
+    @Test
+    fun `avviser eksport når alle plassene er i bruk`() = testVarselApi {
+        readRepository.reserverEksport() shouldBe true
+
+        try {
+            client.post("$endpoint/eksport") {
+                contentType(ContentType.Application.Json)
+                setBody(objectMapper.writeValueAsString(mapOf("ident" to ident)))
+            }.status shouldBe HttpStatusCode.TooManyRequests
+        } finally {
+            readRepository.frigiEksport()
+        }
+
+        client.post("$endpoint/eksport") {
+            contentType(ContentType.Application.Json)
+            setBody(objectMapper.writeValueAsString(mapOf("ident" to ident)))
+        }.status shouldBe HttpStatusCode.OK
+    }
+
     @Nested
     inner class InaktiveringsInfo {
         @Test
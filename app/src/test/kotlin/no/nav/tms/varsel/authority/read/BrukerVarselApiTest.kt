@@ -267,7 +267,7 @@ class BrukerVarselApiTest {
         }
     }
 
-    private suspend fun HttpClient.getVarsler(path: String): List<Varselsammendrag> = get(path).body()
+    private suspend fun HttpClient.getVarsler(path: String): List<VarselsammendragResponse> = get(path).body()
 
 
     private fun insertVarsel(vararg varsler: DatabaseVarsel) {
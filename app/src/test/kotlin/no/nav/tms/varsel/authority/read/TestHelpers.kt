@@ -21,12 +21,14 @@ import no.nav.tms.token.support.entraid.token.verification.mock.entraIdMock
 import no.nav.tms.token.support.user.token.verification.Issuer
 import no.nav.tms.token.support.user.token.verification.LevelOfAssurance
 import no.nav.tms.token.support.user.token.verificaton.mock.userTokenMock
+import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.authority.DatabaseVarsel
 import no.nav.tms.varsel.authority.Innhold
 import no.nav.tms.varsel.authority.SYSTEM_API
 import no.nav.tms.varsel.authority.varselApi
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktiverer
 import java.text.DateFormat
+import java.time.ZonedDateTime
 import kotlin.collections.forEach
 
 fun baseTestApplication(
@@ -125,8 +127,26 @@ object JsonHelpers {
     }
 }
 
+data class VarselsammendragResponse(
+    val type: Varseltype,
+    val varselId: String,
+    val aktiv: Boolean,
+    val innhold: Innholdsammendrag?,
+    val eksternVarslingSendt: Boolean,
+    val eksternVarslingKanaler: List<String>,
+    val opprettet: ZonedDateTime,
+    val aktivFremTil: ZonedDateTime?,
+    val inaktivert: ZonedDateTime?,
+)
+
+data class Innholdsammendrag(
+    val spraakkode: String,
+    val tekst: String,
+    val link: String?
+)
+
 object Matchers {
-    fun List<Varselsammendrag>.shouldFind(predicate: (Varselsammendrag) -> Boolean): Varselsammendrag {
+    fun List<VarselsammendragResponse>.shouldFind(predicate: (VarselsammendragResponse) -> Boolean): VarselsammendragResponse {
         val varsel = find(predicate)
 
         varsel.shouldNotBeNull()
@@ -134,7 +154,7 @@ object Matchers {
         return varsel
     }
 
-    infix fun Varselsammendrag.shouldMatch(dbVarsel: DatabaseVarsel) {
+    infix fun VarselsammendragResponse.shouldMatch(dbVarsel: DatabaseVarsel) {
         type shouldBe dbVarsel.type
         varselId shouldBe dbVarsel.varselId
         aktiv shouldBe dbVarsel.aktiv
@@ -2,6 +2,7 @@ package no.nav.tms.varsel.authority
 
 import io.kotest.matchers.date.shouldHaveSameInstantAs
 import org.apache.kafka.clients.producer.MockProducer
+import org.apache.kafka.common.serialization.ByteArraySerializer
 import org.apache.kafka.common.serialization.StringSerializer
 import java.time.ZonedDateTime
 import java.time.format.DateTimeParseException
@@ -11,7 +12,7 @@ fun mockProducer(autoComplete: Boolean = true) = MockProducer(
     autoComplete,
     null,
     StringSerializer(),
-    StringSerializer()
+    ByteArraySerializer()
 )
 
 fun Any?.optionalJson(name: String, isEnd: Boolean = false): String {
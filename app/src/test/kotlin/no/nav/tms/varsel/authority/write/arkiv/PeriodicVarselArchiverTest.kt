@@ -1,28 +1,33 @@
 package no.nav.tms.varsel.authority.write.arkiv
 
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.collections.shouldNotContain
 import io.kotest.matchers.shouldBe
-import io.mockk.clearMocks
-import io.mockk.coEvery
-import io.mockk.mockk
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withTimeout
 import kotliquery.queryOf
-import no.nav.tms.common.kubernetes.PodLeaderElection
 import no.nav.tms.varsel.action.Sensitivitet
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.action.Varseltype.Beskjed
 import no.nav.tms.varsel.authority.*
+import no.nav.tms.varsel.authority.common.BucketLeases
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.asZonedDateTime
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.config.defaultObjectMapper
 import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import no.nav.tms.varsel.authority.write.eksternvarsling.EksternVarslingOppdatert
+import no.nav.tms.varsel.authority.write.eksternvarsling.EksternVarslingStatusRepository
+import no.nav.tms.varsel.authority.write.eksternvarsling.EksternVarslingStatusUpdater
 import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
 import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import java.time.Duration.ofMinutes
+import java.time.YearMonth
+import java.time.ZoneOffset
 import java.time.ZonedDateTime
 
 
@@ -30,9 +35,10 @@ internal class PeriodicVarselArchiverTest {
 
     private val database = LocalPostgresDatabase.getCleanInstance()
     private val archiveRepository = VarselArkivRepository(database)
-    private val leaderElection: PodLeaderElection = mockk()
+    private val leases = BucketLeases(database, jobb = "arkivering", bucketCount = 4, pod = "denne-pod")
 
     private val testRepository = ArchiveTestRepository(database)
+    private val partisjonRepository = VarselPartisjonRepository(database)
 
     private val recordQueueRepository = RecordQueueRepository(database)
     private val queueRepository = RecordQueueRepository(database)
@@ -52,7 +58,6 @@ internal class PeriodicVarselArchiverTest {
 
     @AfterEach
     fun cleanUp() {
-        clearMocks(leaderElection)
         LocalPostgresDatabase.resetInstance()
     }
 
@@ -66,8 +71,6 @@ internal class PeriodicVarselArchiverTest {
     @Test
     fun `arkiverer alle gamle varsler`() {
 
-        coEvery { leaderElection.isLeader() } returns true
-
         runArchiverUntilNRemains(1)
 
         val arkiverteVarsler = testRepository.getAllArchivedVarsel()
@@ -96,8 +99,6 @@ internal class PeriodicVarselArchiverTest {
     @Test
     fun `arkiverer beskjed-data`() = runBlocking<Unit> {
 
-        coEvery { leaderElection.isLeader() } returns true
-
         runArchiverUntilNRemains(1)
 
         val arkiverteVarsler = testRepository.getAllArchivedVarsel()
@@ -118,14 +119,128 @@ internal class PeriodicVarselArchiverTest {
     }
 
     @Test
-    fun `does nothing when not leader`() = runBlocking<Unit> {
-        coEvery { leaderElection.isLeader() } returns false
+    fun `tar med feilhistorikk for ekstern varsling i arkivet`() {
+        EksternVarslingStatusUpdater(EksternVarslingStatusRepository(database)).updateEksternVarslingStatus(
+            EksternVarslingOppdatert(
+                varselId = gammelBeskjed.varselId,
+                status = EksternStatus.Feilet,
+                kanal = null,
+                renotifikasjon = false,
+                batch = false,
+                feilmelding = "Ugyldig telefonnummer",
+                tidspunkt = nowAtUtc()
+            )
+        )
+
+        runArchiverUntilNRemains(1)
+
+        testRepository.getAllArchivedVarsel().first().eksternVarslingStatus
+            ?.feilhistorikk
+            ?.map { it.feilmelding } shouldBe listOf("Ugyldig telefonnummer")
+
+        database.singleOrNull {
+            queryOf("select count(*) as antall from varsel_ekstern_status")
+                .map { it.int("antall") }
+        } shouldBe 0
+    }
+
+    @Test
+    fun `arkiverer hele måneder ved å flytte varslene og slette partisjonen`() {
+        val gammelMaaned = YearMonth.now(ZoneOffset.UTC).minusMonths(24)
+        partisjonRepository.opprettMaanedspartisjon(gammelMaaned) shouldBe true
+
+        val beskjedIGammelMaaned = varsel(
+            type = Beskjed,
+            varselId = "b3",
+            opprettet = gammelMaaned.atDay(10).atStartOfDay(ZoneOffset.UTC)
+        )
+        createVarsel(beskjedIGammelMaaned)
+
+        runArchiverUntilNRemains(1)
+
+        testRepository.getAllArchivedVarsel().map { it.varselId } shouldContainExactlyInAnyOrder listOf(
+            gammelBeskjed.varselId,
+            beskjedIGammelMaaned.varselId
+        )
+        queueRepository.queueSize() shouldBe 2
+        partisjonRepository.maanedspartisjoner().map { it.maaned } shouldNotContain gammelMaaned
+    }
+
+    @Test
+    fun `gir ikke videre varsler fra en partisjon på nytt når arkiveringen ble avbrutt`() {
+        val gammelMaaned = YearMonth.now(ZoneOffset.UTC).minusMonths(24)
+        partisjonRepository.opprettMaanedspartisjon(gammelMaaned) shouldBe true
+
+        val beskjedIGammelMaaned = varsel(
+            type = Beskjed,
+            varselId = "b3",
+            opprettet = gammelMaaned.atDay(10).atStartOfDay(ZoneOffset.UTC)
+        )
+        createVarsel(beskjedIGammelMaaned)
+
+        val threshold = nowAtUtc().minusDays(10)
+
+        shouldThrow<IllegalStateException> {
+            archiveRepository.archiveOldVarsler(threshold) { error("Avbrutt") }
+        }
+
+        WriteVarselRepository(database).getVarsel(beskjedIGammelMaaned.varselId)?.varselId shouldBe beskjedIGammelMaaned.varselId
+
+        val arkivert = mutableListOf<String>()
+        archiveRepository.archiveOldVarsler(threshold) { varsler -> arkivert += varsler.map { it.varselId } }
+
+        arkivert shouldContainExactlyInAnyOrder listOf(gammelBeskjed.varselId)
+        testRepository.getAllArchivedVarsel().map { it.varselId } shouldContainExactlyInAnyOrder listOf(
+            gammelBeskjed.varselId,
+            beskjedIGammelMaaned.varselId
+        )
+        database.singleOrNull {
+            queryOf("select count(*) as antall from varsel_id where varselId = :varselId", mapOf("varselId" to beskjedIGammelMaaned.varselId))
+                .map { it.int("antall") }
+        } shouldBe 0
+        partisjonRepository.maanedspartisjoner().map { it.maaned } shouldNotContain gammelMaaned
+    }
+
+    @Test
+    fun `flytter varsler fra default-partisjonen når måneden får egen partisjon`() {
+        val maaned = YearMonth.now(ZoneOffset.UTC).minusMonths(30)
+        val beskjedIDefault = varsel(
+            type = Beskjed,
+            varselId = "b4",
+            opprettet = maaned.atDay(5).atStartOfDay(ZoneOffset.UTC)
+        )
+        createVarsel(beskjedIDefault)
+
+        partisjonRepository.opprettMaanedspartisjon(maaned) shouldBe true
+
+        database.singleOrNull {
+            queryOf("select count(*) as antall from ${VarselPartisjon(maaned, tilkoblet = true).navn}")
+                .map { it.int("antall") }
+        } shouldBe 1
+        WriteVarselRepository(database).getVarsel(beskjedIDefault.varselId)?.varselId shouldBe beskjedIDefault.varselId
+    }
+
+    @Test
+    fun `stopper arkivering i bøtter poden har mistet`() {
+        val arkivert = archiveRepository.archiveOldVarsler(
+            dateThreshold = nowAtUtc().minusDays(10),
+            stillOwns = { false }
+        ) { error("Skal ikke arkivere") }
+
+        arkivert shouldBe 0
+        varselInDbCount() shouldBe 2
+        testRepository.getAllArchivedVarsel().size shouldBe 0
+    }
+
+    @Test
+    fun `does nothing when another pod holds all buckets`() = runBlocking<Unit> {
+        BucketLeases(database, jobb = "arkivering", bucketCount = 4, pod = "annen-pod").claim()
 
         val archiver = PeriodicVarselArchiver(
             varselArchivingRepository = archiveRepository,
             ageThresholdDays = 10,
             interval = ofMinutes(10),
-            leaderElection = leaderElection,
+            leases = leases,
             varselArkivertProducer = arkivertProducer
         )
 
@@ -144,7 +259,7 @@ internal class PeriodicVarselArchiverTest {
             varselArchivingRepository = archiveRepository,
             ageThresholdDays = 10,
             interval = ofMinutes(10),
-            leaderElection = leaderElection,
+            leases = leases,
             varselArkivertProducer = arkivertProducer
         )
 
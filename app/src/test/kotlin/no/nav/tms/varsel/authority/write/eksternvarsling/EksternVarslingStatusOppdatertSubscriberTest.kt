@@ -1,6 +1,7 @@
 package no.nav.tms.varsel.authority.write.eksternvarsling
 
 import io.kotest.assertions.throwables.shouldNotThrow
+import io.kotest.matchers.collections.shouldBeEmpty
 import io.kotest.matchers.collections.shouldContain
 import io.kotest.matchers.collections.shouldContainAll
 import io.kotest.matchers.nulls.shouldBeNull
@@ -8,10 +9,21 @@ import io.kotest.matchers.nulls.shouldNotBeNull
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.shouldNotBe
 import io.mockk.mockk
+import io.mockk.spyk
+import io.mockk.verify
 import kotliquery.queryOf
 import no.nav.tms.kafka.application.MessageBroadcaster
+import no.nav.tms.varsel.action.Sensitivitet
+import no.nav.tms.varsel.action.Varseltype
+import no.nav.tms.varsel.authority.DatabaseProdusent
+import no.nav.tms.varsel.authority.DatabaseVarsel
+import no.nav.tms.varsel.authority.EksternFeilHistorikkEntry
 import no.nav.tms.varsel.authority.EksternStatus
+import no.nav.tms.varsel.authority.EksternVarslingStatus
+import no.nav.tms.varsel.authority.Innhold
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper
+import no.nav.tms.varsel.authority.config.jsonReader
+import no.nav.tms.varsel.authority.config.jsonbOrNull
 import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
 import no.nav.tms.varsel.authority.write.opprett.OpprettVarselSubscriber
 import no.nav.tms.varsel.authority.write.opprett.WriteVarselRepository
@@ -25,15 +37,8 @@ class EksternVarslingStatusOppdatertSubscriberTest {
     private val database = LocalPostgresDatabase.getCleanInstance()
     private val varselRepository = WriteVarselRepository(database)
 
-    private val feilhistorikkMaxSize = 3
-
     private val eksternVarslingStatusRepository = EksternVarslingStatusRepository(database)
-    private val eksternVarslingStatusUpdater =
-        EksternVarslingStatusUpdater(
-            eksternVarslingStatusRepository,
-            varselRepository,
-            feilhistorikkMaxSize
-        )
+    private val eksternVarslingStatusUpdater = EksternVarslingStatusUpdater(eksternVarslingStatusRepository)
 
     private val testBroadcaster =
         MessageBroadcaster(
@@ -377,6 +382,61 @@ class EksternVarslingStatusOppdatertSubscriberTest {
         }
     }
 
+    @Test
+    fun `slår sammen statuser for samme varsel i en poll til én oppdatering`() {
+        val varselId = randomUUID().toString()
+        val tidspunkt = ZonedDateTimeHelper.nowAtUtc()
+
+        val statusRepository = spyk(EksternVarslingStatusRepository(database))
+        val coalescingSubscriber = EksternVarslingStatusOppdatertSubscriber(
+            eksternVarslingStatusUpdater = EksternVarslingStatusUpdater(statusRepository),
+            coalesce = true
+        )
+        val coalescingBroadcaster = MessageBroadcaster(coalescingSubscriber)
+
+        val venterEvent = eksternVarslingOppdatert(
+            varselId = varselId,
+            status = EksternStatus.Venter,
+            tidspunkt = tidspunkt.minusSeconds(2)
+        )
+        val sendtEvent = eksternVarslingOppdatert(
+            varselId = varselId,
+            status = EksternStatus.Sendt,
+            kanal = "SMS",
+            renotifikasjon = false,
+            tidspunkt = tidspunkt.minusSeconds(1)
+        )
+        val revarsletEvent = eksternVarslingOppdatert(
+            varselId = varselId,
+            status = EksternStatus.Sendt,
+            kanal = "EPOST",
+            renotifikasjon = true,
+            tidspunkt = tidspunkt
+        )
+
+        testBroadcaster.broadcastJson(opprettVarselEvent("beskjed", varselId))
+
+        coalescingBroadcaster.broadcastJson(venterEvent)
+        coalescingBroadcaster.broadcastJson(sendtEvent)
+        coalescingBroadcaster.broadcastJson(sendtEvent)
+        coalescingBroadcaster.broadcastJson(revarsletEvent)
+
+        verify(exactly = 0) { statusRepository.updateEksternVarslingStatus(any(), any(), any()) }
+
+        coalescingSubscriber.flush()
+
+        verify(exactly = 1) { statusRepository.updateEksternVarslingStatus(varselId, any(), any()) }
+
+        varselRepository.getVarsel(varselId)?.eksternVarslingStatus.shouldNotBeNull().let {
+            it.sendt shouldBe true
+            it.sendtTidspunkt shouldBe tidspunkt.minusSeconds(1)
+            it.renotifikasjonSendt shouldBe true
+            it.renotifikasjonTidspunkt shouldBe tidspunkt
+            it.sisteStatus shouldBe EksternStatus.Sendt
+            it.kanaler shouldContainAll listOf("SMS", "EPOST")
+        }
+    }
+
     @Test
     fun `ignorerer duplikate feil`() {
         val varselId = randomUUID().toString()
@@ -506,14 +566,14 @@ class EksternVarslingStatusOppdatertSubscriberTest {
     }
 
     @Test
-    fun `ignorerer feil-statuser dersom feilhistorikk allerede er full`() {
+    fun `lagrer hele feilhistorikken uten å utvide varselet`() {
         val varselId = randomUUID().toString()
 
         val varselEvent = opprettVarselEvent("beskjed", varselId)
 
         testBroadcaster.broadcastJson(varselEvent)
 
-        repeat(feilhistorikkMaxSize) { i ->
+        repeat(15) { i ->
             eksternVarslingOppdatert(
                 varselId = varselId,
                 status = EksternStatus.Feilet,
@@ -524,21 +584,6 @@ class EksternVarslingStatusOppdatertSubscriberTest {
             }
         }
 
-        varselRepository.getVarsel(varselId)
-            ?.eksternVarslingStatus
-            ?.let {
-                it.sisteStatus shouldBe EksternStatus.Feilet
-            }
-
-        eksternVarslingOppdatert(
-            varselId = varselId,
-            status = EksternStatus.Feilet,
-            batch = false,
-            feilmelding = "En feilmelding"
-        ).let { feilet ->
-            testBroadcaster.broadcastJson(feilet)
-        }
-
         eksternVarslingOppdatert(
             varselId = varselId,
             status = EksternStatus.Sendt,
@@ -551,15 +596,70 @@ class EksternVarslingStatusOppdatertSubscriberTest {
 
         varselRepository.getVarsel(varselId)
             ?.eksternVarslingStatus
-            ?.let {
+            .shouldNotBeNull()
+            .let {
                 it.sendt shouldBe true
+                it.feilhistorikk.size shouldBe 15
+                it.feilhistorikk.first().feilmelding shouldBe "Feilmelding 1"
+                it.feilhistorikk.last().feilmelding shouldBe "Feilmelding 15"
+            }
+
+        lagretSammendrag(varselId)
+            .shouldNotBeNull()
+            .let {
+                it.sisteStatus shouldBe EksternStatus.Sendt
+                it.feilhistorikk.shouldBeEmpty()
             }
 
         testBroadcaster.history().findSkippedOutcome(EksternVarslingStatusOppdatertSubscriber::class) {
             it.getOrNull("status")?.asText() == EksternStatus.Feilet.lowercaseName
-        }.let {
-            it.shouldNotBeNull()
-            it.cause::class shouldBe FeilhistorikkFullException::class
-        }
+        }.shouldBeNull()
+    }
+
+    @Test
+    fun `flytter feilhistorikk lagret på varselet til historikken ved første oppdatering`() {
+        val varselId = randomUUID().toString()
+        val eldreFeil = ZonedDateTimeHelper.nowAtUtc().minusDays(1)
+
+        varselRepository.insertVarsel(
+            DatabaseVarsel(
+                type = Varseltype.Beskjed,
+                varselId = varselId,
+                ident = "123",
+                aktiv = true,
+                sensitivitet = Sensitivitet.Substantial,
+                innhold = Innhold(tekst = "Tekst", link = null),
+                produsent = DatabaseProdusent(cluster = null, namespace = "namespace", appnavn = "app"),
+                eksternVarslingStatus = EksternVarslingStatus(
+                    sendt = false,
+                    renotifikasjonSendt = false,
+                    kanaler = emptyList(),
+                    feilhistorikk = listOf(EksternFeilHistorikkEntry("Eldre feil", eldreFeil)),
+                    sistOppdatert = eldreFeil
+                ),
+                opprettet = eldreFeil
+            )
+        )
+
+        testBroadcaster.broadcastJson(
+            eksternVarslingOppdatert(varselId = varselId, status = EksternStatus.Feilet, feilmelding = "Ny feil")
+        )
+
+        lagretSammendrag(varselId)
+            .shouldNotBeNull()
+            .feilhistorikk
+            .shouldBeEmpty()
+
+        varselRepository.getVarsel(varselId)
+            ?.eksternVarslingStatus
+            .shouldNotBeNull()
+            .feilhistorikk
+            .map { it.feilmelding } shouldBe listOf("Eldre feil", "Ny feil")
+    }
+
+    // Status slik den er lagret på varselet, uten historikken i varsel_ekstern_status
+    private fun lagretSammendrag(varselId: String): EksternVarslingStatus? = database.singleOrNull {
+        queryOf("select eksternVarslingStatus from varsel where varselId = :varselId", mapOf("varselId" to varselId))
+            .map { it.jsonbOrNull<EksternVarslingStatus>("eksternVarslingStatus", jsonReader<EksternVarslingStatus>()) }
     }
 }
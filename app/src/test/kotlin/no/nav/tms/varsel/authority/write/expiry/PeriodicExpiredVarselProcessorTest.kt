@@ -6,13 +6,13 @@ import io.mockk.clearMocks
 import io.mockk.mockk
 import io.mockk.verify
 import kotliquery.queryOf
-import no.nav.tms.common.kubernetes.PodLeaderElection
 import no.nav.tms.varsel.action.Sensitivitet
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.action.Varseltype.Beskjed
 import no.nav.tms.varsel.authority.DatabaseProdusent
 import no.nav.tms.varsel.authority.DatabaseVarsel
 import no.nav.tms.varsel.authority.Innhold
+import no.nav.tms.varsel.authority.common.BucketLeases
 import no.nav.tms.varsel.authority.common.ZonedDateTimeHelper.nowAtUtc
 import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
 import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertProducer
@@ -28,14 +28,14 @@ internal class PeriodicExpiredVarselProcessorTest {
     private val varselRepository = WriteVarselRepository(database)
 
     private val varselInaktivertProducer = mockk<VarselInaktivertProducer>(relaxed = true)
-    private val leaderElection = mockk<PodLeaderElection>(relaxed = true)
+    private val leases = BucketLeases(database, jobb = "utloep", bucketCount = 4)
 
     private val expiredVarselRepository = ExpiredVarselRepository(database)
     private val expiredVarselProcessor =
         PeriodicExpiredVarselProcessor(
             expiredVarselRepository,
             varselInaktivertProducer,
-            leaderElection
+            leases
         )
 
     private val pastDate = nowAtUtc().minusDays(7)
@@ -0,0 +1,98 @@
+package no.nav.tms.varsel.authority.write.incoming
+
+import io.kotest.matchers.shouldBe
+import no.nav.tms.varsel.authority.config.BackpressureThresholds
+import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class IngestBackpressureTest {
+    private val database = LocalPostgresDatabase.getCleanInstance()
+    private val repository = RecordQueueRepository(database)
+
+    private val thresholds = BackpressureThresholds(
+        throttleQueueSize = 4,
+        pauseQueueSize = 8,
+        throttleQueueAgeSeconds = 3600,
+        pauseQueueAgeSeconds = 7200,
+        throttlePoolPending = 100,
+        pausePoolPending = 200
+    )
+
+    @AfterEach
+    fun cleanUp() {
+        LocalPostgresDatabase.resetInstance()
+    }
+
+    @Test
+    fun `struper og pauser inntak når utgående kø vokser`() {
+        val backpressure = IngestBackpressure(repository, database.dataSource, thresholds)
+
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Open
+
+        enqueueRecords(4)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Throttled
+
+        enqueueRecords(4)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Paused
+    }
+
+    @Test
+    fun `går først tilbake når køen er godt under grensen`() {
+        val backpressure = IngestBackpressure(repository, database.dataSource, thresholds, resumeRatio = 0.5)
+
+        enqueueRecords(8)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Paused
+
+        dequeueRecords(3)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Paused
+
+        dequeueRecords(2)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Throttled
+
+        dequeueRecords(2)
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Open
+    }
+
+    @Test
+    fun `records som venter på nytt forsøk teller ikke med`() {
+        val backpressure = IngestBackpressure(repository, database.dataSource, thresholds)
+
+        enqueueRecords(8)
+        repository.peekNext(8).forEach {
+            repository.registerFailure(
+                id = it.id,
+                error = "feil",
+                maxAttempts = 10,
+                backoff = Duration.ofHours(1),
+                maxBackoff = Duration.ofHours(1)
+            )
+        }
+
+        backpressure.sample()
+        backpressure.state shouldBe IngestState.Open
+
+        repository.queueStatus(limit = 100).waiting shouldBe 8
+    }
+
+    private fun enqueueRecords(antall: Int) {
+        repeat(antall) {
+            repository.enqueueRecord("topic", "key-$it", "value-$it")
+        }
+    }
+
+    private fun dequeueRecords(antall: Int) {
+        repository.peekNext(antall)
+            .map { it.id }
+            .let(repository::dequeueRecords)
+    }
+}
@@ -0,0 +1,189 @@
+package no.nav.tms.varsel.authority.write.incoming
+
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.shouldBe
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import no.nav.tms.kafka.application.AppHealth
+import no.nav.tms.kafka.application.JsonMessage
+import no.nav.tms.kafka.application.MessageBroadcaster
+import no.nav.tms.kafka.application.Subscriber
+import no.nav.tms.kafka.application.Subscription
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.consumer.MockConsumer
+import org.apache.kafka.common.TopicPartition
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+internal class KeyedKafkaConsumerTest {
+
+    private val topic = "varsel"
+    private val partition0 = TopicPartition(topic, 0)
+    private val partition1 = TopicPartition(topic, 1)
+
+    private val consumer = MockConsumer<String, String>("earliest")
+    private val subscriber = TestSubscriber()
+    private val pollBuffers = List(2) { TestPollBuffer() }
+
+    private var keyedConsumer: KeyedKafkaConsumer? = null
+
+    @AfterEach
+    fun cleanUp() = runBlocking {
+        keyedConsumer?.stop()
+    }
+
+    @Test
+    fun `spoler bare tilbake partisjonene til workeren som feilet`() = runBlocking<Unit> {
+        // "a" og "b" havner hos hver sin worker
+        subscriber.feilFor("b-1", ganger = 1)
+
+        startConsumer(
+            record(partition0, offset = 0, key = "a", varselId = "a-0"),
+            record(partition0, offset = 1, key = "b", varselId = "b-1"),
+            record(partition0, offset = 2, key = "a", varselId = "a-2"),
+            record(partition1, offset = 0, key = "a", varselId = "a-p1")
+        )
+
+        awaitUntil { committed(partition0) == 3L && committed(partition1) == 1L }
+
+        subscriber.behandlet("a-0") shouldBe 1
+        subscriber.behandlet("b-1") shouldBe 1
+        subscriber.behandlet("a-2") shouldBe 2
+        subscriber.behandlet("a-p1") shouldBe 1
+        pollBuffers.sumOf { it.discarded.get() } shouldBe 1
+    }
+
+    @Test
+    fun `stopper og melder seg usunn etter for mange feil på rad`() = runBlocking<Unit> {
+        subscriber.feilFor("b-0", ganger = Int.MAX_VALUE)
+
+        startConsumer(record(partition0, offset = 0, key = "b", varselId = "b-0"), maxRetries = 2)
+
+        awaitUntil { keyedConsumer!!.isHealthy() == AppHealth.Unhealthy }
+
+        subscriber.behandlet("b-0") shouldBe 0
+        committed(partition0) shouldBe 0L
+    }
+
+    @Test
+    fun `skriver og committer behandlede records når partisjoner trekkes tilbake`() = runBlocking<Unit> {
+        startConsumer(
+            record(partition0, offset = 0, key = "a", varselId = "a-0"),
+            record(partition0, offset = 1, key = "b", varselId = "b-1")
+        )
+
+        awaitUntil { committed(partition0) == 2L }
+
+        val flushedBeforeRevoke = pollBuffers.map { it.flushed.get() }
+        consumer.schedulePollTask { consumer.rebalance(listOf(partition1)) }
+
+        awaitUntil { consumer.assignment() == setOf(partition1) }
+
+        pollBuffers.map { it.flushed.get() } shouldBe flushedBeforeRevoke.map { it + 1 }
+        committed(partition0) shouldBe 2L
+    }
+
+    @Test
+    fun `pauser partisjonene ved pause og fortsetter når inntaket åpnes`() = runBlocking<Unit> {
+        val backpressure = mockk<IngestBackpressure>(relaxed = true)
+        every { backpressure.state } returns IngestState.Paused
+
+        startConsumer(backpressure = backpressure)
+
+        awaitUntil { consumer.paused() == setOf(partition0, partition1) }
+
+        every { backpressure.state } returns IngestState.Open
+
+        awaitUntil { consumer.paused().isEmpty() }
+
+        consumer.assignment() shouldContainExactlyInAnyOrder listOf(partition0, partition1)
+    }
+
+    private fun startConsumer(
+        vararg records: ConsumerRecord<String, String>,
+        backpressure: IngestBackpressure? = null,
+        maxRetries: Int = 10
+    ) {
+        consumer.schedulePollTask {
+            consumer.rebalance(listOf(partition0, partition1))
+            consumer.updateBeginningOffsets(mapOf(partition0 to 0L, partition1 to 0L))
+            records.forEach(consumer::addRecord)
+        }
+
+        keyedConsumer = KeyedKafkaConsumer(
+            consumer = consumer,
+            topics = listOf(topic),
+            broadcasters = List(2) { MessageBroadcaster(subscriber) },
+            pollBuffers = pollBuffers.map { listOf(it) },
+            backpressure = backpressure,
+            pollTimeout = Duration.ofMillis(10),
+            retryBackoff = Duration.ofMillis(10),
+            maxRetryBackoff = Duration.ofMillis(50),
+            maxRetries = maxRetries
+        ).also { it.start() }
+    }
+
+    private fun committed(partition: TopicPartition): Long {
+        return consumer.committed(setOf(partition))[partition]?.offset() ?: 0L
+    }
+
+    private suspend fun awaitUntil(condition: () -> Boolean) {
+        withTimeout(5000) {
+            while (!condition()) {
+                delay(10)
+            }
+        }
+    }
+
+    private fun record(partition: TopicPartition, offset: Long, key: String, varselId: String) = ConsumerRecord(
+        partition.topic(),
+        partition.partition(),
+        offset,
+        key,
+        """{ "@event_name": "test", "varselId": "$varselId" }"""
+    )
+
+    private class TestSubscriber : Subscriber() {
+        private val feil = ConcurrentHashMap<String, Int>()
+        private val mottatt = ConcurrentHashMap<String, Int>()
+
+        fun feilFor(varselId: String, ganger: Int) {
+            feil[varselId] = ganger
+        }
+
+        fun behandlet(varselId: String) = mottatt[varselId] ?: 0
+
+        override fun subscribe(): Subscription = Subscription
+            .forEvent("test")
+            .withFields("varselId")
+
+        override suspend fun receive(jsonMessage: JsonMessage) {
+            val varselId = jsonMessage.json["varselId"].asText()
+
+            if ((feil.computeIfPresent(varselId) { _, igjen -> igjen - 1 } ?: -1) >= 0) {
+                throw IllegalStateException("Feil for $varselId")
+            }
+
+            mottatt.merge(varselId, 1, Int::plus)
+        }
+    }
+
+    private class TestPollBuffer : PollBuffer {
+        val flushed = AtomicInteger()
+        val discarded = AtomicInteger()
+
+        override fun flush() {
+            flushed.incrementAndGet()
+        }
+
+        override fun discard() {
+            discarded.incrementAndGet()
+        }
+    }
+}
@@ -11,6 +11,7 @@ import no.nav.tms.varsel.action.EksternVarslingBestilling
 import no.nav.tms.varsel.action.Varseltype
 import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
 import no.nav.tms.varsel.authority.shouldBeSameTime
+import no.nav.tms.varsel.authority.write.inaktiver.VarselInaktivertKilde
 import no.nav.tms.varsel.authority.write.outgoing.RecordQueueRepository
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Test
@@ -136,6 +137,55 @@ class OpprettVarselSubscriberTest {
 
     }
 
+    @Test
+    fun `forkaster duplikat også når opprinnelig varsel er inaktivert`() {
+        val varselId = randomUUID().toString()
+
+        testBroadcaster.broadcastJson(opprettVarselEvent("oppgave", varselId))
+        repository.inaktiverVarsel(varselId, VarselInaktivertKilde.Produsent)
+
+        testBroadcaster.broadcastJson(opprettVarselEvent("beskjed", varselId))
+
+        repository.getVarsel(varselId).let {
+            it.shouldNotBeNull()
+            it.type shouldBe Varseltype.Oppgave
+            it.aktiv shouldBe false
+        }
+
+        testBroadcaster.history().findSkippedOutcome(OpprettVarselSubscriber::class) {
+            it["varselId"].asText() == varselId
+        }?.cause?.let { it::class } shouldBe OpprettVarselSubscriber.DuplikatVarselException::class
+    }
+
+    @Test
+    fun `forkaster kjente duplikater før validering og faller tilbake til databasen for ukjente`() {
+        val kjentVarselId = randomUUID().toString()
+        val ukjentVarselId = randomUUID().toString()
+
+        val cache = RecentVarselIdCache().apply { add(kjentVarselId) }
+        val broadcaster = MessageBroadcaster(
+            OpprettVarselSubscriber(repository, aktivertProducer, cache),
+            enableTracking = true
+        )
+
+        broadcaster.broadcastJson(opprettVarselEvent("beskjed", kjentVarselId))
+
+        repository.getVarsel(kjentVarselId).shouldBeNull()
+        broadcaster.history().findSkippedOutcome(OpprettVarselSubscriber::class) {
+            it["varselId"].asText() == kjentVarselId
+        }?.cause?.let { it::class } shouldBe OpprettVarselSubscriber.DuplikatVarselException::class
+
+        testBroadcaster.broadcastJson(opprettVarselEvent("oppgave", ukjentVarselId))
+        broadcaster.broadcastJson(opprettVarselEvent("beskjed", ukjentVarselId))
+
+        repository.getVarsel(ukjentVarselId)?.type shouldBe Varseltype.Oppgave
+        broadcaster.history().findSkippedOutcome(OpprettVarselSubscriber::class) {
+            it["varselId"].asText() == ukjentVarselId
+        }?.cause?.let { it::class } shouldBe OpprettVarselSubscriber.DuplikatVarselException::class
+
+        cache.contains(ukjentVarselId) shouldBe true
+    }
+
     @Test
     fun `setter default verdi på kanBatches når det ikke er satt`() {
         val varselIdBeskjed = randomUUID().toString()
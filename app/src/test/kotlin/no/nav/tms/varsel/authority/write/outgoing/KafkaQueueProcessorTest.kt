@@ -2,6 +2,7 @@ package no.nav.tms.varsel.authority.write.outgoing
 
 import io.kotest.matchers.collections.shouldBeEmpty
 import io.kotest.matchers.collections.shouldContain
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.string.shouldContain
 import io.mockk.clearMocks
@@ -11,14 +12,24 @@ import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withTimeout
 import no.nav.tms.common.kubernetes.PodLeaderElection
+import no.nav.tms.varsel.authority.common.Leadership
 import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
 import no.nav.tms.varsel.authority.mockProducer
+import org.apache.kafka.clients.producer.Callback
+import org.apache.kafka.clients.producer.MockProducer
 import org.apache.kafka.clients.producer.Producer
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.clients.producer.RecordMetadata
+import org.apache.kafka.common.errors.RecordTooLargeException
 import org.apache.kafka.common.errors.TimeoutException
+import org.apache.kafka.common.serialization.ByteArraySerializer
+import org.apache.kafka.common.serialization.StringSerializer
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Disabled
 import org.junit.jupiter.api.Test
 import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Future
 
 class KafkaQueueProcessorTest {
     private val database = LocalPostgresDatabase.getCleanInstance()
@@ -57,7 +68,7 @@ class KafkaQueueProcessorTest {
 
         mockProducer.history().size shouldBe 3
         mockProducer.history()
-            .map { it.value() }
+            .map { String(it.value()) }
             .let {
                 it shouldContain "apple"
                 it shouldContain "banana"
@@ -65,6 +76,140 @@ class KafkaQueueProcessorTest {
             }
     }
 
+    @Test
+    fun `tømmer hele køen i samme runde og bevarer rekkefølge per nøkkel`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        val kafkaProducer = initProcessor(2, interval = Duration.ofMinutes(10))
+
+        (1..7).forEach { i ->
+            repository.enqueueRecord(testTopic, "key-${i % 2}", "value-$i")
+        }
+
+        kafkaProducer.start()
+
+        runBlocking {
+            delayUntilQueueEmpty()
+        }
+
+        mockProducer.history()
+            .filter { it.key() == "key-1" }
+            .map { String(it.value()) } shouldBe listOf("value-1", "value-3", "value-5", "value-7")
+
+        mockProducer.history()
+            .filter { it.key() == "key-0" }
+            .map { String(it.value()) } shouldBe listOf("value-2", "value-4", "value-6")
+    }
+
+    @Test
+    fun `sender ikke senere record for en nøkkel før tidligere record er bekreftet`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        var firstAttempt = true
+
+        val failingOnceProducer = object : MockProducer<String, ByteArray>(true, null, StringSerializer(), ByteArraySerializer()) {
+            override fun send(record: ProducerRecord<String, ByteArray>, callback: Callback?): Future<RecordMetadata> {
+                if (String(record.value()) == "a-1" && firstAttempt) {
+                    firstAttempt = false
+                    return CompletableFuture.failedFuture(RecordTooLargeException("For stor"))
+                }
+
+                return super.send(record, callback)
+            }
+        }
+
+        val kafkaProducer = initProcessor(
+            2,
+            interval = Duration.ofMillis(100),
+            mockedProducer = failingOnceProducer,
+            retryPolicy = RecordRetryPolicy(backoff = Duration.ZERO)
+        )
+
+        repository.enqueueRecord(testTopic, "key-a", "a-1")
+        repository.enqueueRecord(testTopic, "key-b", "b-1")
+        repository.enqueueRecord(testTopic, "key-a", "a-2")
+
+        kafkaProducer.start()
+
+        runBlocking {
+            delayUntilQueueEmpty()
+        }
+
+        failingOnceProducer.history()
+            .filter { it.key() == "key-a" }
+            .map { String(it.value()) } shouldBe listOf("a-1", "a-2")
+    }
+
+    @Test
+    fun `holder bare tilbake records for nøkkel som er på vei, og sender resten med en gang`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        val manualProducer = MockProducer(false, null, StringSerializer(), ByteArraySerializer())
+
+        val kafkaProducer = initProcessor(2, interval = Duration.ofMinutes(10), mockedProducer = manualProducer)
+
+        repository.enqueueRecord(testTopic, "key-a", "a-1")
+        repository.enqueueRecord(testTopic, "key-a", "a-2")
+        repository.enqueueRecord(testTopic, "key-b", "b-1")
+        repository.enqueueRecord(testTopic, "key-c", "c-1")
+
+        kafkaProducer.start()
+
+        runBlocking {
+            withTimeout(5000) {
+                while (manualProducer.history().size < 3) {
+                    delay(10)
+                }
+            }
+
+            manualProducer.history().map { String(it.value()) } shouldBe listOf("a-1", "b-1", "c-1")
+
+            withTimeout(5000) {
+                while (repository.queueSize() > 0) {
+                    manualProducer.completeNext()
+                    delay(10)
+                }
+            }
+        }
+
+        manualProducer.history()
+            .filter { it.key() == "key-a" }
+            .map { String(it.value()) } shouldBe listOf("a-1", "a-2")
+    }
+
+    @Test
+    fun `sender records lagret i binært og komprimert format uendret til kafka`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        val binaryRepository = RecordQueueRepository(database, RecordValueEncoding.Binary)
+        val gzipRepository = RecordQueueRepository(database, RecordValueEncoding.Gzip, compressionThresholdBytes = 10)
+
+        val largeValue = "pear".repeat(100)
+
+        repository.enqueueRecord(testTopic, "key-1", "apple")
+        binaryRepository.enqueueRecord(testTopic, "key-2", "banana")
+        gzipRepository.enqueueRecord(testTopic, "key-3", largeValue)
+        gzipRepository.enqueueRecord(testTopic, "key-4", "kiwi")
+
+        val kafkaProducer = initProcessor(10, repository = gzipRepository)
+
+        kafkaProducer.start()
+
+        runBlocking {
+            delayUntilQueueEmpty()
+        }
+
+        mockProducer.history()
+            .map { String(it.value()) }
+            .let {
+                it.size shouldBe 4
+                it shouldContain "apple"
+                it shouldContain "banana"
+                it shouldContain largeValue
+                it shouldContain "kiwi"
+            }
+    }
+
     @Test
     fun `Hopper over eventer der sending til kafka feilet`() {
         coEvery { leaderElection.isLeader() } returns true
@@ -95,6 +240,131 @@ class KafkaQueueProcessorTest {
     }
 
 
+    @Test
+    fun `setter record som feiler permanent i karantene og sender resten av køen`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        val failingProducer = object : MockProducer<String, ByteArray>(true, null, StringSerializer(), ByteArraySerializer()) {
+            override fun send(record: ProducerRecord<String, ByteArray>, callback: Callback?): Future<RecordMetadata> {
+                if (record.key() == "key-poison") {
+                    return CompletableFuture.failedFuture(RecordTooLargeException("For stor"))
+                }
+
+                return super.send(record, callback)
+            }
+        }
+
+        val kafkaProducer = initProcessor(
+            2,
+            interval = Duration.ofMillis(100),
+            mockedProducer = failingProducer,
+            retryPolicy = RecordRetryPolicy(maxAttempts = 2, backoff = Duration.ZERO)
+        )
+
+        repository.enqueueRecord(testTopic, "key-1", "apple")
+        repository.enqueueRecord(testTopic, "key-poison", "rotten")
+        repository.enqueueRecord(testTopic, "key-2", "banana")
+
+        kafkaProducer.start()
+
+        runBlocking {
+            delayUntilQueueEmpty()
+        }
+
+        failingProducer.history().map { String(it.value()) } shouldContainExactlyInAnyOrder listOf("apple", "banana")
+
+        repository.quarantineStatus().size shouldBe 1
+    }
+
+    @Test
+    fun `teller ikke feil i produsenten mot records`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        var producerBroken = true
+
+        val brokenProducer = object : MockProducer<String, ByteArray>(true, null, StringSerializer(), ByteArraySerializer()) {
+            override fun send(record: ProducerRecord<String, ByteArray>, callback: Callback?): Future<RecordMetadata> {
+                if (producerBroken) {
+                    throw IllegalStateException("Cannot perform operation after producer has been closed")
+                }
+
+                return super.send(record, callback)
+            }
+        }
+
+        val kafkaProducer = initProcessor(
+            2,
+            interval = Duration.ofMillis(100),
+            mockedProducer = brokenProducer,
+            retryPolicy = RecordRetryPolicy(maxAttempts = 1, backoff = Duration.ZERO),
+            producerBackoff = Duration.ofMillis(100)
+        )
+
+        repository.enqueueRecord(testTopic, "key-1", "apple")
+        repository.enqueueRecord(testTopic, "key-2", "banana")
+
+        kafkaProducer.start()
+
+        runBlocking {
+            delay(500)
+        }
+
+        repository.quarantineStatus().size shouldBe 0
+
+        producerBroken = false
+
+        runBlocking {
+            delayUntilQueueEmpty()
+        }
+
+        brokenProducer.history().map { String(it.value()) } shouldContainExactlyInAnyOrder listOf("apple", "banana")
+        repository.quarantineStatus().size shouldBe 0
+    }
+
+    @Test
+    fun `lukker produsenten når poden mister ledelse og lager ny når den blir leder igjen`() {
+        coEvery { leaderElection.isLeader() } returns true
+
+        val producers = mutableListOf<MockProducer<String, ByteArray>>()
+        val leadership = Leadership(leaderElection).also { runBlocking { it.refresh() } }
+
+        val kafkaProducer = PeriodicKafkaQueueProcessor(
+            repository = repository,
+            producerFactory = { mockProducer().also { producers.add(it) } },
+            leadership = leadership,
+            internal = Duration.ofMillis(100)
+        )
+
+        repository.enqueueRecord(testTopic, "key-1", "apple")
+        kafkaProducer.start()
+
+        runBlocking {
+            delayUntilQueueEmpty()
+
+            coEvery { leaderElection.isLeader() } returns false
+            leadership.refresh()
+        }
+
+        producers.single().closed() shouldBe true
+
+        repository.enqueueRecord(testTopic, "key-2", "banana")
+
+        runBlocking {
+            delay(300)
+            repository.queueSize() shouldBe 1
+
+            coEvery { leaderElection.isLeader() } returns true
+            leadership.refresh()
+
+            delayUntilQueueEmpty()
+        }
+
+        producers.size shouldBe 2
+        producers.last().history().map { String(it.value()) } shouldBe listOf("banana")
+
+        runBlocking { kafkaProducer.stop() }
+    }
+
     @Test
     fun `Fortsetter prosessering dersom flush av eventer feilet`() {
         coEvery { leaderElection.isLeader() } returns true
@@ -151,7 +421,7 @@ class KafkaQueueProcessorTest {
 
         repository.peekNext(5).let {
             it.size shouldBe 1
-            it.first().recordValue shouldBe "banana"
+            String(it.first().recordValue) shouldBe "banana"
         }
 
         runBlocking {
@@ -167,7 +437,7 @@ class KafkaQueueProcessorTest {
         repository.peekNext(1).shouldBeEmpty()
 
         manualMockProducer.history()
-            .map { it.value() }
+            .map { String(it.value()) }
             .let { values ->
                 values.shouldContain("apple")
                 values.shouldContain("banana")
@@ -201,7 +471,7 @@ class KafkaQueueProcessorTest {
 
         repository.peekNext(5).let {
             it.size shouldBe 1
-            it.first().recordValue shouldBe "apple"
+            String(it.first().recordValue) shouldBe "apple"
         }
 
         manualMockProducer.flushException = null
@@ -213,7 +483,7 @@ class KafkaQueueProcessorTest {
         repository.peekNext(1).shouldBeEmpty()
 
         manualMockProducer.history()
-            .map { it.value() }
+            .map { String(it.value()) }
             .first() shouldContain "apple"
     }
 
@@ -228,9 +498,25 @@ class KafkaQueueProcessorTest {
     private fun initProcessor(
         batchSize: Int,
         interval: Duration = Duration.ofSeconds(3),
-        mockedProducer: Producer<String, String> = mockProducer,
-        syncTimeoutSeconds: Long = 15
+        mockedProducer: Producer<String, ByteArray> = mockProducer,
+        syncTimeoutSeconds: Long = 15,
+        repository: RecordQueueRepository = this.repository,
+        retryPolicy: RecordRetryPolicy = RecordRetryPolicy(),
+        producerBackoff: Duration = Duration.ofSeconds(5)
     ): PeriodicKafkaQueueProcessor {
-        return PeriodicKafkaQueueProcessor(repository, mockedProducer, leaderElection, batchSize, syncTimeoutSeconds, interval)
+        val leadership = Leadership(leaderElection).also {
+            runBlocking { it.refresh() }
+        }
+
+        return PeriodicKafkaQueueProcessor(
+            repository,
+            mockedProducer,
+            leadership,
+            batchSize,
+            syncTimeoutSeconds,
+            interval,
+            retryPolicy = retryPolicy,
+            producerBackoff = producerBackoff
+        )
     }
 }
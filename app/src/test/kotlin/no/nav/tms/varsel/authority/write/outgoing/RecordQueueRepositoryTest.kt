@@ -0,0 +1,65 @@
+package no.nav.tms.varsel.authority.write.outgoing
+
+import io.kotest.matchers.collections.shouldContain
+import io.kotest.matchers.collections.shouldNotContain
+import io.kotest.matchers.shouldBe
+import kotliquery.queryOf
+import no.nav.tms.varsel.authority.database.LocalPostgresDatabase
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class RecordQueueRepositoryTest {
+
+    private val database = LocalPostgresDatabase.getCleanInstance()
+    private val repository = RecordQueueRepository(database)
+
+    private val testTopic = "test-topic"
+
+    @AfterEach
+    fun cleanUp() {
+        LocalPostgresDatabase.resetInstance()
+    }
+
+    @Test
+    fun `bytter aktiv slot og truncater slots som er tømt`() {
+        val start = repository.activeSlot()
+
+        repository.enqueueRecord(testTopic, "key-1", "apple")
+        repository.dequeueRecords(repository.peekNext(10).map { it.id })
+
+        repository.rotateSlots(Duration.ZERO).let {
+            it.rotated shouldBe true
+            it.active shouldBe (start + 1) % SLOTS
+        }
+
+        repository.enqueueRecord(testTopic, "key-2", "banana")
+        slotsInUse() shouldBe listOf((start + 1) % SLOTS)
+
+        repository.rotateSlots(Duration.ZERO).let {
+            it.truncated shouldContain start
+            it.truncated shouldNotContain (start + 1) % SLOTS
+            it.active shouldBe (start + 2) % SLOTS
+        }
+
+        repository.peekNext(10).map { String(it.recordValue) } shouldBe listOf("banana")
+    }
+
+    @Test
+    fun `bytter ikke slot før aktiv slot er gammel nok`() {
+        val start = repository.activeSlot()
+
+        repository.rotateSlots(Duration.ZERO)
+        repository.rotateSlots(Duration.ofHours(1)).rotated shouldBe false
+
+        repository.activeSlot() shouldBe (start + 1) % SLOTS
+    }
+
+    private fun slotsInUse() = database.list {
+        queryOf("select distinct slot from outgoing_record_queue").map { it.int("slot") }
+    }
+
+    companion object {
+        private const val SLOTS = 4
+    }
+}
@@ -1,3 +1,12 @@
 object JacksonEx: default.JacksonDatatypeDefaults {
     val annotations = dependency("jackson-annotations", groupId = "com.fasterxml.jackson.core", version = "2.20")
+    val moduleBlackbird = dependency("jackson-module-blackbird", groupId = "com.fasterxml.jackson.module")
+}
+
+object Jmh: default.DependencyGroup {
+    override val groupId get() = "org.openjdk.jmh"
+    override val version get() = "1.37"
+
+    val pluginId get() = "me.champeau.jmh"
+    val pluginVersion get() = "0.7.3"
 }